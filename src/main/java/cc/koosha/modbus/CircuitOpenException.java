@@ -0,0 +1,28 @@
+package cc.koosha.modbus;
+
+/**
+ * Thrown instead of sending a request to a unit which stopped responding,
+ * while its circuit breaker is open.
+ *
+ * @author Koosha Hosseiny
+ * @see cc.koosha.modbus.modbus.transaction.CircuitBreaker
+ */
+public class CircuitOpenException extends ModbusException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int unitId;
+
+    public CircuitOpenException(int unitId) {
+        super("unit %d is not responding, circuit open", unitId);
+        this.unitId = unitId;
+    }
+
+    /**
+     * @return the unit not responding.
+     */
+    public int getUnitId() {
+        return unitId;
+    }
+
+}
@@ -234,6 +234,13 @@ public class Modbus {
      */
     public static final int NEGATIVE_ACKNOWLEDGEMENT = 7;
 
+    /**
+     * Defines the Modbus slave exception type <tt>Gateway path
+     * unavailable</tt>. This exception code indicates that a Modbus gateway
+     * has no path to the specified target.
+     */
+    public static final int GATEWAY_PATH_UNAVAILABLE = 10;
+
     /**
      * Defines the Modbus slave exception type <tt>Gateway target failed to
      * respond</tt>.  This exception code indicates that a Modbus gateway failed
@@ -246,6 +253,12 @@ public class Modbus {
      */
     public static final int DEFAULT_PORT = 502;
 
+    /**
+     * Defines the default port number of Modbus/TCP Security, over TLS
+     * (=<tt>802</tt>).
+     */
+    public static final int DEFAULT_TLS_PORT = 802;
+
     /**
      * Defines the maximum message length in bytes (=<tt>256</tt>).
      */
@@ -324,6 +337,10 @@ public class Modbus {
      * value the client provides. However, the transaction ID is being limited
      * to signed 16-bit integers to prevent problems with servers that might
      * incorrectly assume the value is a signed value.
+     * <p>
+     * Transactions use the full 16-bit range, see {@link
+     * cc.koosha.modbus.util.TransactionIdAllocator} for limiting it to this
+     * value for such servers.
      */
     public static final int MAX_TRANSACTION_ID = Short.MAX_VALUE;
 
@@ -0,0 +1,45 @@
+package cc.koosha.modbus;
+
+/**
+ * Thrown when the slave answers a request with an exception response.
+ * <p>
+ * The exception code is one of the <tt>*_EXCEPTION</tt> constants defined in
+ * {@link Modbus}, such as {@link Modbus#ILLEGAL_ADDRESS_EXCEPTION}.
+ */
+public class ModbusSlaveException extends ModbusException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int type;
+
+    /**
+     * Constructs a new <tt>ModbusSlaveException</tt> instance with the given
+     * exception code.
+     *
+     * @param type the exception code returned by the slave.
+     */
+    public ModbusSlaveException(int type) {
+        super("slave exception: " + type);
+        this.type = type;
+    }
+
+    /**
+     * Returns the exception code returned by the slave.
+     *
+     * @return the exception code as <tt>int</tt>.
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * Tests if this exception is of the given type.
+     *
+     * @param type the exception code to test against.
+     * @return true if the codes match, false otherwise.
+     */
+    public boolean isType(int type) {
+        return this.type == type;
+    }
+
+}
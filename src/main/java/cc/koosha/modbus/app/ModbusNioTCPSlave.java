@@ -0,0 +1,1074 @@
+package cc.koosha.modbus.app;
+
+import cc.koosha.modbus.Modbus;
+import cc.koosha.modbus.io.net.NioReactor;
+import cc.koosha.modbus.modbus.transport.MBAPFrameDecoder;
+import cc.koosha.modbus.modbus.transport.ModbusTCPTransport;
+import cc.koosha.modbus.msg.ModbusRequest;
+import cc.koosha.modbus.msg.ModbusResponse;
+import cc.koosha.modbus.msg.request.DefaultModbusRequestFactory;
+import cc.koosha.modbus.msg.request.MaskWriteRegisterRequest;
+import cc.koosha.modbus.msg.request.ReadCoilsRequest;
+import cc.koosha.modbus.msg.request.ReadInputDiscretesRequest;
+import cc.koosha.modbus.msg.request.ReadInputRegistersRequest;
+import cc.koosha.modbus.msg.request.ReadMultipleRegistersRequest;
+import cc.koosha.modbus.msg.request.WriteCoilRequest;
+import cc.koosha.modbus.msg.request.WriteMultipleCoilsRequest;
+import cc.koosha.modbus.msg.request.WriteMultipleRegistersRequest;
+import cc.koosha.modbus.msg.request.WriteSingleRegisterRequest;
+import cc.koosha.modbus.xinternal.J2ModDebugUtils;
+import cc.koosha.modbus.xinternal.J2ModFastInputStream;
+import cc.koosha.modbus.xinternal.J2ModFastOutputStream;
+import cc.koosha.modbus.xinternal.J2ModPrecondition;
+import cc.koosha.modbus.xinternal.J2ModUtils;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Modbus/TCP slave serving many clients from a few threads.
+ * <p>
+ * Connections are accepted and served by a small set of {@link NioReactor}s,
+ * each accepted connection being given to the next reactor in turn. No
+ * thread is held by a connection, idle or not: an idle client costs its
+ * socket and a receive buffer of two frames, so that thousands of clients,
+ * such as a fleet of HMIs and historians polling the same process image, are
+ * served by as many threads as there are reactors.
+ * <p>
+ * Requests are decoded in place in the connection's buffer, processed by the
+ * {@link ModbusRequestProcessor}, usually a {@link
+ * DefaultModbusRequestProcessor} mapping unit ids to their {@link
+ * cc.koosha.modbus.procimg.ProcessImage}. A client which has too many
+ * requests pending, being processed or waiting for it to take their
+ * responses, is not read from until it catches up. The number of
+ * connections can be {@link #setMaxConnections(int) limited}, the least
+ * recently active ones making room for new clients.
+ * <p>
+ * By default the processor runs on the reactor thread, and requests are
+ * answered in order: it must answer quickly, a slow request delays every
+ * client served by the same reactor. With an {@link #setExecutor(Executor)
+ * executor} the requests are processed on it, and pipelined requests are
+ * answered as they complete, in any order, as Modbus/TCP clients match
+ * responses by transaction id. The {@link #setQueueLimits(int, int) queue}
+ * of requests waiting for the executor can be bounded, requests past the
+ * bounds being answered busy or dropped, and its {@link #getQueueDepth()
+ * depth} is exposed. A {@link #setResponseCache(ReadResponseCache) response
+ * cache} can answer the clients polling the same ranges. The processor must
+ * be thread-safe when more than one reactor or an executor is used.
+ *
+ * @author Koosha Hosseiny
+ */
+@Slf4j
+@ThreadSafe
+public final class ModbusNioTCPSlave implements Closeable {
+
+    /**
+     * What is done with a request arriving while the queue limits are
+     * reached.
+     */
+    public enum Overload {
+        /**
+         * Answer at once with {@link Modbus#SLAVE_BUSY_EXCEPTION}, so the
+         * client can back off or try a redundant server.
+         */
+        BUSY,
+        /**
+         * Do not answer, the client times out.
+         */
+        DROP,
+    }
+
+    /**
+     * Room for a frame and the beginning of the next one.
+     */
+    private static final int RECEIVE_CAPACITY = MBAPFrameDecoder.MAX_FRAME_LENGTH * 2;
+
+    /**
+     * Responses waiting for a client to take them after which it is not read
+     * from. Also the number of requests of a client queued to the executor
+     * after which it is not read from, if not limited otherwise.
+     */
+    private static final int MAX_PENDING_RESPONSES = 16;
+
+    private static final int DEFAULT_BACKLOG = 1024;
+
+    /**
+     * Stands for a request without response, answered in order.
+     */
+    private static final ByteBuffer NO_RESPONSE = ByteBuffer.allocate(0);
+
+    /**
+     * Encodes the responses of the requests processed by the executor.
+     */
+    private static final ThreadLocal<J2ModFastOutputStream> ENCODER = new ThreadLocal<J2ModFastOutputStream>() {
+        @Override
+        protected J2ModFastOutputStream initialValue() {
+            return J2ModUtils.dataOutput(MBAPFrameDecoder.MAX_FRAME_LENGTH);
+        }
+    };
+
+    private final Object LOCK = new Object();
+
+    private final ModbusRequestProcessor processor;
+
+    @Getter
+    private final SocketAddress address;
+
+    private final int reactorCount;
+
+    private final int backlog;
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong rejections = new AtomicLong();
+
+    /**
+     * Open connections, added by the acceptor.
+     */
+    private final Set<Session> sessions =
+            Collections.newSetFromMap(new ConcurrentHashMap<Session, Boolean>());
+
+    private final Set<InetAddress> marked = new CopyOnWriteArraySet<InetAddress>();
+
+    private volatile int maxConnections;
+
+    private volatile Executor executor;
+
+    private volatile boolean ordered;
+
+    private volatile int connectionQueueLimit;
+
+    private volatile int queueLimit;
+
+    private volatile Overload overload = Overload.BUSY;
+
+    private volatile ReadResponseCache responseCache;
+
+    /**
+     * Requests handed to the executor and not processed yet.
+     */
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final AtomicInteger peakQueued = new AtomicInteger();
+
+    private final AtomicLong busy = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    // ------------------- guarded by LOCK
+
+    private Worker[] workers;
+
+    private ServerSocketChannel server;
+
+    private volatile boolean closed;
+
+
+    /**
+     * A slave on a single reactor.
+     *
+     * @see #ModbusNioTCPSlave(ModbusRequestProcessor, SocketAddress, int,
+     * int)
+     */
+    public ModbusNioTCPSlave(ModbusRequestProcessor processor, int port) {
+        this(processor, new InetSocketAddress(port), 1, DEFAULT_BACKLOG);
+    }
+
+    /**
+     * @param processor processor answering the requests.
+     * @param address   address to listen on.
+     * @param reactors  number of reactor threads serving the connections.
+     * @param backlog   maximum number of connections waiting to be
+     *                  accepted.
+     */
+    public ModbusNioTCPSlave(@NonNull ModbusRequestProcessor processor,
+                             @NonNull SocketAddress address,
+                             int reactors,
+                             int backlog) {
+        J2ModPrecondition.ensurePositive(reactors, "reactors");
+        J2ModPrecondition.ensurePositive(backlog, "backlog");
+        this.processor = processor;
+        this.address = address;
+        this.reactorCount = reactors;
+        this.backlog = backlog;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets the executor processing the requests. Without one, requests are
+     * processed on the reactor thread.
+     * <p>
+     * With an executor, the requests pipelined by a client are processed
+     * concurrently, and each response is written as soon as it is ready
+     * unless {@link #setOrdered(boolean) ordered}: a slow request, such as a
+     * file record read, does not hold back the cheap ones sent after it.
+     * Requests the executor rejects are answered with {@link
+     * Modbus#SLAVE_BUSY_EXCEPTION}.
+     *
+     * @param executor executor processing the requests, or null to process
+     *                 them on the reactor thread.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    /**
+     * Sets whether the responses to a client are written in the order its
+     * requests came, for clients which do not match them by transaction id.
+     * Only matters with an {@link #setExecutor(Executor) executor}.
+     *
+     * @param ordered true to answer each client in order.
+     */
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    /**
+     * Bounds the requests waiting for the {@link #setExecutor(Executor)
+     * executor}, so that latency does not grow without limit under load.
+     * A request arriving while either limit is reached is not queued but
+     * handled as set by {@link #setOverload(Overload)}.
+     * <p>
+     * Without a limit per connection, a client with 16 requests queued is
+     * not read from until some of them are processed, its further requests
+     * wait in the socket buffers.
+     *
+     * @param perConnection requests of a single client, 0 for no limit.
+     * @param total         requests of all clients, 0 for no limit.
+     */
+    public void setQueueLimits(int perConnection, int total) {
+        J2ModPrecondition.ensureIsInRange(perConnection, 0, Integer.MAX_VALUE, "perConnection");
+        J2ModPrecondition.ensureIsInRange(total, 0, Integer.MAX_VALUE, "total");
+        this.connectionQueueLimit = perConnection;
+        this.queueLimit = total;
+    }
+
+    public int getConnectionQueueLimit() {
+        return connectionQueueLimit;
+    }
+
+    public int getQueueLimit() {
+        return queueLimit;
+    }
+
+    public Overload getOverload() {
+        return overload;
+    }
+
+    /**
+     * Sets what is done with requests exceeding the queue limits, or
+     * rejected by the executor. Defaults to {@link Overload#BUSY}.
+     *
+     * @param overload the policy.
+     */
+    public void setOverload(@NonNull Overload overload) {
+        this.overload = overload;
+    }
+
+    /**
+     * @return number of requests waiting for the executor or being processed
+     * by it.
+     */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    /**
+     * @return highest {@link #getQueueDepth()} seen.
+     */
+    public int getPeakQueueDepth() {
+        return peakQueued.get();
+    }
+
+    /**
+     * @return number of requests answered with {@link
+     * Modbus#SLAVE_BUSY_EXCEPTION} as the slave was overloaded.
+     */
+    public long getBusyCount() {
+        return busy.get();
+    }
+
+    /**
+     * @return number of requests dropped as the slave was overloaded.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public ReadResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Sets the cache answering repeated reads of coils, discrete inputs and
+     * registers, on the reactor thread, with the response encoded for the
+     * previous identical read. Writes through this slave invalidate the
+     * overlapping reads, other changes of the process images are seen once
+     * the cached responses expire.
+     *
+     * @param responseCache the cache, or null to process every request.
+     */
+    public void setResponseCache(ReadResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Limits the number of connections, as Modbus/TCP servers do to keep
+     * their resources for the clients that matter, as described in section
+     * 4.2.1 of the Modbus/TCP implementation guide.
+     * <p>
+     * A client connecting while the limit is reached takes the place of the
+     * least recently active connection of an unmarked peer, which is closed.
+     * If every connection is from a {@link #addMarked(InetAddress) marked}
+     * peer, the client is turned away, unless it is marked itself: marked
+     * peers are always accepted.
+     *
+     * @param maxConnections maximum number of connections, 0 for no limit.
+     */
+    public void setMaxConnections(int maxConnections) {
+        J2ModPrecondition.ensureIsInRange(maxConnections, 0, Integer.MAX_VALUE, "maxConnections");
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Marks a peer, such as the primary SCADA, whose connections are never
+     * closed to make room for others. Applies to connections accepted
+     * afterwards.
+     *
+     * @param address address of the peer.
+     */
+    public void addMarked(@NonNull InetAddress address) {
+        marked.add(address);
+    }
+
+    public void removeMarked(InetAddress address) {
+        marked.remove(address);
+    }
+
+    /**
+     * @return addresses of the marked peers.
+     */
+    public Set<InetAddress> getMarked() {
+        return Collections.unmodifiableSet(marked);
+    }
+
+    /**
+     * Binds the address and starts accepting connections.
+     *
+     * @throws IOException if the address can not be bound.
+     */
+    public void start() throws IOException {
+        synchronized (LOCK) {
+            if (closed)
+                throw new IllegalStateException("slave closed");
+            if (server != null)
+                throw new IllegalStateException("slave already started");
+
+            workers = new Worker[reactorCount];
+            try {
+                for (int i = 0; i < reactorCount; i++)
+                    workers[i] = new Worker(new NioReactor("j2mod-slave-" + i));
+                server = ServerSocketChannel.open();
+                server.socket().setReuseAddress(true);
+                server.socket().bind(address, backlog);
+                server.configureBlocking(false);
+            }
+            catch (IOException e) {
+                close();
+                throw e;
+            }
+
+            final ServerSocketChannel server = this.server;
+            final NioReactor acceptor = workers[0].reactor;
+            acceptor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        acceptor.register(server, SelectionKey.OP_ACCEPT, new Acceptor(server));
+                    }
+                    catch (ClosedChannelException e) {
+                        log.debug("slave closed before accepting");
+                    }
+                }
+            });
+            log.info("Modbus/TCP slave listening on {}", server.socket().getLocalSocketAddress());
+        }
+    }
+
+    /**
+     * @return port the slave listens on, or -1 if not started.
+     */
+    public int getLocalPort() {
+        synchronized (LOCK) {
+            return server == null ? -1 : server.socket().getLocalPort();
+        }
+    }
+
+    /**
+     * @return number of connected clients.
+     */
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    /**
+     * @return number of requests answered.
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return number of connections closed to make room for new ones.
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return number of clients turned away as all connections were from
+     * marked peers.
+     */
+    public long getRejectionCount() {
+        return rejections.get();
+    }
+
+    /**
+     * Stops accepting, and closes all the connections.
+     */
+    @Override
+    public void close() {
+        synchronized (LOCK) {
+            closed = true;
+            if (server != null) {
+                try {
+                    server.close();
+                }
+                catch (IOException e) {
+                    log.debug("failed to close server socket: {}", e.getMessage());
+                }
+            }
+            if (workers != null)
+                for (Worker worker : workers)
+                    if (worker != null)
+                        worker.reactor.close();
+        }
+    }
+
+
+    /**
+     * A reactor, and the buffers shared by the connections it serves.
+     */
+    private static final class Worker {
+
+        private final NioReactor reactor;
+
+        private final J2ModFastInputStream in = J2ModUtils.dataInput(0);
+
+        private final J2ModFastOutputStream out =
+                J2ModUtils.dataOutput(MBAPFrameDecoder.MAX_FRAME_LENGTH);
+
+        private Worker(NioReactor reactor) {
+            this.reactor = reactor;
+        }
+
+    }
+
+    /**
+     * Accepts connections, on the first reactor.
+     */
+    private final class Acceptor implements NioReactor.ChannelHandler {
+
+        private final ServerSocketChannel server;
+
+        private int next;
+
+        private Acceptor(ServerSocketChannel server) {
+            this.server = server;
+        }
+
+        @Override
+        public void ready(SelectionKey key) throws IOException {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null)
+                accepted(channel);
+        }
+
+        @Override
+        public void failed(IOException cause) {
+            if (!closed)
+                log.error("Modbus/TCP slave stopped accepting", cause);
+        }
+
+        private void accepted(final SocketChannel channel) {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+            }
+            catch (IOException e) {
+                log.debug("failed to set up accepted connection: {}", e.getMessage());
+                closeQuietly(channel);
+                return;
+            }
+
+            final boolean isMarked = marked.contains(channel.socket().getInetAddress());
+            if (!admit(isMarked)) {
+                rejections.incrementAndGet();
+                log.info("turned away {}: {} connections, all from marked peers",
+                         channel.socket().getRemoteSocketAddress(), connections.get());
+                closeQuietly(channel);
+                return;
+            }
+
+            final Worker worker = workers[next];
+            next = (next + 1) % workers.length;
+            final Session session = new Session(worker, channel, isMarked);
+            sessions.add(session);
+            connections.incrementAndGet();
+            worker.reactor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        session.key = worker.reactor.register(channel, SelectionKey.OP_READ, session);
+                        log.debug("client connected: {}", channel.socket().getRemoteSocketAddress());
+                    }
+                    catch (ClosedChannelException e) {
+                        session.failed(e);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Makes room for a new connection if the limit is reached, by
+         * closing the least recently active connections of unmarked peers,
+         * more than one if the limit was lowered.
+         *
+         * @return false if no room could be made.
+         */
+        private boolean admit(boolean isMarked) {
+            final int max = maxConnections;
+            while (max > 0 && connections.get() >= max) {
+                Session oldest = null;
+                for (Session session : sessions)
+                    if (!session.marked && (oldest == null || session.lastActive - oldest.lastActive < 0))
+                        oldest = session;
+                if (oldest == null)
+                    return isMarked;
+
+                // Counted out now, so that the next client does not pick it
+                // too.
+                if (sessions.remove(oldest)) {
+                    connections.decrementAndGet();
+                    evictions.incrementAndGet();
+                    final Session evicted = oldest;
+                    evicted.worker.reactor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            evicted.evict();
+                        }
+                    });
+                }
+            }
+            return true;
+        }
+
+    }
+
+    /**
+     * A client connection, touched on its reactor thread only.
+     */
+    private final class Session implements NioReactor.ChannelHandler {
+
+        private final Worker worker;
+
+        private final SocketChannel channel;
+
+        private final MBAPFrameDecoder decoder = new MBAPFrameDecoder(RECEIVE_CAPACITY);
+
+        /**
+         * Responses the client did not take yet, created on first use.
+         */
+        private Queue<ByteBuffer> pending;
+
+        /**
+         * Responses ready before those of earlier requests, by sequence
+         * number, when answering in order. Created on first use.
+         */
+        private Map<Long, ByteBuffer> early;
+
+        /**
+         * Sequence number of the next request received.
+         */
+        private long received;
+
+        /**
+         * Sequence number of the next response to write, when answering in
+         * order.
+         */
+        private long delivered;
+
+        /**
+         * Requests being processed by the executor.
+         */
+        private int inFlight;
+
+        /**
+         * True if from a marked peer, never evicted.
+         */
+        private final boolean marked;
+
+        /**
+         * {@link System#nanoTime()} when a request was last received, read
+         * by the acceptor.
+         */
+        private volatile long lastActive = System.nanoTime();
+
+        private SelectionKey key;
+
+        private boolean gone;
+
+        private Session(Worker worker, SocketChannel channel, boolean marked) {
+            this.worker = worker;
+            this.channel = channel;
+            this.marked = marked;
+        }
+
+        @Override
+        public void ready(SelectionKey key) throws IOException {
+            if (key.isWritable())
+                flush();
+            if (key.isValid() && key.isReadable())
+                receive();
+        }
+
+        @Override
+        public void failed(IOException cause) {
+            if (gone)
+                return;
+            gone = true;
+            closeQuietly(channel);
+            if (sessions.remove(this))
+                connections.decrementAndGet();
+            log.debug("client {} disconnected: {}",
+                      channel.socket().getRemoteSocketAddress(), cause.getMessage());
+        }
+
+        private void receive() throws IOException {
+            while (decoder.read(channel) > 0) {
+                lastActive = System.nanoTime();
+                if (!serve())
+                    return;
+            }
+        }
+
+        /**
+         * Closes the connection to make room for another one.
+         */
+        private void evict() {
+            if (gone)
+                return;
+            log.info("closing least recently active connection from {} to make room",
+                     channel.socket().getRemoteSocketAddress());
+            if (key != null)
+                key.cancel();
+            failed(new IOException("evicted"));
+        }
+
+        /**
+         * Answers, or hands to the executor, the complete requests received.
+         *
+         * @return false if the client has too many requests pending.
+         */
+        private boolean serve() throws IOException {
+            while (!isBackedUp() && decoder.next())
+                answer(decoder.getBuffer(), decoder.getFrameOffset(), decoder.getFrameLength());
+            updateInterest();
+            return !isBackedUp();
+        }
+
+        private void answer(byte[] buffer, int offset, int length) throws IOException {
+            if (log.isTraceEnabled())
+                log.trace("Read: {}", J2ModDebugUtils.toHex(buffer, offset, offset + length));
+            final long sequence = received++;
+            final int transactionId = decoder.getTransactionId();
+            final int functionCode = buffer[offset + MBAPFrameDecoder.HEADER_LENGTH + 1] & 0xFF;
+            final ModbusRequest request = DefaultModbusRequestFactory.getInstance().create(functionCode);
+            request.setHeadless(false);
+
+            // Reads the whole header, unit id included. Parsed here, the
+            // frame is not needed once handed to the executor.
+            worker.in.reset(buffer, offset, length);
+            ModbusResponse malformed = null;
+            try {
+                request.readFrom(worker.in);
+            }
+            catch (IOException e) {
+                log.debug("malformed request, function code {}: {}", functionCode, e.getMessage());
+                malformed = request.createExceptionResponse(Modbus.ILLEGAL_VALUE_EXCEPTION);
+            }
+            catch (RuntimeException e) {
+                log.debug("malformed request, function code {}: {}", functionCode, e.getMessage());
+                malformed = request.createExceptionResponse(Modbus.ILLEGAL_VALUE_EXCEPTION);
+            }
+
+            if (malformed != null) {
+                complete(sequence, encode(worker.out, malformed, transactionId));
+                return;
+            }
+
+            final ReadResponseCache cache = responseCache;
+            if (cache != null) {
+                final int count = readCount(request);
+                if (count > 0) {
+                    final byte[] out = worker.out.getBuffer();
+                    final int size = cache.get(request.getUnitID(), functionCode,
+                                               readReference(request), count, transactionId, out);
+                    if (size > 0) {
+                        complete(sequence, ByteBuffer.wrap(out, 0, size));
+                        return;
+                    }
+                }
+            }
+
+            final Executor executor = ModbusNioTCPSlave.this.executor;
+            if (executor == null) {
+                complete(sequence, respond(worker.out, request, transactionId));
+                return;
+            }
+
+            final int perConnection = connectionQueueLimit;
+            if (perConnection > 0 && inFlight >= perConnection || !enqueue()) {
+                overloaded(sequence, request, transactionId);
+                return;
+            }
+            inFlight++;
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        final ByteBuffer frame;
+                        try {
+                            final ByteBuffer encoded = respond(ENCODER.get(), request, transactionId);
+                            frame = encoded == null ? null : copy(encoded);
+                        }
+                        finally {
+                            queued.decrementAndGet();
+                        }
+                        worker.reactor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                processed(sequence, frame);
+                            }
+                        });
+                    }
+                });
+            }
+            catch (RejectedExecutionException e) {
+                inFlight--;
+                queued.decrementAndGet();
+                log.debug("executor rejected request, function code {}", functionCode);
+                overloaded(sequence, request, transactionId);
+            }
+        }
+
+        /**
+         * Answers busy, or drops, a request which could not be queued.
+         */
+        private void overloaded(long sequence, ModbusRequest request, int transactionId) throws IOException {
+            if (overload == Overload.DROP) {
+                dropped.incrementAndGet();
+                complete(sequence, null);
+                return;
+            }
+            busy.incrementAndGet();
+            final ModbusResponse response = request.createExceptionResponse(Modbus.SLAVE_BUSY_EXCEPTION);
+            complete(sequence, encode(worker.out, response, transactionId));
+        }
+
+        /**
+         * Takes the response of a request processed by the executor, on the
+         * reactor thread.
+         */
+        private void processed(long sequence, ByteBuffer frame) {
+            inFlight--;
+            if (gone)
+                return;
+            try {
+                complete(sequence, frame);
+                // Requests left in the buffer while the client was backed up.
+                serve();
+            }
+            catch (IOException e) {
+                key.cancel();
+                failed(e);
+            }
+        }
+
+        /**
+         * Writes the response now, or once the responses to the requests
+         * received before it are written when answering in order.
+         *
+         * @param frame the response, or null if there is none.
+         */
+        private void complete(long sequence, ByteBuffer frame) throws IOException {
+            if (frame != null)
+                requests.incrementAndGet();
+            if (!ordered) {
+                if (frame != null)
+                    send(frame);
+                return;
+            }
+            if (sequence != delivered) {
+                if (early == null)
+                    early = new HashMap<Long, ByteBuffer>();
+                early.put(sequence, frame == null ? NO_RESPONSE : copy(frame));
+                return;
+            }
+            if (frame != null)
+                send(frame);
+            delivered++;
+            ByteBuffer next;
+            while (early != null && (next = early.remove(delivered)) != null) {
+                if (next != NO_RESPONSE)
+                    send(next);
+                delivered++;
+            }
+        }
+
+        /**
+         * Writes the response, or what the client does not take of it is
+         * copied and kept for later.
+         */
+        private void send(ByteBuffer response) throws IOException {
+            if (pending == null || pending.isEmpty()) {
+                channel.write(response);
+                if (!response.hasRemaining())
+                    return;
+            }
+            if (pending == null)
+                pending = new ArrayDeque<ByteBuffer>();
+            pending.add(copy(response));
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+
+        private void flush() throws IOException {
+            while (!pending.isEmpty()) {
+                final ByteBuffer response = pending.peek();
+                channel.write(response);
+                if (response.hasRemaining())
+                    return;
+                pending.remove();
+            }
+            // Requests left in the buffer while the client was backed up.
+            serve();
+        }
+
+        private void updateInterest() {
+            int ops = isBackedUp() ? 0 : SelectionKey.OP_READ;
+            if (pending != null && !pending.isEmpty())
+                ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        }
+
+        private boolean isBackedUp() {
+            int count = 0;
+            if (pending != null)
+                count += pending.size();
+            if (early != null)
+                count += early.size();
+            // Past its queue limit, a client is answered busy instead.
+            if (connectionQueueLimit == 0)
+                count = Math.max(count, inFlight);
+            return count >= MAX_PENDING_RESPONSES;
+        }
+
+    }
+
+    /**
+     * Processes the request and encodes its response, going through the
+     * response cache if any.
+     *
+     * @return the frame, backed by the stream's buffer, or null if there is
+     * no response.
+     */
+    private ByteBuffer respond(J2ModFastOutputStream out, ModbusRequest request, int transactionId) {
+        final ReadResponseCache cache = responseCache;
+        if (cache == null)
+            return encode(out, process(request), transactionId);
+
+        final long stamp = cache.stamp();
+        final ByteBuffer frame = encode(out, process(request), transactionId);
+        invalidate(cache, request);
+        final int count = readCount(request);
+        // Exception responses are not kept.
+        if (frame != null && count > 0 && (frame.get(MBAPFrameDecoder.HEADER_LENGTH + 1) & 0x80) == 0)
+            cache.put(request.getUnitID(), request.getFunctionCode(), readReference(request), count,
+                      stamp, frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        return frame;
+    }
+
+    /**
+     * @return number of coils or registers read by a cacheable request, 0
+     * for other requests.
+     */
+    private static int readCount(ModbusRequest request) {
+        if (request instanceof ReadMultipleRegistersRequest)
+            return ((ReadMultipleRegistersRequest) request).getWordCount();
+        if (request instanceof ReadInputRegistersRequest)
+            return ((ReadInputRegistersRequest) request).getWordCount();
+        if (request instanceof ReadCoilsRequest)
+            return ((ReadCoilsRequest) request).getBitCount();
+        if (request instanceof ReadInputDiscretesRequest)
+            return ((ReadInputDiscretesRequest) request).getBitCount();
+        return 0;
+    }
+
+    /**
+     * @return first address read by a cacheable request.
+     */
+    private static int readReference(ModbusRequest request) {
+        if (request instanceof ReadMultipleRegistersRequest)
+            return ((ReadMultipleRegistersRequest) request).getReference();
+        if (request instanceof ReadInputRegistersRequest)
+            return ((ReadInputRegistersRequest) request).getReference();
+        if (request instanceof ReadCoilsRequest)
+            return ((ReadCoilsRequest) request).getReference();
+        return ((ReadInputDiscretesRequest) request).getReference();
+    }
+
+    /**
+     * Drops the cached reads overlapping what the request wrote, once
+     * processed.
+     */
+    private static void invalidate(ReadResponseCache cache, ModbusRequest request) {
+        final int unit = request.getUnitID();
+        if (request instanceof WriteCoilRequest)
+            cache.invalidate(unit, Modbus.READ_COILS, ((WriteCoilRequest) request).getReference(), 1);
+        else if (request instanceof WriteMultipleCoilsRequest)
+            cache.invalidate(unit, Modbus.READ_COILS,
+                             ((WriteMultipleCoilsRequest) request).getReference(),
+                             ((WriteMultipleCoilsRequest) request).getBitCount());
+        else if (request instanceof WriteSingleRegisterRequest)
+            cache.invalidate(unit, Modbus.READ_MULTIPLE_REGISTERS,
+                             ((WriteSingleRegisterRequest) request).getReference(), 1);
+        else if (request instanceof WriteMultipleRegistersRequest)
+            cache.invalidate(unit, Modbus.READ_MULTIPLE_REGISTERS,
+                             ((WriteMultipleRegistersRequest) request).getReference(),
+                             ((WriteMultipleRegistersRequest) request).getWordCount());
+        else if (request instanceof MaskWriteRegisterRequest)
+            cache.invalidate(unit, Modbus.READ_MULTIPLE_REGISTERS,
+                             ((MaskWriteRegisterRequest) request).getReference(), 1);
+        else if (request.getFunctionCode() == Modbus.READ_WRITE_MULTIPLE)
+            cache.invalidate(unit, Modbus.READ_MULTIPLE_REGISTERS);
+    }
+
+    /**
+     * Counts a request in the global queue.
+     *
+     * @return false if the queue is full.
+     */
+    private boolean enqueue() {
+        final int depth = queued.incrementAndGet();
+        final int limit = queueLimit;
+        if (limit > 0 && depth > limit) {
+            queued.decrementAndGet();
+            return false;
+        }
+        int peak;
+        while (depth > (peak = peakQueued.get()) && !peakQueued.compareAndSet(peak, depth))
+            ;
+        return true;
+    }
+
+    /**
+     * Runs the processor, which should not throw.
+     */
+    private ModbusResponse process(ModbusRequest request) {
+        try {
+            return processor.apply(request);
+        }
+        catch (RuntimeException e) {
+            log.error("failed to process request, function code " + request.getFunctionCode(), e);
+            return request.createExceptionResponse(Modbus.SLAVE_DEVICE_FAILURE);
+        }
+    }
+
+    /**
+     * Encodes the response into the given stream.
+     *
+     * @return the frame, backed by the stream's buffer, or null if there is
+     * no response.
+     */
+    private static ByteBuffer encode(J2ModFastOutputStream out,
+                                     ModbusResponse response,
+                                     int transactionId) {
+        if (response == null)
+            return null;
+        try {
+            ModbusTCPTransport.encode(out, response, transactionId, false, false);
+        }
+        catch (IOException e) {
+            // Written to memory.
+            throw new IllegalStateException(e);
+        }
+        return ByteBuffer.wrap(out.getBuffer(), 0, out.size());
+    }
+
+    private static ByteBuffer copy(ByteBuffer buffer) {
+        final ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer);
+        copy.flip();
+        return copy;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            log.trace("failed to close connection", e);
+        }
+    }
+
+}
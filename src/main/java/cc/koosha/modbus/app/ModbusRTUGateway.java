@@ -0,0 +1,415 @@
+package cc.koosha.modbus.app;
+
+import cc.koosha.modbus.Modbus;
+import cc.koosha.modbus.modbus.transport.ModbusTransport;
+import cc.koosha.modbus.msg.ModbusRequest;
+import cc.koosha.modbus.msg.ModbusResponse;
+import cc.koosha.modbus.msg.response.ExceptionResponse;
+import cc.koosha.modbus.util.ModbusFuture;
+import cc.koosha.modbus.xinternal.J2ModCollections;
+import cc.koosha.modbus.xinternal.J2ModPrecondition;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+
+/**
+ * Modbus/TCP to RTU gateway, routing requests by unit id to serial buses.
+ * <p>
+ * Each bus has its own queue and worker thread: requests to units on
+ * different buses run in parallel, requests to the same bus one after the
+ * other, with at least {@link Bus#getInterFrameDelay()} of silence between
+ * the end of a response and the next request. Requests are answered with the
+ * transaction id they came with, whatever the bus does in the meantime.
+ * <p>
+ * A client never waits more than {@link #getResponseTimeout()} for an
+ * answer. Requests still queued past that time are answered with {@link
+ * Modbus#GATEWAY_TARGET_NO_RESPONSE} without being sent, and so are requests
+ * arriving to a full queue. A unit which failed to respond is considered down
+ * for {@link #getDownTime()}, during which its requests are answered at once
+ * instead of costing the bus a serial timeout each. Requests to units with no
+ * bus are answered with {@link Modbus#GATEWAY_PATH_UNAVAILABLE}.
+ * <p>
+ * The gateway is a {@link ModbusRequestProcessor}, to be plugged into a slave
+ * listening for Modbus/TCP clients.
+ *
+ * @author Koosha Hosseiny
+ */
+@Slf4j
+@ThreadSafe
+public final class ModbusRTUGateway implements ModbusRequestProcessor, Closeable {
+
+    /**
+     * A serial bus and its queue.
+     */
+    public final class Bus implements Runnable {
+
+        @Getter
+        private final String name;
+
+        private final ModbusTransport transport;
+
+        /**
+         * Minimum silence on the bus between a response and the next
+         * request, in milliseconds.
+         */
+        @Getter
+        private final long interFrameDelay;
+
+        /**
+         * Guarded by this.
+         */
+        private final ArrayDeque<Job> queue = new ArrayDeque<Job>();
+
+        /**
+         * Unit id to the time until which it is considered down, guarded by
+         * this.
+         */
+        private final Map<Integer, Long> downUntil = J2ModCollections.newModifiableMap();
+
+        private final Thread worker;
+
+        private long lastFrame = System.nanoTime();
+
+        private Bus(String name, ModbusTransport transport, long interFrameDelay) {
+            this.name = name;
+            this.transport = transport;
+            this.interFrameDelay = interFrameDelay;
+            this.worker = new Thread(this, "j2mod-gateway-" + name);
+            this.worker.setDaemon(true);
+        }
+
+        public int getQueued() {
+            synchronized (this) {
+                return queue.size();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final Job job;
+                synchronized (this) {
+                    while (queue.isEmpty() && !closed) {
+                        try {
+                            wait();
+                        }
+                        catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                    }
+                    if (closed || Thread.currentThread().isInterrupted())
+                        break;
+                    job = queue.poll();
+                }
+                process(job);
+            }
+
+            synchronized (this) {
+                for (Job job : queue)
+                    job.fail(Modbus.GATEWAY_TARGET_NO_RESPONSE);
+                queue.clear();
+            }
+            log.debug("gateway bus {} stopped", name);
+        }
+
+        private boolean enqueue(Job job) {
+            synchronized (this) {
+                final Long down = downUntil.get(job.unitId);
+                if (down != null && down - System.nanoTime() > 0)
+                    return false;
+                if (queue.size() >= maxQueued)
+                    return false;
+                queue.add(job);
+                notifyAll();
+                return true;
+            }
+        }
+
+        private void process(Job job) {
+            // Abandoned by a client which timed out.
+            if (job.future.isDone())
+                return;
+            if (System.nanoTime() - job.deadline > 0) {
+                log.debug("request to unit {} expired in queue of bus {}", job.unitId, name);
+                job.fail(Modbus.GATEWAY_TARGET_NO_RESPONSE);
+                return;
+            }
+            synchronized (this) {
+                final Long down = downUntil.get(job.unitId);
+                if (down != null) {
+                    if (down - System.nanoTime() > 0) {
+                        job.fail(Modbus.GATEWAY_TARGET_NO_RESPONSE);
+                        return;
+                    }
+                    downUntil.remove(job.unitId);
+                }
+            }
+
+            final long gap = TimeUnit.MILLISECONDS.toNanos(interFrameDelay) - (System.nanoTime() - lastFrame);
+            if (gap > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(gap);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    job.fail(Modbus.GATEWAY_TARGET_NO_RESPONSE);
+                    return;
+                }
+            }
+
+            try {
+                final ModbusResponse response = exchange(job);
+                job.future.set(response);
+            }
+            catch (IOException e) {
+                log.debug("unit {} on bus {} failed to respond: {}", job.unitId, name, e.getMessage());
+                synchronized (this) {
+                    downUntil.put(job.unitId, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(downTime));
+                }
+                job.fail(Modbus.GATEWAY_TARGET_NO_RESPONSE);
+            }
+            catch (RuntimeException e) {
+                log.warn("gateway bus {} failed", name, e);
+                job.fail(Modbus.GATEWAY_TARGET_NO_RESPONSE);
+            }
+            finally {
+                lastFrame = System.nanoTime();
+            }
+        }
+
+        private ModbusResponse exchange(Job job) throws IOException {
+            final ModbusRequest request = job.request;
+            // The serial transport turns the request headless.
+            transport.writeMessage(request);
+            request.setHeadless(job.headless);
+
+            final ModbusResponse response = transport.readResponse();
+            if (response == null)
+                throw new IOException("no response");
+            if (response.getUnitID() != job.unitId)
+                throw new IOException("response from unit " + response.getUnitID()
+                                              + ", expected " + job.unitId);
+            response.setHeadless(job.headless);
+            response.setTransactionID(job.transactionId);
+            return response;
+        }
+
+    }
+
+    /**
+     * A queued request. Its header is copied up front: once queued the
+     * request belongs to the bus worker, whose transport rewrites it, and
+     * exception responses are built from the copy only.
+     */
+    private static final class Job {
+
+        private final ModbusRequest request;
+        private final int unitId;
+        private final int functionCode;
+        private final int transactionId;
+        private final int protocolId;
+        private final boolean headless;
+        private final long deadline;
+        private final ModbusFuture<ModbusResponse> future = new ModbusFuture<ModbusResponse>();
+
+        private Job(ModbusRequest request, long deadline) {
+            this.request = request;
+            this.unitId = request.getUnitID();
+            this.functionCode = request.getFunctionCode();
+            this.transactionId = request.getTransactionID();
+            this.protocolId = request.getProtocolID();
+            this.headless = request.isHeadless();
+            this.deadline = deadline;
+        }
+
+        private void fail(int exceptionCode) {
+            future.set(exceptionResponse(exceptionCode));
+        }
+
+        private ModbusResponse exceptionResponse(int exceptionCode) {
+            final ExceptionResponse response = new ExceptionResponse(functionCode, exceptionCode);
+            response.setHeadless(headless);
+            response.setUnitID(unitId);
+            if (!headless) {
+                response.setTransactionID(transactionId);
+                response.setProtocolID(protocolId);
+            }
+            return response;
+        }
+
+    }
+
+    private final Object LOCK = new Object();
+
+    /**
+     * Guarded by LOCK.
+     */
+    private final Map<Integer, Bus> routes = J2ModCollections.newModifiableMap();
+
+    /**
+     * Guarded by LOCK.
+     */
+    private final List<Bus> buses = J2ModCollections.newModifiableList();
+
+    /**
+     * Maximum number of requests queued per bus.
+     */
+    @Getter
+    private final int maxQueued;
+
+    /**
+     * Maximum time a client waits for an answer, in milliseconds.
+     */
+    @Getter
+    private final long responseTimeout;
+
+    /**
+     * Time a unit which failed to respond is not tried again, in
+     * milliseconds.
+     */
+    @Getter
+    private final long downTime;
+
+    private volatile boolean closed;
+
+    /**
+     * @param maxQueued       maximum number of requests queued per bus.
+     * @param responseTimeout maximum time a client waits for an answer, in
+     *                        milliseconds. Should be more than the timeout
+     *                        of the serial connections.
+     * @param downTime        time a unit which failed to respond is not tried
+     *                        again, in milliseconds, zero to always try.
+     */
+    public ModbusRTUGateway(int maxQueued, long responseTimeout, long downTime) {
+        J2ModPrecondition.ensurePositive(maxQueued, "maxQueued");
+        if (responseTimeout <= 0)
+            throw new IllegalArgumentException("responseTimeout: " + responseTimeout);
+        if (downTime < 0)
+            throw new IllegalArgumentException("downTime: " + downTime);
+        this.maxQueued = maxQueued;
+        this.responseTimeout = responseTimeout;
+        this.downTime = downTime;
+    }
+
+    /**
+     * Adds a serial bus and starts its worker.
+     *
+     * @param name            name of the bus, for logging.
+     * @param transport       RTU transport of the bus, used only by this
+     *                        gateway from now on.
+     * @param interFrameDelay minimum silence between a response and the next
+     *                        request, in milliseconds.
+     * @param unitIds         units on the bus.
+     * @return the bus.
+     */
+    public Bus addBus(@NonNull String name,
+                      @NonNull ModbusTransport transport,
+                      long interFrameDelay,
+                      @NonNull int... unitIds) {
+        if (interFrameDelay < 0)
+            throw new IllegalArgumentException("interFrameDelay: " + interFrameDelay);
+        final Bus bus = new Bus(name, transport, interFrameDelay);
+        synchronized (LOCK) {
+            if (closed)
+                throw new IllegalStateException("gateway closed");
+            for (int unitId : unitIds) {
+                J2ModPrecondition.ensureIsInRange(unitId, 1, 247, "unitId");
+                if (routes.containsKey(unitId))
+                    throw new IllegalArgumentException("unit already routed: " + unitId);
+            }
+            for (int unitId : unitIds)
+                routes.put(unitId, bus);
+            buses.add(bus);
+        }
+        bus.worker.start();
+        log.debug("gateway bus {} added", name);
+        return bus;
+    }
+
+    /**
+     * Queues a request on the bus of its unit.
+     *
+     * @param request the request, not to be touched until answered.
+     * @return future of the response, never failed: errors are answered with
+     * exception responses.
+     */
+    public ModbusFuture<ModbusResponse> submit(@NonNull ModbusRequest request) {
+        return submit(newJob(request));
+    }
+
+    /**
+     * Blocks until the request is answered by its unit, or answers it with
+     * {@link Modbus#GATEWAY_TARGET_NO_RESPONSE} after {@link
+     * #getResponseTimeout()}. A request timed out while still queued is not
+     * sent.
+     */
+    @Override
+    public ModbusResponse apply(@NonNull ModbusRequest request) {
+        final Job job = newJob(request);
+        try {
+            return submit(job).get(responseTimeout, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e) {
+            log.warn("gateway request failed", e.getCause());
+        }
+        catch (TimeoutException e) {
+            log.debug("request to unit {} timed out", job.unitId);
+        }
+        job.future.cancel(false);
+        return job.exceptionResponse(Modbus.GATEWAY_TARGET_NO_RESPONSE);
+    }
+
+    /**
+     * Stops all bus workers, answering queued requests with {@link
+     * Modbus#GATEWAY_TARGET_NO_RESPONSE}. Transports are not closed.
+     */
+    @Override
+    public void close() {
+        final List<Bus> all;
+        synchronized (LOCK) {
+            if (closed)
+                return;
+            closed = true;
+            all = new ArrayList<Bus>(buses);
+        }
+        for (Bus bus : all) {
+            synchronized (bus) {
+                bus.notifyAll();
+            }
+        }
+    }
+
+
+    private Job newJob(ModbusRequest request) {
+        return new Job(request, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(responseTimeout));
+    }
+
+    private ModbusFuture<ModbusResponse> submit(Job job) {
+        final Bus bus;
+        synchronized (LOCK) {
+            bus = closed ? null : routes.get(job.unitId);
+        }
+        if (bus == null)
+            job.fail(Modbus.GATEWAY_PATH_UNAVAILABLE);
+        else if (!bus.enqueue(job))
+            job.fail(Modbus.GATEWAY_TARGET_NO_RESPONSE);
+        return job.future;
+    }
+
+}
@@ -0,0 +1,253 @@
+package cc.koosha.modbus.app;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Short lived cache of encoded Modbus/TCP responses to read requests, keyed
+ * by unit id, function code, reference and count.
+ * <p>
+ * Meant for many clients polling the same ranges: within the time to live a
+ * repeated read is answered with a copy of the frame encoded for the first
+ * one, only its transaction id patched, without going through the process
+ * image.
+ * <p>
+ * Entries overlapping a written range are {@link #invalidate(int, int, int,
+ * int) invalidated} as the write is processed. A response computed before
+ * an invalidation and stored after it is not kept: {@link #stamp()} taken
+ * before processing the request tells whether an invalidation happened
+ * since. Changes of the process image not made through requests are seen
+ * once the entries expire only.
+ *
+ * @author Koosha Hosseiny
+ */
+@ThreadSafe
+public final class ReadResponseCache {
+
+    /**
+     * Entries beyond which expired ones are purged, and new ones not stored
+     * if that was not enough.
+     */
+    private static final int MAX_ENTRIES = 4096;
+
+    private static final class Entry {
+
+        private final byte[] frame;
+        private final long expires;
+
+        private Entry(byte[] frame, long expires) {
+            this.frame = frame;
+            this.expires = expires;
+        }
+
+    }
+
+    private final long ttl;
+
+    private final Map<Long, Entry> entries = new ConcurrentHashMap<Long, Entry>();
+
+    /**
+     * Incremented by every invalidation.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param ttl  time to live of the entries, a few milliseconds usually.
+     * @param unit unit of the time to live.
+     */
+    public ReadResponseCache(long ttl, TimeUnit unit) {
+        if (ttl <= 0)
+            throw new IllegalArgumentException("ttl: " + ttl);
+        this.ttl = unit.toNanos(ttl);
+    }
+
+    /**
+     * @param unit unit of the returned time.
+     * @return time to live of the entries.
+     */
+    public long getTtl(TimeUnit unit) {
+        return unit.convert(ttl, TimeUnit.NANOSECONDS);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of entries, expired ones included.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Taken before processing a request whose response is to be {@link
+     * #put(int, int, int, int, long, byte[], int, int) stored}.
+     *
+     * @return the current stamp.
+     */
+    public long stamp() {
+        return generation.get();
+    }
+
+    /**
+     * Copies the cached response into the given buffer, with the given
+     * transaction id.
+     *
+     * @param unitId        unit id of the request.
+     * @param functionCode  function code of the request.
+     * @param reference     first address read.
+     * @param count         number of coils or registers read.
+     * @param transactionId transaction id of the request.
+     * @param dest          buffer to copy into, at the beginning.
+     * @return length of the response, or -1 if none is cached.
+     */
+    public int get(int unitId,
+                   int functionCode,
+                   int reference,
+                   int count,
+                   int transactionId,
+                   byte[] dest) {
+        final Long key = key(unitId, functionCode, reference, count);
+        final Entry entry = entries.get(key);
+        if (entry == null || entry.expires - System.nanoTime() <= 0) {
+            if (entry != null)
+                entries.remove(key);
+            misses.incrementAndGet();
+            return -1;
+        }
+        final byte[] frame = entry.frame;
+        System.arraycopy(frame, 0, dest, 0, frame.length);
+        dest[0] = (byte) (transactionId >> 8);
+        dest[1] = (byte) transactionId;
+        hits.incrementAndGet();
+        return frame.length;
+    }
+
+    /**
+     * Stores the encoded response to a read request, unless an invalidation
+     * happened since the stamp was taken.
+     *
+     * @param unitId       unit id of the request.
+     * @param functionCode function code of the request.
+     * @param reference    first address read.
+     * @param count        number of coils or registers read.
+     * @param stamp        {@link #stamp()} taken before processing the
+     *                     request.
+     * @param frame        buffer holding the response, MBAP header
+     *                     included.
+     * @param offset       start of the response.
+     * @param length       length of the response.
+     */
+    public void put(int unitId,
+                    int functionCode,
+                    int reference,
+                    int count,
+                    long stamp,
+                    byte[] frame,
+                    int offset,
+                    int length) {
+        if (stamp != generation.get())
+            return;
+        if (entries.size() >= MAX_ENTRIES && !purge())
+            return;
+        final byte[] copy = new byte[length];
+        System.arraycopy(frame, offset, copy, 0, length);
+        entries.put(key(unitId, functionCode, reference, count),
+                    new Entry(copy, System.nanoTime() + ttl));
+        // Invalidated while storing.
+        if (stamp != generation.get())
+            entries.remove(key(unitId, functionCode, reference, count));
+    }
+
+    /**
+     * Drops the responses to reads overlapping a written range.
+     *
+     * @param unitId       unit written to.
+     * @param functionCode function code of the reads of the written table.
+     * @param reference    first address written.
+     * @param count        number of coils or registers written.
+     */
+    public void invalidate(int unitId, int functionCode, int reference, int count) {
+        generation.incrementAndGet();
+        final Iterator<Long> keys = entries.keySet().iterator();
+        while (keys.hasNext()) {
+            final long key = keys.next();
+            if (unitOf(key) != unitId || functionOf(key) != functionCode)
+                continue;
+            final int start = referenceOf(key);
+            if (start < reference + count && reference < start + countOf(key))
+                keys.remove();
+        }
+    }
+
+    /**
+     * Drops the responses to all the reads of a table.
+     *
+     * @param unitId       unit written to.
+     * @param functionCode function code of the reads of the written table.
+     */
+    public void invalidate(int unitId, int functionCode) {
+        invalidate(unitId, functionCode, 0, 0x10000);
+    }
+
+    /**
+     * Drops everything.
+     */
+    public void clear() {
+        generation.incrementAndGet();
+        entries.clear();
+    }
+
+
+    /**
+     * Removes the expired entries.
+     *
+     * @return true if there is room left.
+     */
+    private boolean purge() {
+        final long now = System.nanoTime();
+        final Iterator<Entry> values = entries.values().iterator();
+        while (values.hasNext())
+            if (values.next().expires - now <= 0)
+                values.remove();
+        return entries.size() < MAX_ENTRIES;
+    }
+
+    private static Long key(int unitId, int functionCode, int reference, int count) {
+        return ((long) (unitId & 0xFF) << 40)
+                | ((long) (functionCode & 0xFF) << 32)
+                | ((long) (reference & 0xFFFF) << 16)
+                | (count & 0xFFFF);
+    }
+
+    private static int unitOf(long key) {
+        return (int) (key >>> 40) & 0xFF;
+    }
+
+    private static int functionOf(long key) {
+        return (int) (key >>> 32) & 0xFF;
+    }
+
+    private static int referenceOf(long key) {
+        return (int) (key >>> 16) & 0xFFFF;
+    }
+
+    private static int countOf(long key) {
+        return (int) key & 0xFFFF;
+    }
+
+}
@@ -0,0 +1,334 @@
+package cc.koosha.modbus.io.net;
+
+import cc.koosha.modbus.ModbusException;
+import cc.koosha.modbus.modbus.transaction.ExponentialBackoff;
+import cc.koosha.modbus.modbus.transaction.RetryPolicy;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Owns the state of a {@link TCPMasterConnection} and reconnects it in the
+ * background, so that no caller ever waits for a connect timeout.
+ * <p>
+ * Users of the connection call {@link #ensureConnected()} before using it,
+ * which fails at once while the link is down, and {@link
+ * #connectionLost(IOException)} when an I/O error shows the link is broken.
+ * The supervisor then closes the connection and tries to open it again at
+ * once on its own thread, and after each failed attempt waits as long as its
+ * {@link RetryPolicy} says before the next one. By default the wait doubles
+ * after each failure, with some jitter so that many masters do not hammer a
+ * restarting device at once. A policy giving up closes the supervisor.
+ * <p>
+ * {@link Listener}s are told of every change of state.
+ *
+ * @author Koosha Hosseiny
+ */
+@Slf4j
+@ThreadSafe
+public final class ConnectionSupervisor implements Closeable {
+
+    public enum State {
+
+        /**
+         * Not started yet.
+         */
+        NEW,
+
+        /**
+         * Trying to connect, or waiting to try again.
+         */
+        CONNECTING,
+
+        CONNECTED,
+
+        CLOSED,
+
+    }
+
+    /**
+     * Notified of changes of state, on the thread making the change. Must
+     * not block.
+     */
+    public interface Listener {
+
+        /**
+         * @param supervisor the supervisor.
+         * @param from       previous state.
+         * @param to         new state.
+         * @param cause      error which caused the change, or null.
+         */
+        void stateChanged(ConnectionSupervisor supervisor, State from, State to, IOException cause);
+
+    }
+
+    private final Object LOCK = new Object();
+
+    @Getter
+    private final TCPMasterConnection connection;
+
+    /**
+     * Decides the wait after each failed connection attempt. Its failures
+     * count the attempts failed since the supervisor started or the
+     * connection was lost, the first one being 1.
+     */
+    @Getter
+    private final RetryPolicy retryPolicy;
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    private final Runnable connect = new Runnable() {
+        @Override
+        public void run() {
+            connect();
+        }
+    };
+
+    // ------------------- guarded by LOCK
+
+    private State state = State.NEW;
+
+    /**
+     * Failed attempts since the connection was lost.
+     */
+    private int failures;
+
+    /**
+     * When the connection was lost, {@link System#nanoTime()}.
+     */
+    private long lostAt;
+
+
+    public ConnectionSupervisor(@NonNull TCPMasterConnection connection,
+                                @NonNull RetryPolicy retryPolicy) {
+        this.connection = connection;
+        this.retryPolicy = retryPolicy;
+        this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "j2mod-reconnect");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * Supervises with an {@link ExponentialBackoff} never giving up.
+     *
+     * @param connection the connection.
+     * @param minDelay   wait after the first failed connection attempt, in
+     *                   milliseconds.
+     * @param maxDelay   maximum wait between reconnection attempts, in
+     *                   milliseconds.
+     */
+    public ConnectionSupervisor(TCPMasterConnection connection, long minDelay, long maxDelay) {
+        this(connection, backoff(minDelay, maxDelay));
+    }
+
+    public void addListener(@NonNull Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public State getState() {
+        synchronized (LOCK) {
+            return state;
+        }
+    }
+
+    public boolean isConnected() {
+        return getState() == State.CONNECTED;
+    }
+
+    /**
+     * Starts connecting in the background. Does nothing if already started.
+     */
+    public void start() {
+        synchronized (LOCK) {
+            if (state != State.NEW)
+                return;
+            lostAt = System.nanoTime();
+        }
+        change(State.NEW, State.CONNECTING, null);
+        submit(0);
+    }
+
+    /**
+     * Fails at once if the connection is not usable.
+     *
+     * @throws ModbusException if the connection is not connected.
+     */
+    public void ensureConnected() throws ModbusException {
+        final State current = getState();
+        if (current != State.CONNECTED)
+            throw new ModbusException("not connected to %s:%d (%s)",
+                                      connection.getAddress(), connection.getPort(), current);
+    }
+
+    /**
+     * Tells the supervisor the connection is broken. It is closed, and
+     * opened again in the background. Calls made while already reconnecting
+     * are ignored.
+     *
+     * @param cause the error showing the connection is broken.
+     */
+    public void connectionLost(IOException cause) {
+        if (!change(State.CONNECTED, State.CONNECTING, cause))
+            return;
+        log.debug("connection to {}:{} lost: {}", connection.getAddress(), connection.getPort(),
+                  cause == null ? null : cause.getMessage());
+        synchronized (LOCK) {
+            lostAt = System.nanoTime();
+            failures = 0;
+        }
+        closeConnection();
+        submit(0);
+    }
+
+    /**
+     * Stops reconnecting and closes the connection.
+     */
+    @Override
+    public void close() {
+        final State from;
+        synchronized (LOCK) {
+            from = state;
+            if (from == State.CLOSED)
+                return;
+            state = State.CLOSED;
+        }
+        executor.shutdownNow();
+        closeConnection();
+        notifyListeners(from, State.CLOSED, null);
+    }
+
+
+    /**
+     * On the supervisor thread.
+     */
+    private void connect() {
+        if (getState() != State.CONNECTING)
+            return;
+        try {
+            connection.connect();
+        }
+        catch (Exception e) {
+            final int tries;
+            synchronized (LOCK) {
+                if (state != State.CONNECTING)
+                    return;
+                tries = ++failures;
+            }
+            log.debug("connecting to {}:{} failed (try {}): {}",
+                      connection.getAddress(), connection.getPort(), tries, e.getMessage());
+            retry(tries, e);
+            return;
+        }
+
+        synchronized (LOCK) {
+            failures = 0;
+        }
+        if (!change(State.CONNECTING, State.CONNECTED, null))
+            closeConnection(); // closed meanwhile
+        else
+            log.debug("connected to {}:{}", connection.getAddress(), connection.getPort());
+    }
+
+    /**
+     * Schedules the next attempt, or closes if the policy gives up.
+     *
+     * @param failures attempts failed so far.
+     * @param cause    error of the last attempt.
+     */
+    private void retry(int failures, Exception cause) {
+        final long elapsed;
+        synchronized (LOCK) {
+            elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lostAt);
+        }
+        final long delay = retryPolicy.getDelay(failures, elapsed);
+        if (delay < 0) {
+            log.warn("giving up connecting to {}:{} after {} ms", connection.getAddress(), connection.getPort(),
+                     elapsed, cause);
+            close();
+            return;
+        }
+        log.trace("retrying in {} ms", delay);
+        submit(delay);
+    }
+
+    private static RetryPolicy backoff(long minDelay, long maxDelay) {
+        if (minDelay <= 0)
+            throw new IllegalArgumentException("minDelay: " + minDelay);
+        if (maxDelay < minDelay)
+            throw new IllegalArgumentException("maxDelay less than minDelay: " + maxDelay);
+        return ExponentialBackoff.builder()
+                                 .baseDelay(minDelay)
+                                 .maxDelay(maxDelay)
+                                 .build();
+    }
+
+    private void submit(long delay) {
+        try {
+            executor.schedule(connect, delay, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e) {
+            log.trace("supervisor closed, not reconnecting");
+        }
+    }
+
+    private void closeConnection() {
+        try {
+            connection.close();
+        }
+        catch (IOException e) {
+            log.debug("failed to close connection: {}", e.getMessage());
+        }
+        catch (RuntimeException e) {
+            // Never opened, no transport yet.
+            log.trace("failed to close connection", e);
+        }
+    }
+
+    /**
+     * Moves from one state to another, if still in the first.
+     */
+    private boolean change(State from, State to, IOException cause) {
+        synchronized (LOCK) {
+            if (state != from)
+                return false;
+            state = to;
+        }
+        notifyListeners(from, to, cause);
+        return true;
+    }
+
+    private void notifyListeners(State from, State to, IOException cause) {
+        for (Listener listener : listeners) {
+            try {
+                listener.stateChanged(this, from, to, cause);
+            }
+            catch (RuntimeException e) {
+                log.error("connection listener failed", e);
+            }
+        }
+    }
+
+}
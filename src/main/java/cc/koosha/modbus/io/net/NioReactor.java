@@ -0,0 +1,372 @@
+package cc.koosha.modbus.io.net;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Drives many non-blocking channels from a single I/O thread.
+ * <p>
+ * All channel operations, and all state of the {@link ChannelHandler}s
+ * registered to a reactor, are touched only from the reactor thread. Other
+ * threads hand work to the reactor with {@link #execute(Runnable)} and
+ * {@link #schedule(Runnable, long, TimeUnit)}, so handlers need no locking.
+ * <p>
+ * One reactor can serve hundreds of connections. To use more than one core,
+ * create a few reactors and spread the connections among them.
+ * <p>
+ * Handlers and tasks must never block, they would stall every other channel
+ * served by the same reactor.
+ *
+ * @author Koosha Hosseiny
+ */
+@Slf4j
+@ThreadSafe
+public final class NioReactor implements Closeable {
+
+    /**
+     * Notified by the reactor when the channel it is registered with is
+     * ready.
+     */
+    public interface ChannelHandler {
+
+        /**
+         * Called on the reactor thread when the key is ready for any of its
+         * interest operations.
+         *
+         * @param key the ready key.
+         * @throws IOException the handler is closed by the reactor.
+         */
+        void ready(SelectionKey key) throws IOException;
+
+        /**
+         * Called on the reactor thread when {@link #ready(SelectionKey)}
+         * fails, or the reactor is closed.
+         *
+         * @param cause cause of the failure.
+         */
+        void failed(IOException cause);
+
+    }
+
+    /**
+     * A task scheduled on the reactor.
+     */
+    public static final class Scheduled implements Comparable<Scheduled> {
+
+        private final NioReactor reactor;
+        private final Runnable task;
+        private final long deadline;
+        private final long seq;
+        private volatile boolean cancelled;
+
+        private Scheduled(NioReactor reactor, Runnable task, long deadline, long seq) {
+            this.reactor = reactor;
+            this.task = task;
+            this.deadline = deadline;
+            this.seq = seq;
+        }
+
+        /**
+         * Cancels the task if it is not ran yet. Cancelling an already ran
+         * task has no effect.
+         */
+        public void cancel() {
+            if (cancelled)
+                return;
+            this.cancelled = true;
+            reactor.cancelledTimers.incrementAndGet();
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public int compareTo(Scheduled o) {
+            if (deadline != o.deadline)
+                return deadline - o.deadline < 0 ? -1 : 1;
+            return seq < o.seq ? -1 : (seq == o.seq ? 0 : 1);
+        }
+
+    }
+
+
+    private final Selector selector;
+    private final Thread thread;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    /**
+     * Accessed from reactor thread only.
+     */
+    private final PriorityQueue<Scheduled> timers = new PriorityQueue<Scheduled>();
+
+    /**
+     * Accessed from reactor thread only.
+     */
+    private final Queue<Runnable> deferred = new ArrayDeque<Runnable>();
+
+    private final AtomicLong seq = new AtomicLong();
+
+    /**
+     * Timers cancelled since the last purge. Only an estimate, tasks
+     * cancelled after they ran are counted too.
+     */
+    private final AtomicInteger cancelledTimers = new AtomicInteger();
+
+    private volatile boolean running = true;
+
+    /**
+     * Opens the selector and starts the reactor thread.
+     *
+     * @param name name of the reactor thread.
+     * @throws IOException if the selector can not be opened.
+     */
+    public NioReactor(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Checks whether if the current thread is the reactor thread.
+     *
+     * @return true if called from the reactor thread.
+     */
+    public boolean inReactor() {
+        return Thread.currentThread() == thread;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Runs the task on the reactor thread. If called from the reactor thread
+     * the task runs immediately.
+     *
+     * @param task task to run.
+     */
+    public void execute(Runnable task) {
+        if (inReactor()) {
+            task.run();
+            return;
+        }
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the task at the end of the current pass of the reactor, once the
+     * pending tasks, due timers and ready channels are all handled. Lets a
+     * handler gather the work of a whole pass, such as frames queued by
+     * several tasks, and act on it once. Must be called from the reactor
+     * thread.
+     *
+     * @param task task to run.
+     */
+    public void defer(Runnable task) {
+        ensureInReactor();
+        deferred.add(task);
+    }
+
+    /**
+     * Runs the task on the reactor thread after the given delay.
+     *
+     * @param task  task to run.
+     * @param delay delay before running the task.
+     * @param unit  unit of the delay.
+     * @return a handle to cancel the task with.
+     */
+    public Scheduled schedule(Runnable task, long delay, TimeUnit unit) {
+        final Scheduled scheduled = new Scheduled(
+                this, task, System.nanoTime() + unit.toNanos(delay), seq.getAndIncrement());
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                timers.add(scheduled);
+            }
+        });
+        return scheduled;
+    }
+
+    /**
+     * Registers the channel with the reactor selector. Must be called from
+     * the reactor thread.
+     *
+     * @param channel the channel, must be in non-blocking mode.
+     * @param ops     the interest set.
+     * @param handler handler notified when the channel is ready.
+     * @return the registered key.
+     * @throws ClosedChannelException if the channel is closed.
+     */
+    public SelectionKey register(SelectableChannel channel,
+                                 int ops,
+                                 ChannelHandler handler) throws ClosedChannelException {
+        ensureInReactor();
+        return channel.register(selector, ops, handler);
+    }
+
+    /**
+     * Stops the reactor thread and notifies all registered handlers.
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+
+    private void ensureInReactor() {
+        if (!inReactor())
+            throw new IllegalStateException("not in reactor thread");
+    }
+
+    private void loop() {
+        log.debug("reactor started");
+        while (running) {
+            try {
+                runTasks();
+                final long wait = runTimers();
+                if (!running)
+                    break;
+                if (wait < 0)
+                    selector.selectNow();
+                else
+                    selector.select(wait);
+                dispatch();
+                runDeferred();
+            }
+            catch (IOException e) {
+                log.error("selector failed", e);
+                break;
+            }
+            catch (RuntimeException e) {
+                log.error("reactor task failed", e);
+            }
+        }
+        shutdown();
+        log.debug("reactor stopped");
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null)
+            try {
+                task.run();
+            }
+            catch (RuntimeException e) {
+                log.error("reactor task failed", e);
+            }
+    }
+
+    /**
+     * Runs the tasks deferred so far, the ones they defer run at the end of
+     * the next pass.
+     */
+    private void runDeferred() {
+        for (int i = deferred.size(); i > 0; i--)
+            try {
+                deferred.poll().run();
+            }
+            catch (RuntimeException e) {
+                log.error("deferred task failed", e);
+            }
+    }
+
+    /**
+     * @return how long the selector may block in milliseconds, 0 to block
+     * indefinitely, or -1 to not block at all.
+     */
+    private long runTimers() {
+        purgeTimers();
+        while (!timers.isEmpty()) {
+            final Scheduled head = timers.peek();
+            if (head.isCancelled()) {
+                timers.poll();
+                continue;
+            }
+            final long remaining = head.deadline - System.nanoTime();
+            if (remaining > 0)
+                return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+            timers.poll();
+            try {
+                head.task.run();
+            }
+            catch (RuntimeException e) {
+                log.error("scheduled task failed", e);
+            }
+        }
+        return tasks.isEmpty() && deferred.isEmpty() ? 0 : -1;
+    }
+
+    /**
+     * Cancelled timers are dropped when they reach the head of the queue,
+     * which for long timeouts cancelled early, such as response timeouts,
+     * may take a while. Once they are more than half of the queue, they are
+     * all removed at once.
+     */
+    private void purgeTimers() {
+        if (cancelledTimers.get() <= timers.size() / 2)
+            return;
+        cancelledTimers.set(0);
+        final Iterator<Scheduled> it = timers.iterator();
+        while (it.hasNext())
+            if (it.next().isCancelled())
+                it.remove();
+    }
+
+    private void dispatch() {
+        final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            final SelectionKey key = keys.next();
+            keys.remove();
+            final ChannelHandler handler = (ChannelHandler) key.attachment();
+            try {
+                if (key.isValid())
+                    handler.ready(key);
+            }
+            catch (IOException e) {
+                key.cancel();
+                handler.failed(e);
+            }
+        }
+    }
+
+    private void shutdown() {
+        final IOException cause = new IOException("reactor closed");
+        for (SelectionKey key : selector.keys()) {
+            key.cancel();
+            ((ChannelHandler) key.attachment()).failed(cause);
+        }
+        try {
+            selector.close();
+        }
+        catch (IOException e) {
+            log.debug("failed to close selector", e);
+        }
+    }
+
+}
@@ -0,0 +1,533 @@
+package cc.koosha.modbus.io.net;
+
+import cc.koosha.modbus.Modbus;
+import cc.koosha.modbus.modbus.transport.MBAPFrameDecoder;
+import cc.koosha.modbus.xinternal.J2ModDebugUtils;
+import cc.koosha.modbus.xinternal.J2ModPrecondition;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Non-blocking equivalent of {@link TCPMasterConnection}, driven by a {@link
+ * NioReactor}.
+ * <p>
+ * The connection only deals with bytes: it writes the frames given to it and
+ * splits the incoming stream into Modbus/TCP (MBAP) frames with a {@link
+ * MBAPFrameDecoder}, which are handed to its {@link Listener}. Encoding and
+ * decoding of messages is done by {@link
+ * cc.koosha.modbus.modbus.transport.ModbusNioTCPTransport}.
+ * <p>
+ * Frames are written as soon as they are queued, unless write coalescing is
+ * enabled with {@link #setWriteCoalescing(int, long)}: frames queued close
+ * together, such as a poll cycle pipelined to a gateway, are then gathered
+ * and written with a single system call, and usually leave in a single TCP
+ * segment.
+ * <p>
+ * With {@link #setTls(TLSConfig)} the connection speaks Modbus/TCP Security:
+ * frames are carried over TLS, and the listener is told the connection is
+ * up once the handshake is over. The connect timeout covers the handshake.
+ * <p>
+ * All methods can be called from any thread, the actual work is done on the
+ * reactor thread. Listener methods are always called on the reactor thread.
+ *
+ * @author Koosha Hosseiny
+ */
+@Slf4j
+public final class NioTCPMasterConnection implements Closeable, NioReactor.ChannelHandler {
+
+    /**
+     * Receives connection events, called on the reactor thread.
+     */
+    public interface Listener {
+
+        void connected(NioTCPMasterConnection connection);
+
+        /**
+         * A complete frame, header included, is received.
+         * <p>
+         * The buffer is reused by the connection and is only valid during the
+         * call.
+         *
+         * @param connection the connection the frame is received on.
+         * @param buffer     buffer holding the frame.
+         * @param offset     start of the frame in the buffer.
+         * @param length     length of the frame.
+         */
+        void frameReceived(NioTCPMasterConnection connection, byte[] buffer, int offset, int length);
+
+        void closed(NioTCPMasterConnection connection, IOException cause);
+
+    }
+
+    private enum State {
+        DISCONNECTED,
+        CONNECTING,
+        CONNECTED,
+    }
+
+    /**
+     * Most frames written with a single system call.
+     */
+    private static final int MAX_GATHER = 64;
+
+    @Getter
+    private final NioReactor reactor;
+
+    @Getter
+    private final InetAddress address;
+
+    @Getter
+    private final int port;
+
+    /**
+     * Connect timeout in milliseconds.
+     */
+    @Getter
+    private final int timeout;
+
+    private Listener listener;
+
+    /**
+     * Queued bytes causing an immediate flush, 0 if coalescing is disabled.
+     */
+    private volatile int coalesceBytes;
+
+    /**
+     * How long queued frames may wait for others, in microseconds.
+     */
+    private volatile long lingerMicros;
+
+    /**
+     * TLS settings, null for plain Modbus/TCP.
+     */
+    private volatile TLSConfig tls;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            linger = null;
+            flushPending = false;
+            if (state != State.CONNECTED)
+                return;
+            try {
+                flush();
+            }
+            catch (IOException e) {
+                doClose(e);
+            }
+        }
+    };
+
+    // ------------------- reactor thread only
+
+    private State state = State.DISCONNECTED;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private NioReactor.Scheduled connectTimeout;
+
+    private final MBAPFrameDecoder decoder = new MBAPFrameDecoder();
+    private final Queue<ByteBuffer> writeQueue = new ArrayDeque<ByteBuffer>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private long queuedBytes;
+    private boolean flushPending;
+    private NioReactor.Scheduled linger;
+    private TLSLink link;
+
+
+    public NioTCPMasterConnection(@NonNull NioReactor reactor,
+                                  @NonNull InetAddress address,
+                                  int port,
+                                  int timeout) {
+        this.reactor = reactor;
+        this.address = address;
+        this.port = port;
+        this.timeout = timeout;
+    }
+
+    public NioTCPMasterConnection(NioReactor reactor, InetAddress address) {
+        this(reactor, address, Modbus.DEFAULT_PORT, Modbus.DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Sets the listener, must be called before connecting.
+     *
+     * @param listener listener of this connection.
+     */
+    public void setListener(@NonNull Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Starts connecting if not already connected or connecting. The listener
+     * is notified once connected.
+     */
+    public void connect() {
+        reactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                doConnect();
+            }
+        });
+    }
+
+    /**
+     * Queues the frame for writing. The buffer must not be modified until the
+     * frame is written.
+     *
+     * @param frame the frame to write, from its position to its limit.
+     */
+    public void write(final ByteBuffer frame) {
+        reactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                doWrite(frame);
+            }
+        });
+    }
+
+    /**
+     * Enables write coalescing: queued frames are not written at once but
+     * when they add up to the given number of bytes, or when the linger time
+     * is over, whichever comes first. With no linger, the frames queued
+     * during a pass of the reactor, by the tasks it has pending and by the
+     * responses it reads, are written together at the end of the pass.
+     * <p>
+     * The reactor has a resolution of a millisecond, a linger of a few
+     * microseconds waits for the next tick at most.
+     *
+     * @param maxBytes     queued bytes causing an immediate write, 0 to
+     *                     disable coalescing.
+     * @param lingerMicros how long a frame may wait for others, in
+     *                     microseconds.
+     */
+    public void setWriteCoalescing(int maxBytes, long lingerMicros) {
+        J2ModPrecondition.ensureIsInRange(maxBytes, 0, Integer.MAX_VALUE, "maxBytes");
+        if (lingerMicros < 0)
+            throw new IllegalArgumentException("lingerMicros: " + lingerMicros);
+        this.lingerMicros = lingerMicros;
+        this.coalesceBytes = maxBytes;
+    }
+
+    public int getCoalesceBytes() {
+        return coalesceBytes;
+    }
+
+    public long getLingerMicros() {
+        return lingerMicros;
+    }
+
+    public TLSConfig getTls() {
+        return tls;
+    }
+
+    /**
+     * Enables TLS, used from the next connect. The device's certificate is
+     * checked against the {@link TLSConfig#hostName(InetAddress) host name}
+     * of the address, which should be looked up by name for devices with a
+     * certificate naming them.
+     *
+     * @param tls TLS settings, null for plain Modbus/TCP.
+     */
+    public void setTls(TLSConfig tls) {
+        this.tls = tls;
+    }
+
+    /**
+     * Tests if this connection is connected. Only meaningful on the reactor
+     * thread.
+     *
+     * @return true if connected.
+     */
+    public boolean isConnected() {
+        return state == State.CONNECTED;
+    }
+
+    @Override
+    public void close() {
+        reactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                doClose(new IOException("connection closed"));
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "NioTCPMasterConnection(" + address + ":" + port + ")";
+    }
+
+    // ------------------- NioReactor.ChannelHandler
+
+    @Override
+    public void ready(SelectionKey key) throws IOException {
+        if (key.isConnectable())
+            finishConnect();
+        if (key.isValid() && key.isReadable())
+            read();
+        if (key.isValid() && key.isWritable())
+            writable();
+    }
+
+    @Override
+    public void failed(IOException cause) {
+        doClose(cause);
+    }
+
+    // ------------------- reactor thread
+
+    private void doConnect() {
+        if (state != State.DISCONNECTED)
+            return;
+        if (listener == null)
+            throw new IllegalStateException("listener not set");
+        try {
+            log.debug("connecting to {}:{}", address, port);
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().setKeepAlive(true);
+            state = State.CONNECTING;
+            connectTimeout = reactor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (state == State.CONNECTING)
+                        doClose(new IOException("connect timed out: " + address + ":" + port));
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+            if (channel.connect(new InetSocketAddress(address, port))) {
+                key = reactor.register(channel, SelectionKey.OP_READ, this);
+                channelConnected();
+            }
+            else {
+                key = reactor.register(channel, SelectionKey.OP_CONNECT, this);
+            }
+        }
+        catch (IOException e) {
+            doClose(e);
+        }
+    }
+
+    private void finishConnect() throws IOException {
+        if (!channel.finishConnect())
+            return;
+        key.interestOps(SelectionKey.OP_READ);
+        channelConnected();
+    }
+
+    /**
+     * The TCP connection is up, starts the TLS handshake if needed.
+     */
+    private void channelConnected() throws IOException {
+        final TLSConfig tls = this.tls;
+        if (tls == null) {
+            connected();
+            return;
+        }
+        link = new TLSLink(tls.createEngine(TLSConfig.hostName(address), port));
+        link.begin(channel);
+        handshakeProgress();
+    }
+
+    private void handshakeProgress() {
+        if (state == State.CONNECTING && link.isEstablished())
+            connected();
+        else
+            updateInterest();
+    }
+
+    private void connected() {
+        log.debug("connected to {}:{}", address, port);
+        connectTimeout.cancel();
+        state = State.CONNECTED;
+        updateInterest();
+        listener.connected(this);
+    }
+
+    private void updateInterest() {
+        final boolean write = link != null && link.hasPendingOutput()
+                              || state == State.CONNECTED && !writeQueue.isEmpty();
+        key.interestOps(write
+                        ? key.interestOps() | SelectionKey.OP_WRITE
+                        : key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    private void writable() throws IOException {
+        if (link != null) {
+            link.writable(channel);
+            if (state == State.CONNECTING) {
+                handshakeProgress();
+                return;
+            }
+        }
+        flush();
+    }
+
+    private void doWrite(ByteBuffer frame) {
+        writeQueue.add(frame);
+        queuedBytes += frame.remaining();
+        if (state != State.CONNECTED)
+            return;
+        // Socket buffer full, written once writable.
+        if ((key.interestOps() & SelectionKey.OP_WRITE) != 0)
+            return;
+
+        final int budget = coalesceBytes;
+        if (budget > 0 && queuedBytes < budget) {
+            if (flushPending)
+                return;
+            flushPending = true;
+            final long delay = lingerMicros;
+            if (delay == 0)
+                reactor.defer(flushTask);
+            else
+                linger = reactor.schedule(flushTask, delay, TimeUnit.MICROSECONDS);
+            return;
+        }
+        try {
+            flush();
+        }
+        catch (IOException e) {
+            doClose(e);
+        }
+    }
+
+    /**
+     * Writes as much of the queue as the socket takes, up to {@link
+     * #MAX_GATHER} frames per system call.
+     */
+    private void flush() throws IOException {
+        cancelLinger();
+        if (link != null && link.hasPendingOutput()) {
+            link.writable(channel);
+            if (link.hasPendingOutput()) {
+                updateInterest();
+                return;
+            }
+        }
+        while (!writeQueue.isEmpty()) {
+            int count = 0;
+            long batch = 0;
+            for (ByteBuffer buffer : writeQueue) {
+                if (count == gather.length)
+                    break;
+                gather[count++] = buffer;
+                batch += buffer.remaining();
+            }
+            final long written;
+            try {
+                written = link == null
+                          ? channel.write(gather, 0, count)
+                          : link.wrap(channel, gather, 0, count);
+            }
+            finally {
+                Arrays.fill(gather, 0, count, null);
+            }
+            queuedBytes -= written;
+            ByteBuffer head;
+            while ((head = writeQueue.peek()) != null && !head.hasRemaining())
+                writeQueue.poll();
+            if (written < batch)
+                break; // socket buffer full
+        }
+        updateInterest();
+    }
+
+    private void read() throws IOException {
+        if (link != null) {
+            readTls();
+            return;
+        }
+        try {
+            decoder.read(channel);
+        }
+        catch (EOFException e) {
+            throw new IOException("connection closed by peer: " + address + ":" + port, e);
+        }
+        deliver();
+    }
+
+    private void readTls() throws IOException {
+        if (!link.receive(channel))
+            throw new IOException("connection closed by peer: " + address + ":" + port);
+        ByteBuffer plain;
+        while ((plain = link.unwrap(channel)).hasRemaining()) {
+            while (plain.hasRemaining()) {
+                final int n = Math.min(plain.remaining(), decoder.remaining());
+                decoder.feed(plain.array(), plain.arrayOffset() + plain.position(), n);
+                plain.position(plain.position() + n);
+                deliver();
+            }
+        }
+        if (state == State.CONNECTING)
+            handshakeProgress();
+        else
+            updateInterest();
+    }
+
+    /**
+     * Hands the complete frames received to the listener.
+     */
+    private void deliver() throws IOException {
+        while (decoder.next()) {
+            final byte[] buffer = decoder.getBuffer();
+            final int offset = decoder.getFrameOffset();
+            final int length = decoder.getFrameLength();
+            if (log.isTraceEnabled())
+                log.trace("read: {}", J2ModDebugUtils.toHex(buffer, offset, offset + length));
+            listener.frameReceived(this, buffer, offset, length);
+        }
+    }
+
+    private void cancelLinger() {
+        if (linger != null) {
+            linger.cancel();
+            linger = null;
+        }
+        flushPending = false;
+    }
+
+    private void doClose(IOException cause) {
+        if (state == State.DISCONNECTED && channel == null)
+            return;
+        log.debug("closing {}:{}: {}", address, port, cause.getMessage());
+        state = State.DISCONNECTED;
+        if (connectTimeout != null)
+            connectTimeout.cancel();
+        if (key != null)
+            key.cancel();
+        if (link != null && channel != null)
+            link.close(channel);
+        link = null;
+        try {
+            if (channel != null)
+                channel.close();
+        }
+        catch (IOException e) {
+            log.debug("failed to close channel", e);
+        }
+        channel = null;
+        key = null;
+        cancelLinger();
+        writeQueue.clear();
+        queuedBytes = 0;
+        decoder.clear();
+        listener.closed(this, cause);
+    }
+
+}
@@ -0,0 +1,249 @@
+package cc.koosha.modbus.io.net;
+
+import cc.koosha.modbus.ModbusException;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+/**
+ * Connection to a redundant device, reachable at several endpoints, such as a
+ * pair of controllers with an address each.
+ * <p>
+ * Each endpoint has its own {@link TCPMasterConnection}, kept open in the
+ * background by its own {@link ConnectionSupervisor}, so that the standby
+ * endpoints are connected before they are needed. Traffic goes to the
+ * {@link #getActive() active} endpoint: the first connected one, in the
+ * order given. When the active endpoint's connection is lost, which is
+ * reported by the transaction on the first I/O error or timeout, the next
+ * connected endpoint takes over at once.
+ * <p>
+ * Once an endpoint took over it stays active while connected, even if one
+ * preferred to it comes back, unless {@link #setFailback(boolean) failback}
+ * is enabled: the pair does not flap between the two.
+ * <p>
+ * A standby endpoint which dies while idle is only noticed once used, unless
+ * its connection is probed with a {@link
+ * cc.koosha.modbus.modbus.transaction.ConnectionKeepAlive}.
+ * <p>
+ * {@link Listener}s are told of every change of the active endpoint, and
+ * {@link #getSwitchCount()} and {@link #getLastSwitch()} tell how often and
+ * when it last changed.
+ *
+ * @author Koosha Hosseiny
+ * @see cc.koosha.modbus.modbus.transaction.ModbusFailoverTCPTransaction
+ */
+@Slf4j
+@ThreadSafe
+public final class RedundantTCPMasterConnection implements Closeable {
+
+    /**
+     * Notified of changes of the active endpoint, on the thread making the
+     * change. Must not block.
+     */
+    public interface Listener {
+
+        /**
+         * @param connection the redundant connection.
+         * @param from       previous active endpoint, or null if none was.
+         * @param to         new active endpoint, or null if none is
+         *                   connected.
+         */
+        void activeChanged(RedundantTCPMasterConnection connection,
+                           TCPMasterConnection from,
+                           TCPMasterConnection to);
+
+    }
+
+    private final Object LOCK = new Object();
+
+    /**
+     * Supervisors of the endpoints, in order of preference.
+     */
+    @Getter
+    private final List<ConnectionSupervisor> supervisors;
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    private volatile boolean failback;
+
+    // ------------------- guarded by LOCK
+
+    /**
+     * Index of the active endpoint, -1 if none is connected.
+     */
+    private int active = -1;
+
+    private long switchCount;
+
+    private long lastSwitch;
+
+
+    /**
+     * @param endpoints connections to the endpoints, in order of preference.
+     *                  Their supervisors take them over.
+     * @param minDelay  wait before reconnecting a lost endpoint, in
+     *                  milliseconds.
+     * @param maxDelay  maximum wait between reconnection attempts, in
+     *                  milliseconds.
+     */
+    public RedundantTCPMasterConnection(@NonNull List<TCPMasterConnection> endpoints,
+                                        long minDelay,
+                                        long maxDelay) {
+        if (endpoints.isEmpty())
+            throw new IllegalArgumentException("no endpoint");
+        final List<ConnectionSupervisor> supervisors =
+                new ArrayList<ConnectionSupervisor>(endpoints.size());
+        final ConnectionSupervisor.Listener listener = new ConnectionSupervisor.Listener() {
+            @Override
+            public void stateChanged(ConnectionSupervisor supervisor,
+                                     ConnectionSupervisor.State from,
+                                     ConnectionSupervisor.State to,
+                                     IOException cause) {
+                select();
+            }
+        };
+        for (TCPMasterConnection endpoint : endpoints) {
+            final ConnectionSupervisor supervisor = new ConnectionSupervisor(endpoint, minDelay, maxDelay);
+            supervisor.addListener(listener);
+            supervisors.add(supervisor);
+        }
+        this.supervisors = Collections.unmodifiableList(supervisors);
+    }
+
+    public void addListener(@NonNull Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public boolean isFailback() {
+        return failback;
+    }
+
+    /**
+     * Sets whether traffic goes back to a preferred endpoint as soon as it
+     * is connected again.
+     *
+     * @param failback true to always use the first connected endpoint.
+     */
+    public void setFailback(boolean failback) {
+        this.failback = failback;
+        select();
+    }
+
+    /**
+     * Starts connecting all the endpoints in the background.
+     */
+    public void start() {
+        for (ConnectionSupervisor supervisor : supervisors)
+            supervisor.start();
+    }
+
+    /**
+     * @return index of the active endpoint, or -1 if none is connected.
+     */
+    public int getActiveIndex() {
+        synchronized (LOCK) {
+            return active;
+        }
+    }
+
+    /**
+     * @return the active endpoint, or null if none is connected.
+     */
+    public TCPMasterConnection getActive() {
+        final int index = getActiveIndex();
+        return index < 0 ? null : supervisors.get(index).getConnection();
+    }
+
+    /**
+     * Fails at once if no endpoint is connected.
+     *
+     * @return index of the active endpoint.
+     * @throws ModbusException if no endpoint is connected.
+     */
+    public int ensureActive() throws ModbusException {
+        final int index = getActiveIndex();
+        if (index < 0)
+            throw new ModbusException("none of the %d endpoints is connected", supervisors.size());
+        return index;
+    }
+
+    /**
+     * @return number of times the active endpoint changed.
+     */
+    public long getSwitchCount() {
+        synchronized (LOCK) {
+            return switchCount;
+        }
+    }
+
+    /**
+     * @return {@link System#currentTimeMillis()} when the active endpoint
+     * last changed, 0 if it never did.
+     */
+    public long getLastSwitch() {
+        synchronized (LOCK) {
+            return lastSwitch;
+        }
+    }
+
+    /**
+     * Stops reconnecting and closes all the endpoints.
+     */
+    @Override
+    public void close() {
+        for (ConnectionSupervisor supervisor : supervisors)
+            supervisor.close();
+    }
+
+
+    /**
+     * Picks the active endpoint after a change of state of any of them.
+     */
+    private void select() {
+        final int from;
+        final int to;
+        synchronized (LOCK) {
+            from = active;
+            if (from >= 0 && !failback && supervisors.get(from).isConnected())
+                return;
+            int next = -1;
+            for (int i = 0; i < supervisors.size() && next < 0; i++)
+                if (supervisors.get(i).isConnected())
+                    next = i;
+            if (next == from)
+                return;
+            to = active = next;
+            switchCount++;
+            lastSwitch = System.currentTimeMillis();
+        }
+
+        final TCPMasterConnection fromConnection = from < 0 ? null : supervisors.get(from).getConnection();
+        final TCPMasterConnection toConnection = to < 0 ? null : supervisors.get(to).getConnection();
+        if (toConnection == null)
+            log.warn("no endpoint connected, {} was active", fromConnection == null ? null : fromConnection.getAddress());
+        else
+            log.info("active endpoint now {}:{}", toConnection.getAddress(), toConnection.getPort());
+        for (Listener listener : listeners) {
+            try {
+                listener.activeChanged(this, fromConnection, toConnection);
+            }
+            catch (RuntimeException e) {
+                log.error("redundant connection listener failed", e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,389 @@
+package cc.koosha.modbus.io.net;
+
+import cc.koosha.modbus.Modbus;
+import cc.koosha.modbus.xinternal.J2ModCollections;
+import cc.koosha.modbus.xinternal.J2ModPrecondition;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Pool of {@link TCPMasterConnection}s, as suggested by section 4.2.2.1 of
+ * the Modbus Messaging Implementation Guide: connections are kept open and
+ * reused between transactions, instead of paying a TCP handshake on every
+ * burst.
+ * <p>
+ * A connection is taken with {@link #acquire(InetAddress, int)}, used by a
+ * single thread, and handed back with {@link #release(TCPMasterConnection)}.
+ * A connection found broken should be handed back with {@link
+ * #invalidate(TCPMasterConnection)} instead.
+ * <p>
+ * The pool holds at most {@link #getMaxPerHost()} connections to each
+ * address / port, and {@link #getMaxTotal()} in total. When a new connection
+ * is needed and the global cap is reached, the least recently used idle
+ * connection is closed to make room. Connections {@link
+ * #mark(TCPMasterConnection, boolean) marked} as priority connections are
+ * never evicted. If no connection can be reused or evicted, the caller waits
+ * up to {@link #getAcquireTimeout()} for one to be released.
+ *
+ * @author Koosha Hosseiny
+ */
+@Slf4j
+@ThreadSafe
+public final class TCPConnectionPool implements Closeable {
+
+    /**
+     * A pooled connection.
+     */
+    private static final class Entry {
+
+        private final InetSocketAddress key;
+        private final TCPMasterConnection connection;
+        private boolean leased;
+        private boolean marked;
+
+        private Entry(InetSocketAddress key, TCPMasterConnection connection) {
+            this.key = key;
+            this.connection = connection;
+        }
+
+    }
+
+    /**
+     * Connections to a single address / port.
+     */
+    private static final class Host {
+
+        /**
+         * Connections open or being opened.
+         */
+        private int count;
+
+        /**
+         * Idle connections, the most recently used last.
+         */
+        private final ArrayDeque<Entry> idle = new ArrayDeque<Entry>();
+
+    }
+
+    private final Object LOCK = new Object();
+
+    @Getter
+    private final int maxPerHost;
+
+    @Getter
+    private final int maxTotal;
+
+    /**
+     * Connect / read timeout of new connections in milliseconds.
+     */
+    @Getter
+    private final int timeout;
+
+    /**
+     * Maximum time to wait for a free slot in milliseconds.
+     */
+    @Getter
+    private final int acquireTimeout;
+
+    // ------------------- guarded by LOCK
+
+    private final Map<InetSocketAddress, Host> hosts = J2ModCollections.newModifiableMap();
+    private final Map<TCPMasterConnection, Entry> entries = J2ModCollections.newModifiableMap();
+
+    /**
+     * All idle connections, the least recently used first.
+     */
+    private final LinkedHashSet<Entry> idle = new LinkedHashSet<Entry>();
+
+    private int total;
+    private boolean closed;
+
+
+    public TCPConnectionPool(int maxPerHost, int maxTotal, int timeout, int acquireTimeout) {
+        J2ModPrecondition.ensurePositive(maxPerHost, "maxPerHost");
+        J2ModPrecondition.ensurePositive(maxTotal, "maxTotal");
+        J2ModPrecondition.ensurePositive(timeout, "timeout");
+        J2ModPrecondition.ensurePositive(acquireTimeout, "acquireTimeout");
+        this.maxPerHost = maxPerHost;
+        this.maxTotal = maxTotal;
+        this.timeout = timeout;
+        this.acquireTimeout = acquireTimeout;
+    }
+
+    public TCPConnectionPool(int maxPerHost, int maxTotal) {
+        this(maxPerHost, maxTotal, Modbus.DEFAULT_TIMEOUT, Modbus.DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Takes an open connection to the given address from the pool, opening a
+     * new one if no idle connection is available.
+     *
+     * @param address address of the slave.
+     * @param port    port of the slave.
+     * @return an open connection, for the exclusive use of the caller until
+     * released.
+     * @throws IOException if the pool is closed, no connection could be
+     *                     had within the acquire timeout, or connecting
+     *                     failed.
+     */
+    public TCPMasterConnection acquire(@NonNull InetAddress address, int port) throws IOException {
+        final InetSocketAddress key = new InetSocketAddress(address, port);
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(acquireTimeout);
+
+        Entry entry = null;
+        synchronized (LOCK) {
+            while (entry == null) {
+                ensureOpen();
+                final Host host = host(key);
+
+                final Entry reused = takeIdle(host);
+                if (reused != null)
+                    return reused.connection;
+
+                if (host.count < maxPerHost && (total < maxTotal || evictOne())) {
+                    host.count++;
+                    total++;
+                    entry = new Entry(key, new TCPMasterConnection());
+                    break;
+                }
+
+                final long wait = deadline - System.nanoTime();
+                if (wait <= 0)
+                    throw new IOException("timeout waiting for a pooled connection to " + key);
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(LOCK, wait);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted waiting for a pooled connection to " + key);
+                }
+            }
+        }
+
+        // Connect outside the lock, the slot is already reserved.
+        final TCPMasterConnection connection = entry.connection;
+        connection.setAddress(address);
+        connection.setPort(port);
+        connection.setTimeout(timeout);
+        // Any failure, not only I/O errors, must give the slot back.
+        boolean connected = false;
+        try {
+            connection.connect(false);
+            connected = true;
+        }
+        finally {
+            if (!connected) {
+                closeQuietly(connection);
+                synchronized (LOCK) {
+                    discard(entry);
+                }
+            }
+        }
+
+        synchronized (LOCK) {
+            entry.leased = true;
+            entries.put(connection, entry);
+            if (closed) {
+                entries.remove(connection);
+                discard(entry);
+                closeQuietly(connection);
+                throw new IOException("pool closed");
+            }
+        }
+        log.debug("opened pooled connection to {}", key);
+        return connection;
+    }
+
+    /**
+     * Hands a connection back to the pool, where it's kept open for reuse.
+     *
+     * @param connection a connection taken from this pool.
+     */
+    public void release(@NonNull TCPMasterConnection connection) {
+        synchronized (LOCK) {
+            final Entry entry = leased(connection);
+            entry.leased = false;
+            if (closed || !connection.isConnected()) {
+                remove(entry);
+                closeQuietly(connection);
+                return;
+            }
+            host(entry.key).idle.addLast(entry);
+            idle.add(entry);
+            LOCK.notifyAll();
+        }
+    }
+
+    /**
+     * Closes a connection taken from this pool and frees its slot.
+     *
+     * @param connection a connection taken from this pool.
+     */
+    public void invalidate(@NonNull TCPMasterConnection connection) {
+        synchronized (LOCK) {
+            remove(leased(connection));
+        }
+        closeQuietly(connection);
+    }
+
+    /**
+     * Marks or unmarks a connection as a priority connection. Marked
+     * connections stay open while idle, even if the pool is full.
+     *
+     * @param connection a connection of this pool.
+     * @param marked     true to protect the connection from eviction.
+     */
+    public void mark(@NonNull TCPMasterConnection connection, boolean marked) {
+        synchronized (LOCK) {
+            final Entry entry = entries.get(connection);
+            if (entry == null)
+                throw new IllegalArgumentException("not a connection of this pool");
+            entry.marked = marked;
+        }
+    }
+
+    /**
+     * Number of connections open, or being opened, to all hosts.
+     *
+     * @return number of connections.
+     */
+    public int getTotal() {
+        synchronized (LOCK) {
+            return total;
+        }
+    }
+
+    /**
+     * Number of idle connections.
+     *
+     * @return number of idle connections.
+     */
+    public int getIdle() {
+        synchronized (LOCK) {
+            return idle.size();
+        }
+    }
+
+    /**
+     * Closes all idle connections. Leased connections are closed as they are
+     * released.
+     */
+    @Override
+    public void close() {
+        final List<Entry> toClose;
+        synchronized (LOCK) {
+            closed = true;
+            toClose = new ArrayList<Entry>(idle);
+            for (Entry entry : toClose)
+                remove(entry);
+            LOCK.notifyAll();
+        }
+        for (Entry entry : toClose)
+            closeQuietly(entry.connection);
+    }
+
+
+    // ------------------- guarded by LOCK
+
+    private void ensureOpen() throws IOException {
+        if (closed)
+            throw new IOException("pool closed");
+    }
+
+    private Host host(InetSocketAddress key) {
+        Host host = hosts.get(key);
+        if (host == null) {
+            host = new Host();
+            hosts.put(key, host);
+        }
+        return host;
+    }
+
+    private Entry leased(TCPMasterConnection connection) {
+        final Entry entry = entries.get(connection);
+        if (entry == null || !entry.leased)
+            throw new IllegalArgumentException("connection not leased from this pool");
+        return entry;
+    }
+
+    /**
+     * Most recently used idle connection of the host which is still open.
+     */
+    private Entry takeIdle(Host host) {
+        Entry entry;
+        while ((entry = host.idle.pollLast()) != null) {
+            idle.remove(entry);
+            if (entry.connection.isConnected()) {
+                entry.leased = true;
+                return entry;
+            }
+            remove(entry);
+            closeQuietly(entry.connection);
+        }
+        return null;
+    }
+
+    /**
+     * Closes the least recently used idle connection which is not marked.
+     */
+    private boolean evictOne() {
+        final Iterator<Entry> it = idle.iterator();
+        while (it.hasNext()) {
+            final Entry entry = it.next();
+            if (entry.marked)
+                continue;
+            log.debug("evicting idle connection to {}", entry.key);
+            remove(entry);
+            closeQuietly(entry.connection);
+            return true;
+        }
+        return false;
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry.connection);
+        idle.remove(entry);
+        host(entry.key).idle.remove(entry);
+        discard(entry);
+    }
+
+    /**
+     * Frees the slot of an entry.
+     */
+    private void discard(Entry entry) {
+        final Host host = host(entry.key);
+        host.count--;
+        total--;
+        if (host.count == 0)
+            hosts.remove(entry.key);
+        LOCK.notifyAll();
+    }
+
+    private static void closeQuietly(TCPMasterConnection connection) {
+        try {
+            connection.close();
+        }
+        catch (IOException e) {
+            log.debug("error closing pooled connection", e);
+        }
+        catch (RuntimeException e) {
+            log.debug("error closing pooled connection", e);
+        }
+    }
+
+}
@@ -18,16 +18,19 @@ package cc.koosha.modbus.io.net;
 import cc.koosha.modbus.Modbus;
 import cc.koosha.modbus.modbus.transport.ModbusRTUTCPTransport;
 import cc.koosha.modbus.modbus.transport.ModbusTCPTransport;
+import cc.koosha.modbus.util.TransactionIdAllocator;
 import cc.koosha.modbus.xinternal.J2ModUtils;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
+import javax.net.ssl.SSLSocket;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -44,20 +47,48 @@ import java.net.Socket;
 public final class TCPMasterConnection implements Closeable {
 
     private Socket socket;
+
+    @Setter
+    @Getter
     private int timeout = Modbus.DEFAULT_TIMEOUT;
+
     private boolean connected;
 
     @Setter
+    @Getter
     private InetAddress address;
 
+    @Setter
+    @Getter
     private int port = Modbus.DEFAULT_PORT;
 
     @Setter
     @Getter
     private ModbusTCPTransport transport;
 
+    /**
+     * TLS settings, null for plain Modbus/TCP. Used from the next connect.
+     * The device's certificate is checked against the {@link
+     * TLSConfig#hostName(InetAddress) host name} of the address.
+     */
+    @Setter
+    @Getter
+    private TLSConfig tls;
+
     private boolean useRtuOverTcp = false;
 
+    /**
+     * Transaction ids of the requests sent on this connection.
+     */
+    @Getter
+    private final TransactionIdAllocator transactionIds = new TransactionIdAllocator();
+
+    /**
+     * {@link System#nanoTime()} when the last response was received, or the
+     * connection opened.
+     */
+    private volatile long lastUsed = System.nanoTime();
+
     /**
      * useUrgentData - sent a byte of urgent data when testing the TCP connection.
      */
@@ -126,10 +157,31 @@ public final class TCPMasterConnection implements Closeable {
 
             socket.connect(new InetSocketAddress(address, port), timeout);
 
+            if (tls != null) {
+                // A failed handshake, such as a rejected certificate, must
+                // not leave the plain socket open behind it.
+                SSLSocket ssl = null;
+                boolean secured = false;
+                try {
+                    ssl = tls.createSocket(socket, TLSConfig.hostName(address), port);
+                    ssl.setSoTimeout(timeout);
+                    ssl.startHandshake();
+                    secured = true;
+                }
+                finally {
+                    if (!secured) {
+                        closeQuietly(ssl);
+                        closeQuietly(socket);
+                    }
+                }
+                socket = ssl;
+            }
+
             // Prepare the transport
 
             prepareTransport(useRtuOverTcp);
             connected = true;
+            touch();
         }
     }
 
@@ -182,6 +234,21 @@ public final class TCPMasterConnection implements Closeable {
         return connected;
     }
 
+    /**
+     * Records that the peer answered, the connection is alive.
+     */
+    public void touch() {
+        lastUsed = System.nanoTime();
+    }
+
+    /**
+     * @return milliseconds since the peer last answered, or the connection
+     * was opened.
+     */
+    public long getIdleTime() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastUsed);
+    }
+
     @Override
     public void close() throws IOException {
         try {
@@ -206,4 +273,15 @@ public final class TCPMasterConnection implements Closeable {
         }
     }
 
+    private static void closeQuietly(Socket socket) {
+        if (socket == null)
+            return;
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+            log.debug("failed to close socket", e);
+        }
+    }
+
 }
@@ -0,0 +1,180 @@
+package cc.koosha.modbus.io.net;
+
+import lombok.Builder;
+import lombok.NonNull;
+import lombok.Value;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Modbus/TCP Security settings, TLS on port {@link
+ * cc.koosha.modbus.Modbus#DEFAULT_TLS_PORT}.
+ * <p>
+ * The specification requires TLS 1.2 or later with mutual authentication:
+ * the context must hold the certificate of this master, and trust those of
+ * the devices. {@link #createContext(KeyStore, char[], KeyStore, int, int)}
+ * builds one from key stores, a self-signed certificate being enough for
+ * tests.
+ * <p>
+ * The certificate of the device must name it: the host name, or address,
+ * the connection was given must be one of the certificate's subject
+ * alternative names, as for HTTPS. This can be turned off with {@link
+ * #isVerifyHostName()} when devices share a certificate not naming them, the
+ * trust store then being the only check.
+ * <p>
+ * Engines and sockets are created for a given peer address, so that the
+ * context's session cache resumes earlier sessions with the same device:
+ * reconnecting then costs an abbreviated handshake, without the public key
+ * operations.
+ *
+ * @author Koosha Hosseiny
+ */
+@Value
+@Builder
+public class TLSConfig {
+
+    private static final String[] NONE = new String[0];
+
+    /**
+     * Context holding keys, trusted certificates and the session cache,
+     * shared by all the connections.
+     */
+    @NonNull
+    private final SSLContext context;
+
+    /**
+     * Protocols to enable, those not supported by the runtime are skipped.
+     */
+    @NonNull
+    @Builder.Default
+    private final String[] protocols = {"TLSv1.3", "TLSv1.2"};
+
+    /**
+     * Cipher suites to enable, or null for the context's default.
+     */
+    private final String[] cipherSuites;
+
+    /**
+     * Whether the certificate of the device must match its host name.
+     */
+    @Builder.Default
+    private final boolean verifyHostName = true;
+
+    /**
+     * Creates a context from key stores.
+     *
+     * @param keyStore           the key and certificate of this master.
+     * @param keyPassword        password of the key.
+     * @param trustStore         certificates of the devices, or of the
+     *                           authority having signed them.
+     * @param sessionCacheSize   sessions kept for resumption, 0 for no
+     *                           limit. Should be at least the number of
+     *                           devices.
+     * @param sessionTimeoutSecs how long a session may be resumed, in
+     *                           seconds, 0 for no limit.
+     * @return the context.
+     * @throws GeneralSecurityException if the stores can not be used.
+     */
+    public static SSLContext createContext(@NonNull KeyStore keyStore,
+                                           char[] keyPassword,
+                                           @NonNull KeyStore trustStore,
+                                           int sessionCacheSize,
+                                           int sessionTimeoutSecs) throws GeneralSecurityException {
+        final KeyManagerFactory keys =
+                KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(keyStore, keyPassword);
+        final TrustManagerFactory trust =
+                TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(trustStore);
+
+        final SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keys.getKeyManagers(), trust.getTrustManagers(), null);
+        final SSLSessionContext sessions = context.getClientSessionContext();
+        sessions.setSessionCacheSize(sessionCacheSize);
+        sessions.setSessionTimeout(sessionTimeoutSecs);
+        return context;
+    }
+
+    /**
+     * Name of the peer checked against its certificate, the host name the
+     * address was created with if any, or else its literal address. Never
+     * looks the name up.
+     *
+     * @param address address of the peer.
+     * @return the name of the peer.
+     */
+    public static String hostName(@NonNull InetAddress address) {
+        return new InetSocketAddress(address, 0).getHostString();
+    }
+
+    /**
+     * Creates a client engine for the given peer.
+     *
+     * @param host peer host name, or address, checked against its
+     *             certificate and the key of the session cache.
+     * @param port peer port.
+     * @return the engine, handshake not started.
+     */
+    public SSLEngine createEngine(String host, int port) {
+        final SSLEngine engine = context.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        engine.setSSLParameters(parameters(engine.getSSLParameters(), engine.getSupportedProtocols()));
+        return engine;
+    }
+
+    /**
+     * Layers a client TLS socket over a connected socket. The handshake is
+     * not started.
+     *
+     * @param socket the connected socket, closed with the returned one.
+     * @param host   peer host name, or address, checked against its
+     *               certificate and the key of the session cache.
+     * @param port   peer port.
+     * @return the TLS socket.
+     * @throws IOException if the socket can not be created.
+     */
+    public SSLSocket createSocket(Socket socket, String host, int port) throws IOException {
+        final SSLSocket ssl = (SSLSocket) context.getSocketFactory()
+                                                 .createSocket(socket, host, port, true);
+        ssl.setUseClientMode(true);
+        ssl.setSSLParameters(parameters(ssl.getSSLParameters(), ssl.getSupportedProtocols()));
+        return ssl;
+    }
+
+    private SSLParameters parameters(SSLParameters parameters, String[] supportedProtocols) {
+        parameters.setProtocols(supported(protocols, supportedProtocols));
+        if (cipherSuites != null)
+            parameters.setCipherSuites(cipherSuites);
+        if (verifyHostName)
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        return parameters;
+    }
+
+    private static String[] supported(String[] wanted, String[] supported) {
+        final List<String> available = Arrays.asList(supported);
+        final List<String> enabled = new ArrayList<String>(wanted.length);
+        for (String protocol : wanted)
+            if (available.contains(protocol))
+                enabled.add(protocol);
+        if (enabled.isEmpty())
+            throw new IllegalStateException("none of the protocols is supported: " + Arrays.toString(wanted));
+        return enabled.toArray(NONE);
+    }
+
+}
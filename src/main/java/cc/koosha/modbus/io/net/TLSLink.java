@@ -0,0 +1,241 @@
+package cc.koosha.modbus.io.net;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+
+/**
+ * TLS over a non-blocking socket channel, on top of an {@link SSLEngine}.
+ * <p>
+ * Owns the encrypted buffers of one connection: bytes received and not
+ * unwrapped yet, and records wrapped and not written yet. Handshake messages,
+ * the initial one as well as those sent later by the peer, are handled as
+ * they come; the caller only needs to ask for write readiness while {@link
+ * #hasPendingOutput()}.
+ * <p>
+ * Delegated tasks, the certificate checks, run on the calling thread.
+ *
+ * @author Koosha Hosseiny
+ */
+@Slf4j
+@NotThreadSafe
+final class TLSLink {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SSLEngine engine;
+
+    /**
+     * Received and not unwrapped yet, in write mode.
+     */
+    private final ByteBuffer netIn;
+
+    /**
+     * Wrapped and not written yet, in read mode.
+     */
+    private final ByteBuffer netOut;
+
+    /**
+     * Unwrapped, handed to the caller by {@link #unwrap(SocketChannel)}.
+     */
+    private final ByteBuffer appIn;
+
+    private boolean established;
+
+    TLSLink(SSLEngine engine) {
+        this.engine = engine;
+        final SSLSession session = engine.getSession();
+        this.netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        this.netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+        this.netOut.flip();
+        this.appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+    }
+
+    /**
+     * Starts the handshake, on a connected channel.
+     */
+    void begin(SocketChannel channel) throws IOException {
+        engine.beginHandshake();
+        handshake(channel);
+    }
+
+    /**
+     * @return true once the initial handshake is over.
+     */
+    boolean isEstablished() {
+        return established;
+    }
+
+    /**
+     * @return true if wrapped records wait for the channel to be writable.
+     */
+    boolean hasPendingOutput() {
+        return netOut.hasRemaining();
+    }
+
+    /**
+     * Reads what the channel has.
+     *
+     * @return false if the peer closed the connection.
+     */
+    boolean receive(SocketChannel channel) throws IOException {
+        if (channel.read(netIn) >= 0)
+            return true;
+        try {
+            engine.closeInbound();
+        }
+        catch (SSLException e) {
+            log.debug("connection closed without close_notify: {}", e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Unwraps the records received, as many as fit in the plaintext buffer,
+     * and goes on with the handshake if they are part of one.
+     *
+     * @return the plaintext, to be consumed before the next call. Empty once
+     * everything received is unwrapped.
+     */
+    ByteBuffer unwrap(SocketChannel channel) throws IOException {
+        appIn.clear();
+        while (true) {
+            netIn.flip();
+            final SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            }
+            finally {
+                netIn.compact();
+            }
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+                throw new EOFException("TLS session closed by peer");
+            handshake(channel);
+            if (result.getStatus() != SSLEngineResult.Status.OK)
+                break; // underflow: record incomplete, overflow: appIn full
+            if (result.bytesConsumed() == 0 && result.bytesProduced() == 0)
+                break;
+        }
+        appIn.flip();
+        return appIn;
+    }
+
+    /**
+     * Wraps and writes as much of the given buffers as the channel takes.
+     *
+     * @return number of plaintext bytes consumed from the buffers.
+     */
+    long wrap(SocketChannel channel, ByteBuffer[] buffers, int offset, int length) throws IOException {
+        long consumed = 0;
+        while (flush(channel)) {
+            netOut.compact();
+            final SSLEngineResult result;
+            try {
+                result = engine.wrap(buffers, offset, length, netOut);
+            }
+            finally {
+                netOut.flip();
+            }
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+                throw new EOFException("TLS session closed");
+            consumed += result.bytesConsumed();
+            if (result.bytesConsumed() == 0 && result.bytesProduced() == 0)
+                break; // nothing left to wrap
+        }
+        handshake(channel);
+        return consumed;
+    }
+
+    /**
+     * Writes the pending records.
+     *
+     * @return true if everything is written.
+     */
+    private boolean flush(SocketChannel channel) throws IOException {
+        while (netOut.hasRemaining())
+            if (channel.write(netOut) == 0)
+                return false;
+        return true;
+    }
+
+    /**
+     * Writes the pending records and goes on with the handshake, once the
+     * channel is writable.
+     */
+    void writable(SocketChannel channel) throws IOException {
+        if (flush(channel))
+            handshake(channel);
+    }
+
+    /**
+     * Sends close_notify if the channel takes it at once.
+     */
+    void close(SocketChannel channel) {
+        engine.closeOutbound();
+        try {
+            netOut.compact();
+            try {
+                engine.wrap(EMPTY, netOut);
+            }
+            finally {
+                netOut.flip();
+            }
+            flush(channel);
+        }
+        catch (IOException e) {
+            log.trace("failed to send close_notify", e);
+        }
+    }
+
+    /**
+     * Does what the handshake needs that does not involve reading.
+     */
+    private void handshake(SocketChannel channel) throws IOException {
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null)
+                        task.run();
+                    break;
+                case NEED_WRAP:
+                    if (!flush(channel))
+                        return;
+                    netOut.compact();
+                    final SSLEngineResult result;
+                    try {
+                        result = engine.wrap(EMPTY, netOut);
+                    }
+                    finally {
+                        netOut.flip();
+                    }
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+                        throw new EOFException("TLS session closed during handshake");
+                    flush(channel);
+                    break;
+                case NOT_HANDSHAKING:
+                    if (!established) {
+                        established = true;
+                        final SSLSession session = engine.getSession();
+                        log.debug("TLS established with {}:{}, {} {}",
+                                  engine.getPeerHost(), engine.getPeerPort(),
+                                  session.getProtocol(), session.getCipherSuite());
+                    }
+                    return;
+                default:
+                    // NEED_UNWRAP, waiting for the peer.
+                    return;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+package cc.koosha.modbus.modbus.master;
+
+import cc.koosha.modbus.procimg.InputRegister;
+import cc.koosha.modbus.procimg.Register;
+import cc.koosha.modbus.util.BitVector;
+import cc.koosha.modbus.util.ModbusFuture;
+
+import java.util.List;
+
+
+/**
+ * Non-blocking counterpart of {@link ModbusMaster}.
+ * <p>
+ * Every call returns immediately with a future, which is completed on the I/O
+ * thread once the response arrives. Results are read with {@link
+ * ModbusFuture#get()} or handled with {@link
+ * ModbusFuture#addCallback(cc.koosha.modbus.util.FutureCallback)}; callbacks
+ * run on the I/O thread and must not block.
+ * <p>
+ * The future fails with a {@link cc.koosha.modbus.ModbusSlaveException} if
+ * the slave answered with an exception, or with a {@link
+ * cc.koosha.modbus.ModbusException} on I/O or transaction errors.
+ * <p>
+ * Implementations are thread safe: any number of calls may be outstanding at
+ * once.
+ *
+ * @author Koosha Hosseiny
+ */
+public interface AsyncModbusMaster {
+
+    // ------------------- F2
+
+    /**
+     * See {@link ModbusMaster#readDiscreteInput(int, int, int)}.
+     */
+    ModbusFuture<BitVector> readDiscreteInput(int unitId, int ref, int count);
+
+
+    // ------------------- F1, F5, F15
+
+    /**
+     * See {@link ModbusMaster#readCoils(int, int, int)}.
+     */
+    ModbusFuture<BitVector> readCoils(int unitId, int ref, int count);
+
+    /**
+     * See {@link ModbusMaster#writeCoil(int, int, boolean)}.
+     */
+    ModbusFuture<Boolean> writeCoil(int unitId, int ref, boolean state);
+
+    /**
+     * See {@link ModbusMaster#writeCoils(int, int, BitVector)}. The future
+     * completes with null.
+     */
+    ModbusFuture<Void> writeCoils(int unitId, int ref, BitVector coils);
+
+
+    // ------------------- F4
+
+    /**
+     * See {@link ModbusMaster#readInputRegisters(int, int, int)}.
+     */
+    ModbusFuture<List<InputRegister>> readInputRegisters(int unitId, int ref, int count);
+
+
+    // ------------------- F3, F6, F16
+
+    /**
+     * See {@link ModbusMaster#readHoldingRegisters(int, int, int)}.
+     */
+    ModbusFuture<List<Register>> readHoldingRegisters(int unitId, int ref, int count);
+
+    /**
+     * See {@link ModbusMaster#writeHoldingRegister(int, int, Register)}. The
+     * future completes with null.
+     */
+    ModbusFuture<Void> writeHoldingRegister(int unitId, int ref, Register register);
+
+    /**
+     * See {@link ModbusMaster#writeHoldingRegisters(int, int, List)}. The
+     * future completes with null.
+     */
+    ModbusFuture<Void> writeHoldingRegisters(int unitId, int ref, List<Register> registers);
+
+}
@@ -0,0 +1,159 @@
+package cc.koosha.modbus.modbus.master;
+
+import cc.koosha.modbus.modbus.transaction.AsyncModbusTransaction;
+import cc.koosha.modbus.msg.ModbusResponse;
+import cc.koosha.modbus.msg.request.ReadCoilsRequest;
+import cc.koosha.modbus.msg.request.ReadInputDiscretesRequest;
+import cc.koosha.modbus.msg.request.ReadInputRegistersRequest;
+import cc.koosha.modbus.msg.request.ReadMultipleRegistersRequest;
+import cc.koosha.modbus.msg.request.WriteCoilRequest;
+import cc.koosha.modbus.msg.request.WriteMultipleCoilsRequest;
+import cc.koosha.modbus.msg.request.WriteMultipleRegistersRequest;
+import cc.koosha.modbus.msg.request.WriteSingleRegisterRequest;
+import cc.koosha.modbus.msg.response.ReadCoilsResponse;
+import cc.koosha.modbus.msg.response.ReadInputDiscretesResponse;
+import cc.koosha.modbus.msg.response.ReadInputRegistersResponse;
+import cc.koosha.modbus.msg.response.ReadMultipleRegistersResponse;
+import cc.koosha.modbus.msg.response.WriteCoilResponse;
+import cc.koosha.modbus.procimg.InputRegister;
+import cc.koosha.modbus.procimg.Register;
+import cc.koosha.modbus.util.BitVector;
+import cc.koosha.modbus.util.Function;
+import cc.koosha.modbus.util.ModbusFuture;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.val;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.List;
+
+
+/**
+ * {@link AsyncModbusMaster} on top of an {@link AsyncModbusTransaction}, such
+ * as {@link cc.koosha.modbus.modbus.transaction.ModbusNioTCPTransaction}.
+ * <p>
+ * A new request object is created for each call and nothing else is shared
+ * between calls, so the master is safe to use from many threads.
+ *
+ * @author Koosha Hosseiny
+ */
+@ThreadSafe
+public final class DefaultAsyncModbusMaster implements AsyncModbusMaster {
+
+    private static final Function<ModbusResponse, Void> TO_VOID =
+            new Function<ModbusResponse, Void>() {
+                @Override
+                public Void apply(ModbusResponse response) {
+                    return null;
+                }
+            };
+
+    @Getter
+    private final AsyncModbusTransaction transaction;
+
+    public DefaultAsyncModbusMaster(@NonNull AsyncModbusTransaction transaction) {
+        this.transaction = transaction;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ModbusFuture<BitVector> readDiscreteInput(int unitId, int ref, final int count) {
+        val req = new ReadInputDiscretesRequest(unitId, ref, count);
+        return transaction.executeAsync(req).transform(new Function<ModbusResponse, BitVector>() {
+            @Override
+            public BitVector apply(ModbusResponse response) {
+                final BitVector bv = ((ReadInputDiscretesResponse) response).getDiscretes();
+                bv.trim(count);
+                return bv;
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ModbusFuture<BitVector> readCoils(int unitId, int ref, final int count) {
+        val req = new ReadCoilsRequest(unitId, ref, count);
+        return transaction.executeAsync(req).transform(new Function<ModbusResponse, BitVector>() {
+            @Override
+            public BitVector apply(ModbusResponse response) {
+                final BitVector bv = ((ReadCoilsResponse) response).getCoils();
+                bv.trim(count);
+                return bv;
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ModbusFuture<Boolean> writeCoil(int unitId, int ref, boolean state) {
+        val req = new WriteCoilRequest(unitId, ref, state);
+        return transaction.executeAsync(req).transform(new Function<ModbusResponse, Boolean>() {
+            @Override
+            public Boolean apply(ModbusResponse response) {
+                return ((WriteCoilResponse) response).getCoil();
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ModbusFuture<Void> writeCoils(int unitId, int ref, BitVector coils) {
+        val req = new WriteMultipleCoilsRequest(unitId, ref, coils);
+        return transaction.executeAsync(req).transform(TO_VOID);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ModbusFuture<List<InputRegister>> readInputRegisters(int unitId, int ref, int count) {
+        val req = new ReadInputRegistersRequest(unitId, ref, count);
+        return transaction.executeAsync(req).transform(new Function<ModbusResponse, List<InputRegister>>() {
+            @Override
+            public List<InputRegister> apply(ModbusResponse response) {
+                return ((ReadInputRegistersResponse) response).getRegisters();
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ModbusFuture<List<Register>> readHoldingRegisters(int unitId, int ref, int count) {
+        val req = new ReadMultipleRegistersRequest(unitId, ref, count);
+        return transaction.executeAsync(req).transform(new Function<ModbusResponse, List<Register>>() {
+            @Override
+            public List<Register> apply(ModbusResponse response) {
+                return ((ReadMultipleRegistersResponse) response).getRegisters();
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ModbusFuture<Void> writeHoldingRegister(int unitId, int ref, Register register) {
+        val req = new WriteSingleRegisterRequest(unitId, ref, register);
+        return transaction.executeAsync(req).transform(TO_VOID);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ModbusFuture<Void> writeHoldingRegisters(int unitId, int ref, List<Register> registers) {
+        val req = new WriteMultipleRegistersRequest(unitId, ref, registers);
+        return transaction.executeAsync(req).transform(TO_VOID);
+    }
+
+}
@@ -0,0 +1,36 @@
+package cc.koosha.modbus.modbus.master;
+
+import cc.koosha.modbus.io.net.RedundantTCPMasterConnection;
+import cc.koosha.modbus.modbus.transaction.ModbusFailoverTCPTransaction;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+
+/**
+ * Modbus/TCP Master facade for redundant devices, switching to a standby
+ * endpoint as soon as the active one fails.
+ * <p>
+ * {@link ModbusMasterConfig#getRetries()} is the number of tries on each
+ * endpoint before failing over, 0 meaning a single one.
+ * {@link ModbusMasterConfig#isReconnecting()} does not apply, the
+ * connections are kept open by the {@link RedundantTCPMasterConnection}.
+ *
+ * @author Koosha Hosseiny
+ * @see ModbusFailoverTCPTransaction
+ */
+@NotThreadSafe
+public final class FailoverModbusTCPMaster extends AbstractModbusMaster {
+
+    private final RedundantTCPMasterConnection connection;
+
+    public FailoverModbusTCPMaster(ModbusMasterConfig config, RedundantTCPMasterConnection connection) {
+        super(config);
+        this.connection = connection;
+
+        final ModbusFailoverTCPTransaction transaction = new ModbusFailoverTCPTransaction(connection);
+        transaction.setRetries(Math.max(1, config.getRetries()));
+        transaction.setValidityCheck(config.isValidityCheck());
+        setTransaction(transaction);
+    }
+
+}
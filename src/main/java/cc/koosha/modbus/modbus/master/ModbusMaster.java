@@ -75,7 +75,7 @@ public interface ModbusMaster {
      * @throws ModbusException if an I/O error, a slave exception or a
      *                         transaction error occurs.
      */
-    void writeCoil(int unitId, int ref, boolean state) throws ModbusException;
+    boolean writeCoil(int unitId, int ref, boolean state) throws ModbusException;
 
     /**
      * Writes a given number of coil states to the slave.
@@ -0,0 +1,35 @@
+package cc.koosha.modbus.modbus.master;
+
+import cc.koosha.modbus.modbus.transaction.ModbusNioTCPTransaction;
+import cc.koosha.modbus.modbus.transport.ModbusNioTCPTransport;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+
+/**
+ * Modbus/TCP Master facade, on top of the non-blocking {@link
+ * ModbusNioTCPTransport}.
+ * <p>
+ * Read / write calls block just as {@link ModbusTCPMaster}'s do, but the
+ * socket is driven by a shared {@link cc.koosha.modbus.io.net.NioReactor}
+ * thread, so hundreds of masters (one per device) do not cost hundreds of
+ * I/O threads.
+ *
+ * @author Koosha Hosseiny
+ */
+@NotThreadSafe
+public final class ModbusNioTCPMaster extends AbstractModbusMaster {
+
+    private final ModbusNioTCPTransport transport;
+
+    public ModbusNioTCPMaster(ModbusMasterConfig config, ModbusNioTCPTransport transport) {
+        super(config);
+        this.transport = transport;
+
+        final ModbusNioTCPTransaction transaction = new ModbusNioTCPTransaction(transport);
+        transaction.setRetries(config.getRetries());
+        transaction.setValidityCheck(config.isValidityCheck());
+        setTransaction(transaction);
+    }
+
+}
@@ -38,6 +38,12 @@ public final class ModbusTCPMaster extends AbstractModbusMaster {
     public ModbusTCPMaster(ModbusMasterConfig config, TCPMasterConnection connection) {
         super(config);
         this.connection = connection;
+
+        final ModbusTCPTransaction transaction = new ModbusTCPTransaction(connection);
+        transaction.setRetries(config.getRetries());
+        transaction.setValidityCheck(config.isValidityCheck());
+        transaction.setReconnecting(config.isReconnecting());
+        setTransaction(transaction);
     }
 
 }
\ No newline at end of file
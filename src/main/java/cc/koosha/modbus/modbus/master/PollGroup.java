@@ -0,0 +1,57 @@
+package cc.koosha.modbus.modbus.master;
+
+import cc.koosha.modbus.util.Callback;
+import lombok.Builder;
+import lombok.NonNull;
+import lombok.Value;
+
+
+/**
+ * A set of points polled together at a fixed rate, by {@link PollScheduler}.
+ * <p>
+ * The poll itself is a plain callback, typically reading a few points through
+ * a master or a {@link ReadPlanner}. It may block, but should finish well
+ * within {@link #getDeadline()}.
+ *
+ * @author Koosha Hosseiny
+ */
+@Value
+@Builder
+public final class PollGroup {
+
+    /**
+     * Name of the group, for logging.
+     */
+    @NonNull
+    private final String name;
+
+    /**
+     * Time between the start of two cycles, in milliseconds.
+     */
+    private final long period;
+
+    /**
+     * Offset of the cycles from the time the group is scheduled, in
+     * milliseconds, less than {@link #getPeriod()}. Negative lets the
+     * scheduler pick a phase spreading groups of the same period evenly.
+     */
+    @Builder.Default
+    private final long phase = -1;
+
+    /**
+     * Time after its nominal start by which a cycle must be done, in
+     * milliseconds. Zero or less means the period.
+     */
+    private final long deadline;
+
+    /**
+     * The poll, called once per cycle.
+     */
+    @NonNull
+    private final Callback poll;
+
+    public long getEffectiveDeadline() {
+        return deadline > 0 ? deadline : period;
+    }
+
+}
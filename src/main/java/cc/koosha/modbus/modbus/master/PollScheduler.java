@@ -0,0 +1,320 @@
+package cc.koosha.modbus.modbus.master;
+
+import cc.koosha.modbus.util.ErrorHandler;
+import cc.koosha.modbus.xinternal.J2ModCollections;
+import cc.koosha.modbus.xinternal.J2ModPrecondition;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Deadline driven scheduler polling {@link PollGroup}s on a bounded thread
+ * pool, replacing {@link cc.koosha.modbus.xinternal.Looper}.
+ * <p>
+ * Cycle <i>k</i> of a group starts at <tt>t0 + phase + k * period</tt>,
+ * where <tt>t0</tt> is the time the group was scheduled: the schedule does not
+ * drift with the time the polls take. A cycle never overlaps the previous
+ * cycle of the same group. If a cycle ends after the nominal start of the
+ * next ones, those are skipped rather than run back to back, so a slow
+ * device does not cause bursts.
+ * <p>
+ * Groups with no phase set are spread over their period: the <i>n</i>th
+ * group of a given period gets the phase <tt>frac(n * 0.618) * period</tt>,
+ * so however many groups share a rate, their cycles never start all at once.
+ * <p>
+ * A cycle ending after its {@link PollGroup#getEffectiveDeadline()} is
+ * reported to the {@link OverrunListener}, and skipped cycles too. A poll
+ * throwing anything but a {@link VirtualMachineError} is reported to the
+ * {@link ErrorHandler}, which decides whether the group keeps being polled.
+ *
+ * @author Koosha Hosseiny
+ */
+@Slf4j
+@ThreadSafe
+public final class PollScheduler implements Closeable {
+
+    private static final double GOLDEN_RATIO_FRACTION = 0.6180339887498949;
+
+    /**
+     * Notified of cycles missing their deadline. Called on the pool threads,
+     * must not block.
+     */
+    public interface OverrunListener {
+
+        /**
+         * A cycle finished after its deadline.
+         *
+         * @param group       the group.
+         * @param lateMillis  how long after the deadline the cycle ended.
+         */
+        void overrun(PollGroup group, long lateMillis);
+
+        /**
+         * Cycles were not run, because the previous cycle ended after their
+         * nominal start.
+         *
+         * @param group  the group.
+         * @param cycles number of cycles skipped.
+         */
+        void skipped(PollGroup group, long cycles);
+
+    }
+
+    /**
+     * A scheduled group.
+     */
+    public final class Handle {
+
+        private final PollGroup group;
+        private final long periodNanos;
+        private final long deadlineNanos;
+
+        /**
+         * Nominal start of the cycle being run or scheduled.
+         */
+        private volatile long nextStart;
+
+        private volatile ScheduledFuture<?> future;
+        private volatile boolean cancelled;
+
+        private final AtomicLong cycles = new AtomicLong();
+        private final AtomicLong overruns = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+
+        private final Runnable cycle = new Runnable() {
+            @Override
+            public void run() {
+                runCycle();
+            }
+        };
+
+        private Handle(PollGroup group, long phaseNanos) {
+            this.group = group;
+            this.periodNanos = TimeUnit.MILLISECONDS.toNanos(group.getPeriod());
+            this.deadlineNanos = TimeUnit.MILLISECONDS.toNanos(group.getEffectiveDeadline());
+            this.nextStart = System.nanoTime() + phaseNanos;
+        }
+
+        public PollGroup getGroup() {
+            return group;
+        }
+
+        public long getCycles() {
+            return cycles.get();
+        }
+
+        public long getOverruns() {
+            return overruns.get();
+        }
+
+        public long getSkipped() {
+            return skipped.get();
+        }
+
+        /**
+         * Stops polling the group. A cycle already running is not
+         * interrupted.
+         */
+        public void cancel() {
+            cancelled = true;
+            final ScheduledFuture<?> f = future;
+            if (f != null)
+                f.cancel(false);
+            synchronized (handles) {
+                if (handles.get(group.getName()) == this)
+                    handles.remove(group.getName());
+            }
+        }
+
+        private void scheduleNext() {
+            if (cancelled || executor.isShutdown())
+                return;
+            try {
+                future = executor.schedule(cycle, nextStart - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+            catch (RejectedExecutionException e) {
+                log.trace("scheduler closed, not scheduling {}", group.getName());
+            }
+        }
+
+        private void runCycle() {
+            if (cancelled)
+                return;
+            final long start = nextStart;
+            boolean keep = true;
+            try {
+                group.getPoll().invoke();
+            }
+            catch (Throwable e) {
+                if (isFatal(e)) {
+                    log.error("poll group {} stopped on fatal error", group.getName(), e);
+                    cancel();
+                    throw (Error) e;
+                }
+                // Errors too, such as a failed assertion or a missing class:
+                // escaping, they would silently end the group.
+                keep = errorHandler.handle(e);
+                if (!keep)
+                    log.warn("poll group {} stopped on error", group.getName(), e);
+            }
+            cycles.incrementAndGet();
+
+            final long now = System.nanoTime();
+            final long late = now - (start + deadlineNanos);
+            if (late > 0) {
+                overruns.incrementAndGet();
+                try {
+                    overrunListener.overrun(group, TimeUnit.NANOSECONDS.toMillis(late));
+                }
+                catch (RuntimeException e) {
+                    log.error("overrun listener failed", e);
+                }
+            }
+
+            long next = start + periodNanos;
+            if (now > next) {
+                final long missed = (now - next) / periodNanos + 1;
+                next += missed * periodNanos;
+                skipped.addAndGet(missed);
+                try {
+                    overrunListener.skipped(group, missed);
+                }
+                catch (RuntimeException e) {
+                    log.error("overrun listener failed", e);
+                }
+            }
+            nextStart = next;
+
+            if (keep)
+                scheduleNext();
+            else
+                cancel();
+        }
+
+    }
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    private final ErrorHandler errorHandler;
+
+    private final OverrunListener overrunListener;
+
+    private final Map<String, Handle> handles = J2ModCollections.newModifiableMap();
+
+    /**
+     * Number of groups scheduled so far per period, to pick phases.
+     */
+    private final Map<Long, Integer> perPeriod = J2ModCollections.newModifiableMap();
+
+    /**
+     * @param threads         size of the thread pool, the maximum number of
+     *                        polls running at once.
+     * @param errorHandler    notified of polls failing, returns false to stop
+     *                        polling the group.
+     * @param overrunListener notified of overruns.
+     */
+    public PollScheduler(int threads,
+                         @NonNull ErrorHandler errorHandler,
+                         @NonNull OverrunListener overrunListener) {
+        J2ModPrecondition.ensurePositive(threads, "threads");
+        this.errorHandler = errorHandler;
+        this.overrunListener = overrunListener;
+
+        final AtomicInteger threadId = new AtomicInteger();
+        this.executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "j2mod-poll-" + threadId.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * Starts polling the group.
+     *
+     * @param group the group, its name must be unique in this scheduler.
+     * @return handle of the scheduled group.
+     */
+    public Handle schedule(@NonNull PollGroup group) {
+        if (group.getPeriod() <= 0)
+            throw new IllegalArgumentException("period: " + group.getPeriod());
+        if (group.getPhase() >= group.getPeriod())
+            throw new IllegalArgumentException("phase must be less than period: " + group.getPhase());
+
+        final Handle handle;
+        synchronized (handles) {
+            if (handles.containsKey(group.getName()))
+                throw new IllegalArgumentException("duplicate group: " + group.getName());
+            final long phase = group.getPhase() >= 0
+                               ? group.getPhase()
+                               : autoPhase(group.getPeriod());
+            handle = new Handle(group, TimeUnit.MILLISECONDS.toNanos(phase));
+            handles.put(group.getName(), handle);
+        }
+        handle.scheduleNext();
+        log.debug("scheduled poll group {}", group.getName());
+        return handle;
+    }
+
+    /**
+     * Returns the handle of a scheduled group.
+     *
+     * @param name name of the group.
+     * @return the handle, or null if no such group is scheduled.
+     */
+    public Handle get(String name) {
+        synchronized (handles) {
+            return handles.get(name);
+        }
+    }
+
+    /**
+     * Stops polling all groups, waiting for cycles running to finish.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES))
+                executor.shutdownNow();
+        }
+        catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Errors the JVM may not recover from, rethrown rather than reported.
+     */
+    private static boolean isFatal(Throwable error) {
+        return error instanceof VirtualMachineError;
+    }
+
+    /**
+     * Guarded by handles.
+     */
+    private long autoPhase(long period) {
+        final Integer n = perPeriod.get(period);
+        final int index = n == null ? 0 : n;
+        perPeriod.put(period, index + 1);
+        final double fraction = (index * GOLDEN_RATIO_FRACTION) % 1.0;
+        return (long) (fraction * period);
+    }
+
+}
@@ -0,0 +1,338 @@
+package cc.koosha.modbus.modbus.master;
+
+import cc.koosha.modbus.Modbus;
+import cc.koosha.modbus.ModbusException;
+import cc.koosha.modbus.ModbusSlaveException;
+import cc.koosha.modbus.procimg.InputRegister;
+import cc.koosha.modbus.procimg.Register;
+import cc.koosha.modbus.util.BitVector;
+import cc.koosha.modbus.util.Function;
+import cc.koosha.modbus.util.FutureCallback;
+import cc.koosha.modbus.util.ModbusFuture;
+import cc.koosha.modbus.xinternal.J2ModCollections;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Merges reads of scattered points into as few requests as possible.
+ * <p>
+ * Points of the same unit and table are sorted by reference, and neighbours
+ * are read by a single request as long as the request stays within the
+ * protocol limit (125 registers or 2000 bits) and the hole between them is
+ * at most {@link #getMaxGap()} items. Items in the holes are read and thrown
+ * away: a larger gap means fewer round trips but longer responses, and on
+ * devices with sparse maps the risk of reading unmapped addresses.
+ * <p>
+ * If a merged request is answered with {@link
+ * Modbus#ILLEGAL_ADDRESS_EXCEPTION}, its points are read one by one instead,
+ * so only the points which really are invalid fail.
+ * <p>
+ * Results are returned per point, registers as unsigned shorts and bits as
+ * 0 / 1.
+ *
+ * @author Koosha Hosseiny
+ */
+@Slf4j
+@ThreadSafe
+public final class ReadPlanner {
+
+    /**
+     * A single read request covering one or more points.
+     */
+    @Value
+    public static final class Block {
+
+        private final int unitId;
+        private final ReadPoint.Table table;
+        private final int ref;
+        private final int count;
+        private final List<ReadPoint> points;
+
+        /**
+         * Cuts the values of a point out of the values read by this block.
+         *
+         * @param point  a point of this block.
+         * @param values values read by this block.
+         * @return values of the point.
+         */
+        public int[] slice(ReadPoint point, int[] values) {
+            final int[] result = new int[point.getCount()];
+            System.arraycopy(values, point.getRef() - ref, result, 0, result.length);
+            return result;
+        }
+
+    }
+
+    private static final Comparator<ReadPoint> ORDER = new Comparator<ReadPoint>() {
+        @Override
+        public int compare(ReadPoint o1, ReadPoint o2) {
+            if (o1.getUnitId() != o2.getUnitId())
+                return o1.getUnitId() < o2.getUnitId() ? -1 : 1;
+            if (o1.getTable() != o2.getTable())
+                return o1.getTable().compareTo(o2.getTable());
+            if (o1.getRef() != o2.getRef())
+                return o1.getRef() < o2.getRef() ? -1 : 1;
+            return o1.getCount() < o2.getCount() ? -1 : (o1.getCount() == o2.getCount() ? 0 : 1);
+        }
+    };
+
+    /**
+     * Maximum number of unwanted items read between two points to merge
+     * them.
+     */
+    @Getter
+    private final int maxGap;
+
+    public ReadPlanner(int maxGap) {
+        if (maxGap < 0)
+            throw new IllegalArgumentException("maxGap: " + maxGap);
+        this.maxGap = maxGap;
+    }
+
+    /**
+     * Merges the points into blocks. Duplicate and overlapping points are
+     * allowed.
+     *
+     * @param points points to read.
+     * @return blocks covering all the points.
+     */
+    public List<Block> plan(@NonNull Collection<ReadPoint> points) {
+        final List<ReadPoint> sorted = new ArrayList<ReadPoint>(points);
+        Collections.sort(sorted, ORDER);
+
+        final List<Block> blocks = J2ModCollections.newModifiableList();
+        List<ReadPoint> current = null;
+        int start = 0;
+        int end = 0;
+        ReadPoint first = null;
+
+        for (ReadPoint point : sorted) {
+            if (first != null
+                    && point.getUnitId() == first.getUnitId()
+                    && point.getTable() == first.getTable()
+                    && point.getRef() <= end + maxGap
+                    && Math.max(end, point.getEnd()) - start <= point.getTable().getMaxCount()) {
+                current.add(point);
+                end = Math.max(end, point.getEnd());
+                continue;
+            }
+            if (first != null)
+                blocks.add(new Block(first.getUnitId(), first.getTable(), start, end - start, current));
+            first = point;
+            current = new ArrayList<ReadPoint>();
+            current.add(point);
+            start = point.getRef();
+            end = point.getEnd();
+        }
+        if (first != null)
+            blocks.add(new Block(first.getUnitId(), first.getTable(), start, end - start, current));
+
+        if (log.isDebugEnabled())
+            log.debug("planned {} points in {} requests", points.size(), blocks.size());
+        return blocks;
+    }
+
+    /**
+     * Reads all the points with the blocking master.
+     *
+     * @param master master to read with.
+     * @param points points to read.
+     * @return values of each point.
+     * @throws ModbusException if a block or a point could not be read, see
+     *                         {@link #execute(ModbusMaster, Collection, Map)}
+     *                         to get the values of the other points.
+     */
+    public Map<ReadPoint, int[]> execute(@NonNull ModbusMaster master,
+                                         @NonNull Collection<ReadPoint> points) throws ModbusException {
+        final Map<ReadPoint, ModbusSlaveException> failures = J2ModCollections.newModifiableMap();
+        final Map<ReadPoint, int[]> result = execute(master, points, failures);
+        if (!failures.isEmpty())
+            throw failures.values().iterator().next();
+        return result;
+    }
+
+    /**
+     * Reads all the points with the blocking master. Points answered with
+     * an exception when read one by one are put in failures, and left out of
+     * the result.
+     *
+     * @param master   master to read with.
+     * @param points   points to read.
+     * @param failures receives the points which failed, with the exception
+     *                 they were answered with.
+     * @return values of each point read.
+     * @throws ModbusException if a block could not be read.
+     */
+    public Map<ReadPoint, int[]> execute(@NonNull ModbusMaster master,
+                                         @NonNull Collection<ReadPoint> points,
+                                         @NonNull Map<ReadPoint, ModbusSlaveException> failures) throws ModbusException {
+        final Map<ReadPoint, int[]> result = J2ModCollections.newModifiableMap();
+        for (Block block : plan(points)) {
+            final int[] values;
+            try {
+                values = read(master, block.getUnitId(), block.getTable(), block.getRef(), block.getCount());
+            }
+            catch (ModbusSlaveException e) {
+                if (!e.isType(Modbus.ILLEGAL_ADDRESS_EXCEPTION))
+                    throw e;
+                if (block.getPoints().size() == 1) {
+                    failures.put(block.getPoints().get(0), e);
+                    continue;
+                }
+                log.debug("merged read failed with illegal address, reading points one by one");
+                for (ReadPoint point : block.getPoints())
+                    try {
+                        result.put(point, read(master, point.getUnitId(), point.getTable(),
+                                               point.getRef(), point.getCount()));
+                    }
+                    catch (ModbusSlaveException pe) {
+                        log.debug("failed to read {}: {}", point, pe.getMessage());
+                        failures.put(point, pe);
+                    }
+                continue;
+            }
+            for (ReadPoint point : block.getPoints())
+                result.put(point, block.slice(point, values));
+        }
+        return result;
+    }
+
+    /**
+     * Reads all the points with the asynchronous master, all blocks are sent
+     * at once.
+     * <p>
+     * Unlike {@link #execute(ModbusMaster, Collection)} merged requests are
+     * not retried point by point.
+     *
+     * @param master master to read with.
+     * @param points points to read.
+     * @return future of the values of each point, failed with the error of
+     * the first block which failed.
+     */
+    public ModbusFuture<Map<ReadPoint, int[]>> executeAsync(@NonNull AsyncModbusMaster master,
+                                                            @NonNull Collection<ReadPoint> points) {
+        final List<Block> blocks = plan(points);
+        final Map<ReadPoint, int[]> values = J2ModCollections.newModifiableMap();
+        final ModbusFuture<Map<ReadPoint, int[]>> result = new ModbusFuture<Map<ReadPoint, int[]>>();
+        final AtomicInteger remaining = new AtomicInteger(blocks.size());
+        if (blocks.isEmpty()) {
+            result.set(values);
+            return result;
+        }
+
+        for (final Block block : blocks) {
+            readAsync(master, block).addCallback(new FutureCallback<int[]>() {
+                @Override
+                public void onSuccess(int[] read) {
+                    synchronized (values) {
+                        for (ReadPoint point : block.getPoints())
+                            values.put(point, block.slice(point, read));
+                    }
+                    if (remaining.decrementAndGet() == 0)
+                        result.set(values);
+                }
+
+                @Override
+                public void onFailure(Throwable error) {
+                    result.setException(error);
+                }
+            });
+        }
+        return result;
+    }
+
+
+    private static int[] read(ModbusMaster master, int unitId, ReadPoint.Table table, int ref, int count) {
+        switch (table) {
+            case COILS:
+                return bits(master.readCoils(unitId, ref, count), count);
+            case DISCRETE_INPUTS:
+                return bits(master.readDiscreteInput(unitId, ref, count), count);
+            case HOLDING_REGISTERS:
+                return registers(master.readHoldingRegisters(unitId, ref, count), count);
+            case INPUT_REGISTERS:
+                return registers(master.readInputRegisters(unitId, ref, count), count);
+            default:
+                throw new IllegalArgumentException("table: " + table);
+        }
+    }
+
+    private static ModbusFuture<int[]> readAsync(AsyncModbusMaster master, final Block block) {
+        final int unitId = block.getUnitId();
+        final int ref = block.getRef();
+        final int count = block.getCount();
+        switch (block.getTable()) {
+            case COILS:
+                return master.readCoils(unitId, ref, count).transform(new BitsFunction(count));
+            case DISCRETE_INPUTS:
+                return master.readDiscreteInput(unitId, ref, count).transform(new BitsFunction(count));
+            case HOLDING_REGISTERS:
+                return master.readHoldingRegisters(unitId, ref, count).transform(new RegistersFunction<Register>(count));
+            case INPUT_REGISTERS:
+                return master.readInputRegisters(unitId, ref, count).transform(new RegistersFunction<InputRegister>(count));
+            default:
+                throw new IllegalArgumentException("table: " + block.getTable());
+        }
+    }
+
+    private static int[] bits(BitVector bv, int count) {
+        final int[] values = new int[count];
+        for (int i = 0; i < count; i++)
+            values[i] = bv.getBit(i) ? 1 : 0;
+        return values;
+    }
+
+    private static int[] registers(List<? extends InputRegister> registers, int count) {
+        if (registers.size() < count)
+            throw new ModbusException("short response, expected %d registers, got %d",
+                                      count, registers.size());
+        final int[] values = new int[count];
+        for (int i = 0; i < count; i++)
+            values[i] = registers.get(i).getValue() & 0xFFFF;
+        return values;
+    }
+
+    private static final class BitsFunction implements Function<BitVector, int[]> {
+
+        private final int count;
+
+        private BitsFunction(int count) {
+            this.count = count;
+        }
+
+        @Override
+        public int[] apply(BitVector bv) {
+            return bits(bv, count);
+        }
+
+    }
+
+    private static final class RegistersFunction<R extends InputRegister>
+            implements Function<List<R>, int[]> {
+
+        private final int count;
+
+        private RegistersFunction(int count) {
+            this.count = count;
+        }
+
+        @Override
+        public int[] apply(List<R> registers) {
+            return registers(registers, count);
+        }
+
+    }
+
+}
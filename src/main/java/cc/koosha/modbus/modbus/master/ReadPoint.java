@@ -0,0 +1,75 @@
+package cc.koosha.modbus.modbus.master;
+
+import cc.koosha.modbus.Modbus;
+import cc.koosha.modbus.xinternal.J2ModPrecondition;
+import lombok.Value;
+
+
+/**
+ * A range of coils, discrete inputs or registers of a unit to be read, as
+ * handed to {@link ReadPlanner}.
+ * <p>
+ * Points are values: two points with the same unit, table, reference and
+ * count are equal and get the same result.
+ *
+ * @author Koosha Hosseiny
+ */
+@Value
+public final class ReadPoint {
+
+    /**
+     * The data table a point belongs to.
+     */
+    public enum Table {
+
+        COILS(Modbus.MAX_BITS),
+        DISCRETE_INPUTS(Modbus.MAX_BITS),
+        HOLDING_REGISTERS(125),
+        INPUT_REGISTERS(125);
+
+        /**
+         * Maximum number of items a single request may read.
+         */
+        private final int maxCount;
+
+        Table(int maxCount) {
+            this.maxCount = maxCount;
+        }
+
+        public int getMaxCount() {
+            return maxCount;
+        }
+
+        public boolean isBits() {
+            return this == COILS || this == DISCRETE_INPUTS;
+        }
+
+    }
+
+    private final int unitId;
+    private final Table table;
+    private final int ref;
+    private final int count;
+
+    public ReadPoint(int unitId, Table table, int ref, int count) {
+        J2ModPrecondition.ensureNotNull(table, "table");
+        J2ModPrecondition.ensureIsInRange(unitId, 0, 255, "unitId");
+        J2ModPrecondition.ensureIsInRange(ref, 0, 0xFFFF, "ref");
+        J2ModPrecondition.ensureIsInRange(count, 1, table.getMaxCount(), "count");
+        J2ModPrecondition.ensureIsInRange(ref + count - 1, 0, 0xFFFF, "ref + count");
+        this.unitId = unitId;
+        this.table = table;
+        this.ref = ref;
+        this.count = count;
+    }
+
+    /**
+     * Reference after the last item of this point.
+     *
+     * @return ref + count.
+     */
+    public int getEnd() {
+        return ref + count;
+    }
+
+}
@@ -0,0 +1,412 @@
+package cc.koosha.modbus.modbus.master;
+
+import cc.koosha.modbus.ModbusException;
+import cc.koosha.modbus.io.net.TCPMasterConnection;
+import cc.koosha.modbus.procimg.InputRegister;
+import cc.koosha.modbus.procimg.Register;
+import cc.koosha.modbus.util.BitVector;
+import cc.koosha.modbus.util.Function;
+import cc.koosha.modbus.util.ModbusFuture;
+import cc.koosha.modbus.xinternal.J2ModPrecondition;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+
+/**
+ * Modbus/TCP Master facade which may be shared by any number of threads.
+ * <p>
+ * All callers share a single {@link TCPMasterConnection}. Calls are put in an
+ * internal queue and executed one at a time by a worker thread owned by this
+ * master, while the calling thread blocks just as it would with {@link
+ * ModbusTCPMaster}.
+ * <p>
+ * Requests are served by {@link Priority}, and in arrival order within the
+ * same priority. So that a steady stream of urgent requests does not starve
+ * the rest, each priority counts the requests served ahead of its oldest
+ * waiting request. Once that count reaches {@link #getStarvationLimit()}, the
+ * request is served next, whatever waits at higher priorities. So every
+ * priority gets through, even {@link Priority#LOW} under both {@link
+ * Priority#HIGH} and {@link Priority#NORMAL} load.
+ * <p>
+ * The master returned by {@link #withPriority(Priority)} shares the queue
+ * and the connection of this master.
+ *
+ * @author Koosha Hosseiny
+ */
+@Slf4j
+@ThreadSafe
+public final class SharedModbusTCPMaster implements ModbusMaster, Closeable {
+
+    public enum Priority {
+        HIGH,
+        NORMAL,
+        LOW,
+    }
+
+    /**
+     * A call waiting in the queue.
+     */
+    private static final class Job<T> {
+
+        private final Function<ModbusMaster, T> call;
+        private final ModbusFuture<T> future = new ModbusFuture<T>();
+
+        private Job(Function<ModbusMaster, T> call) {
+            this.call = call;
+        }
+
+        private void run(ModbusMaster master) {
+            if (future.isDone())
+                return;
+            try {
+                future.set(call.apply(master));
+            }
+            catch (RuntimeException e) {
+                future.setException(e);
+            }
+        }
+
+    }
+
+    /**
+     * Default number of requests served ahead of a waiting lower priority
+     * request before it is let through.
+     */
+    public static final int DEFAULT_STARVATION_LIMIT = 8;
+
+    private final Object LOCK = new Object();
+
+    private final ModbusTCPMaster master;
+    private final TCPMasterConnection connection;
+
+    private final Thread worker;
+
+    private final List<Queue<Job<?>>> queues;
+
+    @Getter
+    private final int maxQueued;
+
+    @Getter
+    private final int starvationLimit;
+
+    /**
+     * Guarded by LOCK.
+     */
+    private int queued;
+
+    /**
+     * Per priority, number of requests served ahead of its oldest waiting
+     * request. Guarded by LOCK.
+     */
+    private final int[] passedOver = new int[Priority.values().length];
+
+    private volatile boolean running = true;
+
+    public SharedModbusTCPMaster(ModbusMasterConfig config,
+                                 @NonNull TCPMasterConnection connection,
+                                 int maxQueued,
+                                 int starvationLimit) {
+        J2ModPrecondition.ensurePositive(maxQueued, "maxQueued");
+        J2ModPrecondition.ensurePositive(starvationLimit, "starvationLimit");
+        this.master = new ModbusTCPMaster(config, connection);
+        this.connection = connection;
+        this.maxQueued = maxQueued;
+        this.starvationLimit = starvationLimit;
+
+        this.queues = new ArrayList<Queue<Job<?>>>(Priority.values().length);
+        for (int i = 0; i < Priority.values().length; i++)
+            queues.add(new ArrayDeque<Job<?>>());
+
+        this.worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "j2mod-shared-master");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    public SharedModbusTCPMaster(ModbusMasterConfig config, TCPMasterConnection connection) {
+        this(config, connection, Integer.MAX_VALUE, DEFAULT_STARVATION_LIMIT);
+    }
+
+    /**
+     * Returns a view of this master whose requests are queued with the given
+     * priority. This master itself queues with {@link Priority#NORMAL}.
+     *
+     * @param priority priority of the requests sent through the view.
+     * @return a master sharing the queue and connection of this one.
+     */
+    public ModbusMaster withPriority(@NonNull Priority priority) {
+        return new PriorityView(priority);
+    }
+
+    /**
+     * Number of requests waiting in the queue.
+     *
+     * @return number of requests waiting in the queue.
+     */
+    public int getQueued() {
+        synchronized (LOCK) {
+            return queued;
+        }
+    }
+
+    /**
+     * Stops the worker, fails every waiting request and closes the
+     * connection. The request being executed, if any, is completed first,
+     * unless this is called from within that request.
+     */
+    @Override
+    public void close() throws IOException {
+        final ModbusException closed = new ModbusException("master closed");
+        synchronized (LOCK) {
+            running = false;
+            for (Queue<Job<?>> queue : queues) {
+                Job<?> job;
+                while ((job = queue.poll()) != null)
+                    job.future.setException(closed);
+            }
+            queued = 0;
+            LOCK.notifyAll();
+        }
+        // From a queued call the worker would wait for itself, it stops on
+        // its own once the call returns.
+        if (Thread.currentThread() != worker) {
+            try {
+                worker.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        connection.close();
+    }
+
+    // ------------------- ModbusMaster
+
+    @Override
+    public BitVector readDiscreteInput(int unitId, int ref, int count) throws ModbusException {
+        return withPriority(Priority.NORMAL).readDiscreteInput(unitId, ref, count);
+    }
+
+    @Override
+    public BitVector readCoils(int unitId, int ref, int count) throws ModbusException {
+        return withPriority(Priority.NORMAL).readCoils(unitId, ref, count);
+    }
+
+    @Override
+    public boolean writeCoil(int unitId, int ref, boolean state) throws ModbusException {
+        return withPriority(Priority.NORMAL).writeCoil(unitId, ref, state);
+    }
+
+    @Override
+    public void writeCoils(int unitId, int ref, BitVector coils) throws ModbusException {
+        withPriority(Priority.NORMAL).writeCoils(unitId, ref, coils);
+    }
+
+    @Override
+    public List<InputRegister> readInputRegisters(int unitId, int ref, int count) throws ModbusException {
+        return withPriority(Priority.NORMAL).readInputRegisters(unitId, ref, count);
+    }
+
+    @Override
+    public List<Register> readHoldingRegisters(int unitId, int ref, int count) throws ModbusException {
+        return withPriority(Priority.NORMAL).readHoldingRegisters(unitId, ref, count);
+    }
+
+    @Override
+    public void writeHoldingRegister(int unitId, int ref, Register register) throws ModbusException {
+        withPriority(Priority.NORMAL).writeHoldingRegister(unitId, ref, register);
+    }
+
+    @Override
+    public void writeHoldingRegisters(int unitId, int ref, List<Register> registers) throws ModbusException {
+        withPriority(Priority.NORMAL).writeHoldingRegisters(unitId, ref, registers);
+    }
+
+    // ------------------- queue
+
+    private <T> T call(Priority priority, Function<ModbusMaster, T> call) {
+        final Job<T> job = new Job<T>(call);
+        synchronized (LOCK) {
+            if (!running)
+                throw new ModbusException("master closed");
+            if (queued >= maxQueued)
+                throw new ModbusException("request queue full: %d", maxQueued);
+            queues.get(priority.ordinal()).add(job);
+            queued++;
+            LOCK.notifyAll();
+        }
+
+        try {
+            return job.future.get();
+        }
+        catch (InterruptedException e) {
+            job.future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new ModbusException("interrupted while waiting in queue", e);
+        }
+        catch (CancellationException e) {
+            throw new ModbusException("request cancelled", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof ModbusException)
+                throw (ModbusException) e.getCause();
+            throw new ModbusException("request failed", e.getCause());
+        }
+    }
+
+    private void loop() {
+        while (true) {
+            final Job<?> job;
+            synchronized (LOCK) {
+                while (running && queued == 0) {
+                    try {
+                        LOCK.wait();
+                    }
+                    catch (InterruptedException e) {
+                        // Only close() stops the worker.
+                    }
+                }
+                if (!running)
+                    return;
+                job = next();
+                queued--;
+            }
+            job.run(master);
+        }
+    }
+
+    /**
+     * Picks the next job, guarded by LOCK and queue must not be empty.
+     */
+    private Job<?> next() {
+        int served = -1;
+        for (int i = 0; i < queues.size(); i++) {
+            if (queues.get(i).isEmpty())
+                continue;
+            if (served < 0)
+                served = i;
+            else if (passedOver[i] >= starvationLimit) {
+                log.trace("serving {} priority request to avoid starvation", Priority.values()[i]);
+                served = i;
+                break;
+            }
+        }
+
+        passedOver[served] = 0;
+        for (int i = served + 1; i < queues.size(); i++)
+            passedOver[i] = queues.get(i).isEmpty() ? 0 : passedOver[i] + 1;
+        return queues.get(served).poll();
+    }
+
+    /**
+     * Queues the calls of {@link ModbusMaster} with a fixed priority.
+     */
+    private final class PriorityView implements ModbusMaster {
+
+        private final Priority priority;
+
+        private PriorityView(Priority priority) {
+            this.priority = priority;
+        }
+
+        @Override
+        public BitVector readDiscreteInput(final int unitId, final int ref, final int count) {
+            return call(priority, new Function<ModbusMaster, BitVector>() {
+                @Override
+                public BitVector apply(ModbusMaster m) {
+                    return m.readDiscreteInput(unitId, ref, count);
+                }
+            });
+        }
+
+        @Override
+        public BitVector readCoils(final int unitId, final int ref, final int count) {
+            return call(priority, new Function<ModbusMaster, BitVector>() {
+                @Override
+                public BitVector apply(ModbusMaster m) {
+                    return m.readCoils(unitId, ref, count);
+                }
+            });
+        }
+
+        @Override
+        public boolean writeCoil(final int unitId, final int ref, final boolean state) {
+            return call(priority, new Function<ModbusMaster, Boolean>() {
+                @Override
+                public Boolean apply(ModbusMaster m) {
+                    return m.writeCoil(unitId, ref, state);
+                }
+            });
+        }
+
+        @Override
+        public void writeCoils(final int unitId, final int ref, final BitVector coils) {
+            call(priority, new Function<ModbusMaster, Void>() {
+                @Override
+                public Void apply(ModbusMaster m) {
+                    m.writeCoils(unitId, ref, coils);
+                    return null;
+                }
+            });
+        }
+
+        @Override
+        public List<InputRegister> readInputRegisters(final int unitId, final int ref, final int count) {
+            return call(priority, new Function<ModbusMaster, List<InputRegister>>() {
+                @Override
+                public List<InputRegister> apply(ModbusMaster m) {
+                    return m.readInputRegisters(unitId, ref, count);
+                }
+            });
+        }
+
+        @Override
+        public List<Register> readHoldingRegisters(final int unitId, final int ref, final int count) {
+            return call(priority, new Function<ModbusMaster, List<Register>>() {
+                @Override
+                public List<Register> apply(ModbusMaster m) {
+                    return m.readHoldingRegisters(unitId, ref, count);
+                }
+            });
+        }
+
+        @Override
+        public void writeHoldingRegister(final int unitId, final int ref, final Register register) {
+            call(priority, new Function<ModbusMaster, Void>() {
+                @Override
+                public Void apply(ModbusMaster m) {
+                    m.writeHoldingRegister(unitId, ref, register);
+                    return null;
+                }
+            });
+        }
+
+        @Override
+        public void writeHoldingRegisters(final int unitId, final int ref, final List<Register> registers) {
+            call(priority, new Function<ModbusMaster, Void>() {
+                @Override
+                public Void apply(ModbusMaster m) {
+                    m.writeHoldingRegisters(unitId, ref, registers);
+                    return null;
+                }
+            });
+        }
+
+    }
+
+}
@@ -16,15 +16,18 @@
 package cc.koosha.modbus.modbus.transaction;
 
 import cc.koosha.modbus.Modbus;
+import cc.koosha.modbus.ModbusException;
+import cc.koosha.modbus.ModbusSlaveException;
 import cc.koosha.modbus.modbus.transport.ModbusTransport;
 import cc.koosha.modbus.msg.ModbusRequest;
 import cc.koosha.modbus.msg.ModbusResponse;
+import cc.koosha.modbus.util.TransactionIdAllocator;
 import lombok.AccessLevel;
 import lombok.Getter;
+import lombok.NonNull;
 import lombok.Setter;
 
-import java.security.SecureRandom;
-import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -39,7 +42,7 @@ import java.util.Random;
  */
 public abstract class AbstractModbusTransaction implements ModbusTransaction {
 
-    private static final Random random = new SecureRandom();
+    static final RetryPolicy DEFAULT_RETRY_POLICY = ExponentialBackoff.builder().build();
 
 
     private final ModbusTransport transport;
@@ -48,8 +51,19 @@ public abstract class AbstractModbusTransaction implements ModbusTransaction {
         return transport;
     }
 
+    /**
+     * Transaction ids of the connection this transaction runs on.
+     */
+    @Getter(AccessLevel.PROTECTED)
+    private final TransactionIdAllocator transactionIds;
+
     AbstractModbusTransaction(ModbusTransport transport) {
+        this(transport, new TransactionIdAllocator());
+    }
+
+    AbstractModbusTransaction(ModbusTransport transport, TransactionIdAllocator transactionIds) {
         this.transport = transport;
+        this.transactionIds = transactionIds;
     }
 
 
@@ -84,8 +98,22 @@ public abstract class AbstractModbusTransaction implements ModbusTransaction {
     @Getter(AccessLevel.PROTECTED)
     private int retries = Modbus.DEFAULT_RETRIES;
 
+    /**
+     * Circuit breaker of the transport, failing requests to units which
+     * stopped responding without sending them. Null to always send.
+     */
+    @Setter
+    @Getter
+    private CircuitBreaker circuitBreaker;
 
-    static int transactionID = Modbus.DEFAULT_TRANSACTION_ID;
+    /**
+     * Decides whether and when failed tries are retried, within {@link
+     * #getRetries()}.
+     */
+    @NonNull
+    @Setter
+    @Getter
+    private RetryPolicy retryPolicy = DEFAULT_RETRY_POLICY;
 
 
     /**
@@ -99,38 +127,80 @@ public abstract class AbstractModbusTransaction implements ModbusTransaction {
      */
     public void setRequest(ModbusRequest req) {
         request = req;
-        if (req != null)
-            request.setTransactionID(getTransactionID());
     }
 
     /**
-     * getTransactionID -- get the next transaction ID to use.
+     * Gives the request a transaction id not in flight on the connection. The
+     * id must be released with {@link #releaseTransactionId(int)} once the
+     * request is answered or given up on.
+     *
+     * @return the transaction id.
+     */
+    int acquireTransactionId() {
+        final int id = transactionIds.acquire();
+        request.setTransactionID(id);
+        return id;
+    }
+
+    void releaseTransactionId(int id) {
+        transactionIds.release(id);
+    }
+
+    /**
+     * Sends the request and reads its response, trying up to the given
+     * number of times.
+     *
+     * @param retryLimit maximum number of tries.
+     * @throws ModbusException if no try succeeded, or the slave answered
+     *                         with an exception.
+     */
+    abstract void execute(int retryLimit) throws ModbusException;
+
+    /**
+     * {@link #execute(int) Executes} the request through the {@link
+     * #getCircuitBreaker() circuit breaker}, if any. A unit which stopped
+     * responding fails at once, and a probe of it is not retried. An
+     * exception response counts as an answer.
      *
-     * @return next transaction ID to use
+     * @param retryLimit maximum number of tries.
+     * @throws ModbusException if the breaker is open, no try succeeded, or
+     *                         the slave answered with an exception.
      */
-    synchronized int getTransactionID() {
-        /*
-         * Ensure that the transaction ID is in the valid range between
-         * 0 and MAX_TRANSACTION_ID (65534).  If not, the value will be forced
-         * to 0.
-         */
-        if (transactionID < Modbus.DEFAULT_TRANSACTION_ID && isValidityCheck())
-            transactionID = Modbus.DEFAULT_TRANSACTION_ID;
-        if (transactionID >= Modbus.MAX_TRANSACTION_ID)
-            transactionID = Modbus.DEFAULT_TRANSACTION_ID;
-        return transactionID;
+    void executeGuarded(int retryLimit) throws ModbusException {
+        final CircuitBreaker circuitBreaker = getCircuitBreaker();
+        if (circuitBreaker == null) {
+            execute(retryLimit);
+            return;
+        }
+
+        final int unitId = getRequest().getUnitID();
+        final boolean probe = circuitBreaker.acquire(unitId) == CircuitBreaker.State.HALF_OPEN;
+        boolean answered = false;
+        try {
+            execute(probe ? 1 : retryLimit);
+            answered = true;
+        }
+        catch (ModbusSlaveException e) {
+            answered = true;
+            throw e;
+        }
+        finally {
+            if (answered)
+                circuitBreaker.success(unitId);
+            else
+                circuitBreaker.failure(unitId);
+        }
     }
 
     /**
-     * A useful method for getting a random sleep time based on an increment of
-     * the retry count and retry sleep time
+     * Delay before the next try, according to the retry policy.
      *
-     * @param count Retry count
-     * @return Random sleep time in milliseconds
+     * @param failures number of tries failed so far.
+     * @param started  {@link System#nanoTime()} when the first try started.
+     * @return delay in milliseconds, negative to give up.
      */
-    long getRandomSleepTime(int count) {
-        return (Modbus.RETRY_SLEEP_TIME / 2) +
-                (long) (random.nextDouble() * Modbus.RETRY_SLEEP_TIME * count);
+    long getRetryDelay(int failures, long started) {
+        return retryPolicy.getDelay(failures, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,29 @@
+package cc.koosha.modbus.modbus.transaction;
+
+import cc.koosha.modbus.msg.ModbusRequest;
+import cc.koosha.modbus.msg.ModbusResponse;
+import cc.koosha.modbus.util.ModbusFuture;
+
+
+/**
+ * A transaction which executes requests without blocking the caller.
+ * <p>
+ * Unlike {@link ModbusTransaction} it holds no request or response, so it can
+ * be used by many callers at once.
+ *
+ * @author Koosha Hosseiny
+ */
+public interface AsyncModbusTransaction {
+
+    /**
+     * Sends the request and returns immediately.
+     *
+     * @param request the request to execute.
+     * @return future of the response, failed with a {@link
+     * cc.koosha.modbus.ModbusSlaveException} if the slave answered with an
+     * exception, or with a {@link cc.koosha.modbus.ModbusException} on I/O
+     * errors.
+     */
+    ModbusFuture<ModbusResponse> executeAsync(ModbusRequest request);
+
+}
@@ -0,0 +1,164 @@
+package cc.koosha.modbus.modbus.transaction;
+
+import cc.koosha.modbus.CircuitOpenException;
+import cc.koosha.modbus.xinternal.J2ModCollections;
+import cc.koosha.modbus.xinternal.J2ModPrecondition;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Stops sending requests to units which stopped responding, so that a dead
+ * device does not hold up the transport, retry after retry, on every poll.
+ * <p>
+ * An instance belongs to a single transport and keeps a state per unit id:
+ * <ul>
+ * <li>{@link State#CLOSED}: requests go through. After {@link
+ * #getFailureThreshold()} failed transactions in a row the circuit opens.</li>
+ * <li>{@link State#OPEN}: requests fail at once with {@link
+ * CircuitOpenException}, for {@link #getOpenTime()}.</li>
+ * <li>{@link State#HALF_OPEN}: the next request is let through as a probe,
+ * sent only once, while the others keep failing. The circuit closes if the
+ * unit answers, and opens again if it does not.</li>
+ * </ul>
+ * As devices are polled periodically, the probe is simply the next poll
+ * after the open time. Exception responses count as answers: the device is
+ * alive.
+ *
+ * @author Koosha Hosseiny
+ */
+@Slf4j
+@ThreadSafe
+public final class CircuitBreaker {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN,
+    }
+
+    private static final class Circuit {
+
+        private State state = State.CLOSED;
+        private int failures;
+        private long openedAt;
+        private boolean probing;
+
+    }
+
+    private final Object LOCK = new Object();
+
+    /**
+     * Guarded by LOCK.
+     */
+    private final Map<Integer, Circuit> circuits = J2ModCollections.newModifiableMap();
+
+    /**
+     * Number of failed transactions in a row opening the circuit.
+     */
+    @Getter
+    private final int failureThreshold;
+
+    /**
+     * Time a circuit stays open before a probe is let through, in
+     * milliseconds.
+     */
+    @Getter
+    private final long openTime;
+
+    public CircuitBreaker(int failureThreshold, long openTime) {
+        J2ModPrecondition.ensurePositive(failureThreshold, "failureThreshold");
+        if (openTime <= 0)
+            throw new IllegalArgumentException("openTime: " + openTime);
+        this.failureThreshold = failureThreshold;
+        this.openTime = openTime;
+    }
+
+    /**
+     * Checks whether a request may be sent to the unit. Each successful call
+     * must be followed by a call to {@link #success(int)} or {@link
+     * #failure(int)}.
+     *
+     * @param unitId the unit.
+     * @return {@link State#CLOSED}, or {@link State#HALF_OPEN} if the
+     * request is a probe and should not be retried.
+     * @throws CircuitOpenException if the request must not be sent.
+     */
+    public State acquire(int unitId) throws CircuitOpenException {
+        synchronized (LOCK) {
+            final Circuit circuit = circuits.get(unitId);
+            if (circuit == null)
+                return State.CLOSED;
+            switch (circuit.state) {
+                case CLOSED:
+                    return State.CLOSED;
+                case OPEN:
+                    if (System.nanoTime() - circuit.openedAt < TimeUnit.MILLISECONDS.toNanos(openTime))
+                        throw new CircuitOpenException(unitId);
+                    circuit.state = State.HALF_OPEN;
+                    circuit.probing = false;
+                    // fall through
+                case HALF_OPEN:
+                    if (circuit.probing)
+                        throw new CircuitOpenException(unitId);
+                    circuit.probing = true;
+                    log.debug("probing unit {}", unitId);
+                    return State.HALF_OPEN;
+                default:
+                    throw new IllegalStateException("state: " + circuit.state);
+            }
+        }
+    }
+
+    /**
+     * The unit answered.
+     *
+     * @param unitId the unit.
+     */
+    public void success(int unitId) {
+        synchronized (LOCK) {
+            final Circuit circuit = circuits.remove(unitId);
+            if (circuit != null && circuit.state != State.CLOSED)
+                log.info("unit {} is responding again, circuit closed", unitId);
+        }
+    }
+
+    /**
+     * The unit did not answer, retries included.
+     *
+     * @param unitId the unit.
+     */
+    public void failure(int unitId) {
+        synchronized (LOCK) {
+            Circuit circuit = circuits.get(unitId);
+            if (circuit == null) {
+                circuit = new Circuit();
+                circuits.put(unitId, circuit);
+            }
+            circuit.failures++;
+            circuit.probing = false;
+            if (circuit.state == State.HALF_OPEN || circuit.failures >= failureThreshold) {
+                if (circuit.state == State.CLOSED)
+                    log.warn("unit {} is not responding, circuit open", unitId);
+                circuit.state = State.OPEN;
+                circuit.openedAt = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * @param unitId the unit.
+     * @return current state of the circuit of the unit.
+     */
+    public State getState(int unitId) {
+        synchronized (LOCK) {
+            final Circuit circuit = circuits.get(unitId);
+            return circuit == null ? State.CLOSED : circuit.state;
+        }
+    }
+
+}
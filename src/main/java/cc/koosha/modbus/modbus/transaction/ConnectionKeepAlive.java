@@ -0,0 +1,240 @@
+package cc.koosha.modbus.modbus.transaction;
+
+import cc.koosha.modbus.CircuitOpenException;
+import cc.koosha.modbus.ModbusException;
+import cc.koosha.modbus.ModbusSlaveException;
+import cc.koosha.modbus.io.net.ConnectionSupervisor;
+import cc.koosha.modbus.io.net.TCPMasterConnection;
+import cc.koosha.modbus.msg.ModbusRequest;
+import cc.koosha.modbus.msg.request.ReadSerialDiagnosticsRequest;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Probes a {@link TCPMasterConnection} when it has been idle for a while, so
+ * that a half-open connection is found and closed before a real poll runs
+ * into it and waits for a timeout.
+ * <p>
+ * Whenever the peer has not answered for {@link #getInterval()}, a cheap
+ * request is sent to it: by default a diagnostics "return query data"
+ * (function code 8, sub-function 0), which any device can answer without
+ * side effects. Exception responses, from devices not implementing it, show
+ * the device is alive just as well; {@link #setProbe(ModbusRequest)} can set
+ * another request, such as read exception status (function code 7). The
+ * probe goes through a {@link ModbusTCPTransaction} with a single try, so a
+ * connection in use by polls is never probed and a busy connection waits for
+ * the probe no longer than for any other request.
+ * <p>
+ * If the probe fails the connection is reported lost to its {@link
+ * ConnectionSupervisor}, which reconnects it in the background, or closed
+ * if it has none, to be opened again by the next transaction. A probe not
+ * sent because the circuit of its unit is open is not a failure of the
+ * link.
+ * <p>
+ * Many connections may share a single scheduler.
+ *
+ * @author Koosha Hosseiny
+ */
+@Slf4j
+@ThreadSafe
+public final class ConnectionKeepAlive implements Closeable {
+
+    /**
+     * Sub-function of function code 8 echoing the request data.
+     */
+    private static final int RETURN_QUERY_DATA = 0;
+
+    private static final int PROBE_DATA = 0xA55A;
+
+    @Getter
+    private final TCPMasterConnection connection;
+
+    private final ConnectionSupervisor supervisor;
+
+    /**
+     * Idle time after which the connection is probed, in milliseconds.
+     */
+    @Getter
+    private final long interval;
+
+    private final ModbusTCPTransaction transaction;
+
+    private final ScheduledExecutorService executor;
+
+    private final boolean ownExecutor;
+
+    private final ScheduledFuture<?> task;
+
+    private final AtomicLong probes = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private volatile ModbusRequest probe;
+
+    /**
+     * Starts probing with a scheduler of its own.
+     *
+     * @see #ConnectionKeepAlive(TCPMasterConnection, ConnectionSupervisor,
+     * int, long, ScheduledExecutorService)
+     */
+    public ConnectionKeepAlive(TCPMasterConnection connection,
+                               ConnectionSupervisor supervisor,
+                               int unitId,
+                               long interval) {
+        this(connection, supervisor, unitId, interval, null);
+    }
+
+    /**
+     * Starts probing.
+     *
+     * @param connection the connection.
+     * @param supervisor supervisor of the connection, or null.
+     * @param unitId     unit the probes are sent to.
+     * @param interval   idle time after which the connection is probed, in
+     *                   milliseconds.
+     * @param executor   scheduler running the probes, or null to use a
+     *                   thread of its own. A shared scheduler is not shut
+     *                   down on close.
+     */
+    public ConnectionKeepAlive(@NonNull TCPMasterConnection connection,
+                               ConnectionSupervisor supervisor,
+                               int unitId,
+                               long interval,
+                               ScheduledExecutorService executor) {
+        if (interval <= 0)
+            throw new IllegalArgumentException("interval: " + interval);
+        this.connection = connection;
+        this.supervisor = supervisor;
+        this.interval = interval;
+
+        final ReadSerialDiagnosticsRequest echo = new ReadSerialDiagnosticsRequest();
+        echo.setUnitID(unitId);
+        echo.setFunction(RETURN_QUERY_DATA);
+        echo.setData(PROBE_DATA);
+        this.probe = echo;
+
+        // No circuit breaker: the probe tests the link, not the unit.
+        this.transaction = new ModbusTCPTransaction(connection);
+        this.transaction.setRetries(1);
+        this.transaction.setSupervisor(supervisor);
+
+        this.ownExecutor = executor == null;
+        this.executor = executor != null ? executor : newExecutor();
+        // Half the interval, so that a connection is probed at most twice
+        // the interval after its last answer.
+        final long period = Math.max(1, interval / 2);
+        this.task = this.executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                check();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sets the request sent as probe.
+     *
+     * @param probe a request without side effects.
+     */
+    public void setProbe(@NonNull ModbusRequest probe) {
+        this.probe = probe;
+    }
+
+    public ModbusRequest getProbe() {
+        return probe;
+    }
+
+    /**
+     * @return number of probes sent.
+     */
+    public long getProbes() {
+        return probes.get();
+    }
+
+    /**
+     * @return number of probes which found the connection dead.
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Stops probing.
+     */
+    @Override
+    public void close() {
+        task.cancel(false);
+        if (ownExecutor)
+            executor.shutdownNow();
+    }
+
+
+    private void check() {
+        if (supervisor != null ? !supervisor.isConnected() : !connection.isConnected())
+            return;
+        if (connection.getIdleTime() < interval)
+            return;
+
+        probes.incrementAndGet();
+        transaction.setRequest(probe);
+        try {
+            transaction.execute();
+            log.trace("{}:{} alive", connection.getAddress(), connection.getPort());
+        }
+        catch (ModbusSlaveException e) {
+            // Answered, with an exception: alive.
+            connection.touch();
+        }
+        catch (CircuitOpenException e) {
+            // Says nothing about the link, only that the unit was not asked.
+            log.debug("keepalive probe to unit {} not sent: {}", e.getUnitId(), e.getMessage());
+        }
+        catch (ModbusException e) {
+            failures.incrementAndGet();
+            log.info("{}:{} did not answer keepalive probe, dropping connection: {}",
+                     connection.getAddress(), connection.getPort(), e.getMessage());
+            // Reported to the supervisor by the transaction, if any.
+            if (supervisor == null)
+                closeConnection();
+        }
+        catch (RuntimeException e) {
+            log.error("keepalive probe failed", e);
+        }
+    }
+
+    private void closeConnection() {
+        synchronized (connection) {
+            try {
+                connection.close();
+            }
+            catch (Exception e) {
+                log.debug("failed to close connection: {}", e.getMessage());
+            }
+        }
+    }
+
+    private static ScheduledExecutorService newExecutor() {
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "j2mod-keepalive");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        return executor;
+    }
+
+}
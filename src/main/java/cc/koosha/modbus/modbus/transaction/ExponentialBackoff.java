@@ -0,0 +1,82 @@
+package cc.koosha.modbus.modbus.transaction;
+
+import cc.koosha.modbus.Modbus;
+import lombok.Builder;
+import lombok.Value;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Random;
+
+
+/**
+ * Retries with a delay doubling on each failure, from {@link #getBaseDelay()}
+ * up to {@link #getMaxDelay()}.
+ * <p>
+ * The delay actually used is drawn uniformly from the upper half of the
+ * current step, so that masters failing at the same time, say when a gateway
+ * restarts, do not all retry at the same time. Random numbers come from a
+ * {@link Random} per thread: cheap, and never blocking the way a shared
+ * {@link java.security.SecureRandom} may.
+ * <p>
+ * Gives up after {@link #getMaxAttempts()} tries, or when the next try would
+ * start after {@link #getDeadline()}, whichever comes first.
+ *
+ * @author Koosha Hosseiny
+ */
+@Value
+@Builder
+@ThreadSafe
+public final class ExponentialBackoff implements RetryPolicy {
+
+    private static final ThreadLocal<Random> RANDOM = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    /**
+     * Delay after the first failure, in milliseconds.
+     */
+    @Builder.Default
+    private final long baseDelay = Modbus.RETRY_SLEEP_TIME;
+
+    /**
+     * Maximum delay, in milliseconds.
+     */
+    @Builder.Default
+    private final long maxDelay = Modbus.RETRY_SLEEP_TIME * 8;
+
+    /**
+     * Maximum number of tries, the first one included. Zero for no limit
+     * besides the deadline, and the retries of the transaction.
+     */
+    @Builder.Default
+    private final int maxAttempts = 0;
+
+    /**
+     * Time after the first try after which no try is started, in
+     * milliseconds. Zero for no deadline.
+     */
+    @Builder.Default
+    private final long deadline = 0;
+
+    @Override
+    public long getDelay(int failures, long elapsed) {
+        if (maxAttempts > 0 && failures >= maxAttempts)
+            return -1;
+
+        // Shifting by more than 62 overflows, the ceiling is reached anyway.
+        final int shift = Math.min(failures - 1, 62);
+        long step = baseDelay << shift;
+        if (step > maxDelay || step >> shift != baseDelay)
+            step = maxDelay;
+        final long half = step / 2;
+        final long delay = half + (long) (RANDOM.get().nextDouble() * (step - half));
+
+        if (deadline > 0 && elapsed + delay > deadline)
+            return -1;
+        return delay;
+    }
+
+}
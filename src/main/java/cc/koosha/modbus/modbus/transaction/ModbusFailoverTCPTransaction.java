@@ -0,0 +1,116 @@
+package cc.koosha.modbus.modbus.transaction;
+
+import cc.koosha.modbus.ModbusException;
+import cc.koosha.modbus.ModbusSlaveException;
+import cc.koosha.modbus.io.net.ConnectionSupervisor;
+import cc.koosha.modbus.io.net.RedundantTCPMasterConnection;
+import cc.koosha.modbus.msg.ModbusRequest;
+import cc.koosha.modbus.msg.ModbusResponse;
+import cc.koosha.modbus.xinternal.J2ModPrecondition;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Class implementing the <tt>ModbusTransaction</tt> interface on top of a
+ * {@link RedundantTCPMasterConnection}.
+ * <p>
+ * The request is sent to the active endpoint, through a {@link
+ * ModbusTCPTransaction} of its own. By default each endpoint gets a single
+ * try: the first I/O error or timeout marks its connection as lost, the next
+ * connected endpoint becomes active and the request is sent again there,
+ * instead of exhausting the retries on a dead endpoint. The request fails
+ * once every connected endpoint has been tried.
+ * <p>
+ * Exception responses and invalid responses leave the connection up, and are
+ * not failed over.
+ *
+ * @author Koosha Hosseiny
+ */
+@Slf4j
+public final class ModbusFailoverTCPTransaction implements ModbusTransaction {
+
+    @Getter
+    private final RedundantTCPMasterConnection connection;
+
+    /**
+     * Transactions of the endpoints, in the same order.
+     */
+    private final List<ModbusTCPTransaction> transactions;
+
+    @Getter
+    private ModbusRequest request;
+
+    @Getter
+    private ModbusResponse response;
+
+    public ModbusFailoverTCPTransaction(@NonNull RedundantTCPMasterConnection connection) {
+        this.connection = connection;
+        final List<ConnectionSupervisor> supervisors = connection.getSupervisors();
+        this.transactions = new ArrayList<ModbusTCPTransaction>(supervisors.size());
+        for (ConnectionSupervisor supervisor : supervisors) {
+            final ModbusTCPTransaction transaction = new ModbusTCPTransaction(supervisor.getConnection());
+            transaction.setSupervisor(supervisor);
+            transaction.setRetries(1);
+            transactions.add(transaction);
+        }
+    }
+
+    @Override
+    public void setRequest(ModbusRequest request) {
+        this.request = request;
+    }
+
+    /**
+     * Sets the number of tries on each endpoint before failing over.
+     *
+     * @param retries tries per endpoint, 1 to fail over on the first error.
+     */
+    public void setRetries(int retries) {
+        J2ModPrecondition.ensurePositive(retries, "retries");
+        for (ModbusTCPTransaction transaction : transactions)
+            transaction.setRetries(retries);
+    }
+
+    public void setValidityCheck(boolean validityCheck) {
+        for (ModbusTCPTransaction transaction : transactions)
+            transaction.setValidityCheck(validityCheck);
+    }
+
+    @Override
+    public void execute() throws ModbusException {
+        J2ModPrecondition.ensureNotNullState(request, "request not set");
+        response = null;
+        ModbusException failure = null;
+        for (int tried = 0; tried < transactions.size(); tried++) {
+            final int index = connection.getActiveIndex();
+            if (index < 0)
+                break;
+            final ModbusTCPTransaction transaction = transactions.get(index);
+            transaction.setRequest(request);
+            try {
+                transaction.execute();
+                response = transaction.getResponse();
+                return;
+            }
+            catch (ModbusSlaveException e) {
+                throw e;
+            }
+            catch (ModbusException e) {
+                // Still connected: the endpoint answered, wrongly.
+                if (connection.getSupervisors().get(index).isConnected())
+                    throw e;
+                log.debug("endpoint {} failed, failing over: {}", index, e.getMessage());
+                failure = e;
+            }
+        }
+        if (failure != null)
+            throw failure;
+        connection.ensureActive();
+    }
+
+}
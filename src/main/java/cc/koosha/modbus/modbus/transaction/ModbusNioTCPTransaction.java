@@ -0,0 +1,189 @@
+package cc.koosha.modbus.modbus.transaction;
+
+import cc.koosha.modbus.CircuitOpenException;
+import cc.koosha.modbus.Modbus;
+import cc.koosha.modbus.ModbusException;
+import cc.koosha.modbus.ModbusSlaveException;
+import cc.koosha.modbus.modbus.transport.ModbusNioTCPTransport;
+import cc.koosha.modbus.msg.ModbusRequest;
+import cc.koosha.modbus.msg.ModbusResponse;
+import cc.koosha.modbus.msg.response.ExceptionResponse;
+import cc.koosha.modbus.util.FutureCallback;
+import cc.koosha.modbus.util.ModbusFuture;
+import cc.koosha.modbus.xinternal.J2ModPrecondition;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Class implementing the <tt>ModbusTransaction</tt> interface on top of a
+ * {@link ModbusNioTCPTransport}.
+ * <p>
+ * {@link #execute()} behaves just like {@link ModbusTCPTransaction#execute()}
+ * so it can replace it in a master, while {@link
+ * #executeAsync(ModbusRequest)} does not block at all: retries are scheduled
+ * on the reactor thread, after the delay of the {@link RetryPolicy}, and no
+ * thread waits for the response.
+ *
+ * @author Koosha Hosseiny
+ */
+@Slf4j
+public final class ModbusNioTCPTransaction extends AbstractModbusTransaction implements AsyncModbusTransaction {
+
+    private final ModbusNioTCPTransport transport;
+
+    public ModbusNioTCPTransaction(@NonNull ModbusNioTCPTransport transport) {
+        super(transport);
+        this.transport = transport;
+    }
+
+    @Override
+    public void execute() throws ModbusException {
+        J2ModPrecondition.ensureNotNullState(getRequest(), "request not set");
+        executeGuarded(retryLimit());
+    }
+
+    @Override
+    void execute(int retryLimit) throws ModbusException {
+        setResponse(null);
+        final ModbusFuture<ModbusResponse> result = new ModbusFuture<ModbusResponse>();
+        attempt(getRequest(), result, 1, retryLimit, System.nanoTime());
+        try {
+            setResponse(result.get());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ModbusException("interrupted while executing transaction", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof ModbusException)
+                throw (ModbusException) e.getCause();
+            throw new ModbusException("executing transaction failed", e.getCause());
+        }
+    }
+
+    /**
+     * Executes the request without blocking. The transaction's own request and
+     * response are not touched, so many requests may be executed concurrently
+     * through the same transaction.
+     * <p>
+     * The request is retried on I/O errors up to {@link #getRetries()} times,
+     * as the {@link #getRetryPolicy()} allows.
+     * The future fails with a {@link ModbusSlaveException} if the slave
+     * answers with an exception, or with the last I/O error once retries are
+     * exhausted.
+     * <p>
+     * Just like {@link #execute()}, the request goes through the {@link
+     * #getCircuitBreaker()} if set: the future fails at once with a {@link
+     * CircuitOpenException} while the circuit of the unit is open, and the
+     * outcome is recorded on the breaker before the future completes.
+     *
+     * @param request the request to execute.
+     * @return future of the response.
+     */
+    @Override
+    public ModbusFuture<ModbusResponse> executeAsync(@NonNull ModbusRequest request) {
+        final ModbusFuture<ModbusResponse> result = new ModbusFuture<ModbusResponse>();
+        final CircuitBreaker circuitBreaker = getCircuitBreaker();
+        if (circuitBreaker == null) {
+            attempt(request, result, 1, retryLimit(), System.nanoTime());
+            return result;
+        }
+
+        final int unitId = request.getUnitID();
+        final boolean probe;
+        try {
+            probe = circuitBreaker.acquire(unitId) == CircuitBreaker.State.HALF_OPEN;
+        }
+        catch (CircuitOpenException e) {
+            result.setException(e);
+            return result;
+        }
+        // The outcome is recorded before the caller sees it, whether through
+        // get() or a callback.
+        final ModbusFuture<ModbusResponse> attempted = new ModbusFuture<ModbusResponse>();
+        attempted.addCallback(new FutureCallback<ModbusResponse>() {
+            @Override
+            public void onSuccess(ModbusResponse response) {
+                circuitBreaker.success(unitId);
+                result.set(response);
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                if (error instanceof ModbusSlaveException)
+                    circuitBreaker.success(unitId);
+                else
+                    circuitBreaker.failure(unitId);
+                result.setException(error);
+            }
+        });
+        result.addCallback(new FutureCallback<ModbusResponse>() {
+            @Override
+            public void onSuccess(ModbusResponse response) {
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                if (error instanceof CancellationException)
+                    attempted.cancel(false);
+            }
+        });
+        attempt(request, attempted, 1, probe ? 1 : retryLimit(), System.nanoTime());
+        return result;
+    }
+
+
+    private int retryLimit() {
+        return getRetries() > 0 ? getRetries() : Modbus.DEFAULT_RETRIES;
+    }
+
+
+    private void attempt(final ModbusRequest request,
+                         final ModbusFuture<ModbusResponse> result,
+                         final int tries,
+                         final int retryLimit,
+                         final long started) {
+        if (result.isDone())
+            return;
+
+        transport.send(request).addCallback(new FutureCallback<ModbusResponse>() {
+            @Override
+            public void onSuccess(ModbusResponse response) {
+                if (response instanceof ExceptionResponse)
+                    result.setException(new ModbusSlaveException(
+                            ((ExceptionResponse) response).getExceptionCode()));
+                else
+                    result.set(response);
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                final long delay = error instanceof CancellationException || tries >= retryLimit
+                                   ? -1
+                                   : getRetryDelay(tries, started);
+                if (delay < 0) {
+                    result.setException(error instanceof IOException
+                                        ? new ModbusException("executing transaction failed (tried "
+                                                                      + tries + " times)", error)
+                                        : error);
+                    return;
+                }
+                log.debug("transaction try {} failed, retrying in {} ms: {}", tries, delay, error.getMessage());
+                // Backing off on the reactor, no thread waits.
+                transport.getConnection().getReactor().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        attempt(request, result, tries + 1, retryLimit, started);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+}
@@ -18,7 +18,7 @@ package cc.koosha.modbus.modbus.transaction;
 import cc.koosha.modbus.Modbus;
 import cc.koosha.modbus.ModbusException;
 import java.io.IOException;
-import com.cc.koosha.modbus.ModbusSlaveException;
+import cc.koosha.modbus.ModbusSlaveException;
 import cc.koosha.modbus.xinternal.J2ModUtils;
 import cc.koosha.modbus.modbus.transport.ModbusSerialTransport;
 import cc.koosha.modbus.msg.response.ExceptionResponse;
@@ -66,8 +66,15 @@ public final class ModbusSerialTransaction extends AbstractModbusTransaction {
         //1. assert executeability
         assertExecutable();
 
+        //2. check the unit is responding at all
+        executeGuarded(getRetries());
+    }
+
+    @Override
+    void execute(int retryLimit) throws ModbusException {
         //3. write request, and read response,
         //   while holding the lock on the IO object
+        final long started = System.nanoTime();
         int tries = 0;
         boolean finished = false;
         do {
@@ -85,10 +92,13 @@ public final class ModbusSerialTransaction extends AbstractModbusTransaction {
                 }
             }
             catch (IOException e) {
-                if (++tries >= getRetries()) {
+                final long delay = ++tries >= retryLimit
+                                   ? -1
+                                   : getRetryDelay(tries, started);
+                if (delay < 0) {
                     throw e;
                 }
-                J2ModUtils.sleep(getRandomSleepTime(tries));
+                J2ModUtils.sleep(delay);
                 log.debug("Execute try {} error: {}", tries, e.getMessage());
             }
         } while (!finished);
@@ -98,11 +108,9 @@ public final class ModbusSerialTransaction extends AbstractModbusTransaction {
             throw new ModbusSlaveException(((ExceptionResponse) getResponse()).getExceptionCode());
         }
 
-        if (isCheckingValidity()) {
+        if (isValidityCheck()) {
             checkValidity();
         }
-        //toggle the id
-        toggleTransactionID();
 
         // Set the last transaction timestamp
         lastTransactionTimestamp = System.currentTimeMillis();
@@ -118,21 +126,4 @@ public final class ModbusSerialTransaction extends AbstractModbusTransaction {
 
     }
 
-    /**
-     * Toggles the transaction identifier, to ensure that each transaction has a
-     * distinctive identifier.<br> When the maximum value of 65535 has been
-     * reached, the identifiers will start from zero again.
-     */
-    private void toggleTransactionID() {
-        if (isCheckingValidity()) {
-            if (transactionID == (Short.MAX_VALUE * 2)) {
-                transactionID = 0;
-            }
-            else {
-                transactionID++;
-            }
-        }
-        getRequest().setTransactionID(getTransactionID());
-    }
-
 }
@@ -18,11 +18,16 @@ package cc.koosha.modbus.modbus.transaction;
 import cc.koosha.modbus.Modbus;
 import cc.koosha.modbus.ModbusException;
 import java.io.IOException;
+import java.net.SocketTimeoutException;
+import cc.koosha.modbus.io.net.ConnectionSupervisor;
 import cc.koosha.modbus.io.net.TCPMasterConnection;
+import cc.koosha.modbus.modbus.transport.ModbusTCPTransport;
+import cc.koosha.modbus.msg.ModbusResponse;
 import cc.koosha.modbus.msg.response.ExceptionResponse;
+import cc.koosha.modbus.util.AdaptiveTimeout;
 import cc.koosha.modbus.xinternal.J2ModDebugUtils;
 import cc.koosha.modbus.xinternal.J2ModUtils;
-import com.cc.koosha.modbus.ModbusSlaveException;
+import cc.koosha.modbus.ModbusSlaveException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -41,6 +46,14 @@ public class ModbusTCPTransaction extends AbstractModbusTransaction {
     // instance attributes and associations
     private TCPMasterConnection connection;
     protected boolean reconnecting = Modbus.DEFAULT_RECONNECTING;
+    private AdaptiveTimeout adaptiveTimeout;
+    private ConnectionSupervisor supervisor;
+
+    /**
+     * Maximum number of late responses, to earlier tries, skipped while
+     * waiting for the response to the current try.
+     */
+    private static final int MAX_STALE_RESPONSES = 16;
 
     /**
      * Constructs a new <tt>ModbusTCPTransaction</tt> instance with a given
@@ -50,7 +63,7 @@ public class ModbusTCPTransaction extends AbstractModbusTransaction {
      * @param con a <tt>TCPMasterConnection</tt> instance.
      */
     public ModbusTCPTransaction(TCPMasterConnection con) {
-        super(con.getTransport());
+        super(con.getTransport(), con.getTransactionIds());
         connection = con;
     }
 
@@ -78,130 +91,248 @@ public class ModbusTCPTransaction extends AbstractModbusTransaction {
         reconnecting = b;
     }
 
+    /**
+     * Returns the estimator deriving timeouts from the round trip time of
+     * each unit, or null if the timeout of the connection is used.
+     *
+     * @return the estimator, or null.
+     */
+    public AdaptiveTimeout getAdaptiveTimeout() {
+        return adaptiveTimeout;
+    }
+
+    /**
+     * Sets the estimator deriving timeouts from the round trip time of each
+     * unit. It should be used by this connection only.
+     *
+     * @param adaptiveTimeout the estimator, null to use the timeout of the
+     *                        connection.
+     */
+    public void setAdaptiveTimeout(AdaptiveTimeout adaptiveTimeout) {
+        this.adaptiveTimeout = adaptiveTimeout;
+    }
+
+    /**
+     * Returns the supervisor reconnecting the connection in the background,
+     * or null if the connection is opened by the transaction itself.
+     *
+     * @return the supervisor, or null.
+     */
+    public ConnectionSupervisor getSupervisor() {
+        return supervisor;
+    }
+
+    /**
+     * Sets the supervisor of the connection. When set, the transaction never
+     * connects on its own: it fails at once while the connection is down,
+     * and reports I/O errors to the supervisor.
+     *
+     * @param supervisor supervisor of the connection of this transaction, or
+     *                   null.
+     */
+    public void setSupervisor(ConnectionSupervisor supervisor) {
+        if (supervisor != null && supervisor.getConnection() != connection)
+            throw new IllegalArgumentException("supervisor of another connection");
+        this.supervisor = supervisor;
+    }
+
     @Override
-    public synchronized void execute() throws ModbusException {
+    public void execute() throws ModbusException {
 
         if (getRequest() == null || connection == null) {
             throw new ModbusException("Invalid request or connection");
         }
+        // Link down is not a failure of the unit, fail before the breaker.
+        if (supervisor != null) {
+            supervisor.ensureConnected();
+        }
+
+        final int retryLimit = (getRetries() > 0
+                                ? getRetries()
+                                : Modbus.DEFAULT_RETRIES);
+        executeGuarded(retryLimit);
+    }
 
+    @Override
+    void execute(int retryLimit) throws ModbusException {
         // Try sending the message up to retries time. Note that the message
         // is read immediately after being written, with no flushing of buffers.
+        final long started = System.nanoTime();
         int retryCounter = 0;
-        int retryLimit = (getRetries() > 0
-                          ? getRetries()
-                          : Modbus.DEFAULT_RETRIES);
-        boolean keepTrying = true;
 
         // While we haven't exhausted all the retry attempts
-        while (keepTrying) {
-
-            // Automatically connect if we aren't already connected
-            // TODO ensure transport is sete
-            if (!connection.isConnected()) {
-                try {
-                    logger.debug("Connecting to: {}:{}", connection.getAddress()
-                                                                   .toString(), connection
-                                         .getPort());
-                    connection.connect();
-                    // setTransport(connection.getModbusTransport());
+        while (true) {
+            final IOException failure;
+            final int transactionId = acquireTransactionId();
+            try {
+                // The connection is only held for the exchange itself, other
+                // transactions on it go on while this one backs off.
+                synchronized (connection) {
+                    failure = exchange(retryCounter);
                 }
-                catch (Exception ex) {
-                    throw new IOException("Connection failed for " +
-                                                        connection.getAddress() + ":" +
-                                                        connection.getPort(), ex);
+            }
+            finally {
+                releaseTransactionId(transactionId);
+            }
+            if (failure == null && !responseIsInValid())
+                break;
+
+            // We need to keep retrying if;
+            //   a) the exchange failed or the response is empty OR
+            //   b) we have been told to check the validity and the request/response transaction IDs don't match AND
+            //   c) we haven't exceeded the maximum retry count nor the deadline of the retry policy
+            retryCounter++;
+            final long sleepTime = retryCounter >= retryLimit
+                                   ? -1
+                                   : getRetryDelay(retryCounter, started);
+            if (sleepTime < 0) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Executing transaction {} failed (tried {} times): {}",
+                                 J2ModDebugUtils.toHex(getRequest()), retryCounter,
+                                 failure == null ? "invalid response" : failure.getMessage());
                 }
+                throw new ModbusException("Executing transaction failed (tried " + retryCounter + " times)",
+                                          failure);
+            }
+            if (failure != null) {
+                logger.debug("Failed transaction Request: {} (try: {}) - retrying after {} milliseconds",
+                             J2ModDebugUtils.toHex(getRequest()),
+                             retryCounter, sleepTime);
+            }
+            else if (getResponse() == null) {
+                logger.debug("Failed to get any response (try: {}) - retrying after {} milliseconds", retryCounter, sleepTime);
+            }
+            else {
+                logger.debug("Failed to get a valid response, transaction IDs do not match (try: {}) - retrying after {} milliseconds", retryCounter, sleepTime);
             }
+            J2ModUtils.sleep(sleepTime);
+        }
 
-            // Make sure the timeout is set
-            getTransport().setTimeout(connection.getTimeout());
+        // Close the connection if it isn't supposed to stick around.
+        if (isReconnecting() && supervisor == null) {
+            synchronized (connection) {
+                connection.close();
+            }
+        }
+    }
 
+    /**
+     * Writes the request and reads the response, once. Must hold the lock on
+     * the connection.
+     *
+     * @param retryCounter number of tries failed so far.
+     * @return the I/O error, the connection being closed, or null if a
+     * response was read.
+     */
+    private IOException exchange(int retryCounter) throws ModbusException {
+        // Automatically connect if we aren't already connected, unless
+        // reconnecting is left to the supervisor
+        // TODO ensure transport is sete
+        if (supervisor != null) {
+            supervisor.ensureConnected();
+        }
+        else if (!connection.isConnected()) {
             try {
+                logger.debug("Connecting to: {}:{}", connection.getAddress()
+                                                               .toString(), connection
+                                     .getPort());
+                connection.connect();
+                // setTransport(connection.getModbusTransport());
+            }
+            catch (Exception ex) {
+                throw new ModbusException("Connection failed for " +
+                                                  connection.getAddress() + ":" +
+                                                  connection.getPort(), ex);
+            }
+        }
 
-                // Write the message to the endpoint
-                logger.debug("Writing request: {} (try: {}) request transaction ID = {} to {}:{}",
-                             J2ModDebugUtils.toHex(getRequest()),
-                             retryCounter, getRequest().getTransactionID(), connection
-                                     .getAddress()
-                                     .toString(), connection.getPort());
-                getTransport().writeMessage(getRequest());
-
-                // Read the response
-                setResponse(getTransport().readResponse());
-                logger.debug("Read response: {} (try: {}) response transaction ID = {} from {}:{}",
-                             J2ModDebugUtils.toHex(getResponse()),
-                             retryCounter, getResponse().getTransactionID(), connection
-                                     .getAddress()
-                                     .toString(), connection.getPort());
-                keepTrying = false;
-
-                // The slave may have returned an exception -- check for that.
-                if (getResponse() instanceof ExceptionResponse) {
-                    throw new ModbusSlaveException(((ExceptionResponse) getResponse())
-                                                           .getExceptionCode());
-                }
+        final int unitId = getRequest().getUnitID();
+        try {
+            // The transport of the connection, which has none until first
+            // connected, later than this transaction may have been created.
+            final ModbusTCPTransport transport = connection.getTransport();
 
-                // We need to keep retrying if;
-                //   a) the response is empty OR
-                //   b) we have been told to check the validity and the request/response transaction IDs don't match AND
-                //   c) we haven't exceeded the maximum retry count
-                if (responseIsInValid()) {
-                    retryCounter++;
-                    if (retryCounter >= retryLimit) {
-                        throw new IOException("Executing transaction failed (tried " + retryLimit + " times)");
-                    }
-                    keepTrying = true;
-                    long sleepTime = getRandomSleepTime(retryCounter);
-                    if (getResponse() == null) {
-                        logger.debug("Failed to get any response (try: {}) - retrying after {} milliseconds", retryCounter, sleepTime);
-                    }
-                    else {
-                        logger.debug("Failed to get a valid response, transaction IDs do not match (try: {}) - retrying after {} milliseconds", retryCounter, sleepTime);
-                    }
-                    J2ModUtils.sleep(sleepTime);
-                }
+            // Make sure the timeout is set
+            transport.setTimeout(adaptiveTimeout != null
+                                                 ? (int) adaptiveTimeout.getTimeout(unitId)
+                                                 : connection.getTimeout());
+            final long sent = System.nanoTime();
+
+            // Write the message to the endpoint
+            logger.debug("Writing request: {} (try: {}) request transaction ID = {} to {}:{}",
+                         J2ModDebugUtils.toHex(getRequest()),
+                         retryCounter, getRequest().getTransactionID(), connection
+                                 .getAddress()
+                                 .toString(), connection.getPort());
+            transport.writeMessage(getRequest());
+
+            // Read the response, skipping late responses to earlier tries
+            setResponse(transport.readResponse());
+            for (int stale = 0; stale < MAX_STALE_RESPONSES && isStale(getResponse()); stale++) {
+                logger.debug("Discarding late response, transaction ID = {}", getResponse().getTransactionID());
+                setResponse(transport.readResponse());
             }
-            catch (IOException ex) {
-
-                // Up the retry counter and check if we are exhausted
-                retryCounter++;
-                if (retryCounter >= retryLimit) {
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("Executing transaction {} failed (tried " + retryLimit + " times): {}",
-                                     J2ModDebugUtils.toHex(getRequest()),
-                                     ex.getMessage());
-                    }
-                    throw new IOException("Executing transaction failed", ex);
-                }
-                else {
-                    long sleepTime = getRandomSleepTime(retryCounter);
-                    logger.debug("Failed transaction Request: {} (try: {}) - retrying after {} milliseconds",
-                                 J2ModDebugUtils.toHex(getRequest()),
-                                 retryCounter, sleepTime);
-                    J2ModUtils.sleep(sleepTime);
-                }
+            connection.touch();
+            logger.debug("Read response: {} (try: {}) response transaction ID = {} from {}:{}",
+                         J2ModDebugUtils.toHex(getResponse()),
+                         retryCounter, getResponse().getTransactionID(), connection
+                                 .getAddress()
+                                 .toString(), connection.getPort());
 
-                // If this has happened, then we should close and re-open the connection before re-trying
-                logger.debug("Failed request {} (try: {}) request transaction ID = {} - {} closing and re-opening connection {}:{}",
-                             J2ModDebugUtils.toHex(getRequest()),
-                             retryCounter, getRequest().getTransactionID(),
-                             ex.getMessage(),
-                             connection.getAddress().toString(),
-                             connection.getPort());
+            // Only first tries are measured, a response to a retry might
+            // be the late response to an earlier try.
+            if (adaptiveTimeout != null && retryCounter == 0 && !responseIsInValid())
+                adaptiveTimeout.sample(unitId, (System.nanoTime() - sent) / 1e6);
+        }
+        catch (IOException ex) {
+            if (adaptiveTimeout != null && isTimeout(ex))
+                adaptiveTimeout.timedOut(unitId);
+
+            // If this has happened, then we should close and re-open the connection before re-trying
+            logger.debug("Failed request {} (try: {}) request transaction ID = {} - {} closing and re-opening connection {}:{}",
+                         J2ModDebugUtils.toHex(getRequest()),
+                         retryCounter, getRequest().getTransactionID(),
+                         ex.getMessage(),
+                         connection.getAddress().toString(),
+                         connection.getPort());
+            if (supervisor != null) {
+                supervisor.connectionLost(ex);
+                return ex;
+            }
+            try {
                 connection.close();
             }
-
-            // Increment the transaction ID if we are still trying
-            if (keepTrying) {
-                incrementTransactionID();
+            catch (IOException e) {
+                logger.debug("Failed to close connection: {}", e.getMessage());
             }
+            return ex;
         }
 
-        // Close the connection if it isn't supposed to stick around.
-        if (isReconnecting()) {
-            connection.close();
+        // The slave may have returned an exception -- check for that.
+        if (getResponse() instanceof ExceptionResponse) {
+            throw new ModbusSlaveException(((ExceptionResponse) getResponse())
+                                                   .getExceptionCode());
         }
-        incrementTransactionID();
+        return null;
+    }
+
+    private static boolean isTimeout(Throwable error) {
+        for (Throwable e = error; e != null; e = e.getCause())
+            if (e instanceof SocketTimeoutException)
+                return true;
+        return false;
+    }
+
+    /**
+     * Returns true if the response answers a request no longer in flight on
+     * the connection, a try given up on.
+     */
+    private boolean isStale(ModbusResponse response) {
+        return response != null
+                && !response.isHeadless()
+                && isValidityCheck()
+                && response.getTransactionID() != getRequest().getTransactionID()
+                && !getTransactionIds().isInFlight(response.getTransactionID());
     }
 
     /**
@@ -214,7 +345,7 @@ public class ModbusTCPTransaction extends AbstractModbusTransaction {
         if (getResponse() == null) {
             return true;
         }
-        else if (!getResponse().isHeadless() && validityCheck) {
+        else if (!getResponse().isHeadless() && isValidityCheck()) {
             return getRequest().getTransactionID() != getResponse().getTransactionID();
         }
         else {
@@ -222,24 +353,4 @@ public class ModbusTCPTransaction extends AbstractModbusTransaction {
         }
     }
 
-    /**
-     * incrementTransactionID -- Increment the transaction ID for the next
-     * transaction. Note that the caller must get the new transaction ID with
-     * getTransactionID(). This is only done validity checking is enabled so
-     * that dumb slaves don't cause problems. The original request will have its
-     * transaction ID incremented as well so that sending the same transaction
-     * again won't cause problems.
-     */
-    private synchronized void incrementTransactionID() {
-        if (isCheckingValidity()) {
-            if (transactionID >= Modbus.MAX_TRANSACTION_ID) {
-                transactionID = Modbus.DEFAULT_TRANSACTION_ID;
-            }
-            else {
-                transactionID++;
-            }
-        }
-        getRequest().setTransactionID(getTransactionID());
-    }
-
 }
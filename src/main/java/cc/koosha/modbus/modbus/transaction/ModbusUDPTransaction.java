@@ -17,6 +17,7 @@ package cc.koosha.modbus.modbus.transaction;
 
 import cc.koosha.modbus.Modbus;
 import cc.koosha.modbus.ModbusException;
+import cc.koosha.modbus.ModbusSlaveException;
 import cc.koosha.modbus.io.net.AbstractUDPTerminal;
 import cc.koosha.modbus.msg.response.ExceptionResponse;
 import cc.koosha.modbus.xinternal.J2ModUtils;
@@ -66,10 +67,17 @@ public class ModbusUDPTransaction extends AbstractModbusTransaction {
             }
         }
 
+        executeGuarded(getRetries());
+    }
+
+    @Override
+    void execute(int retryLimit) throws ModbusException {
         //3. Retry transaction retries times, in case of
         //I/O Exception problems.
+        final long started = System.nanoTime();
         int retryCount = 0;
-        while (retryCount <= getRetries()) {
+        while (true) {
+            final int transactionId = acquireTransactionId();
             try {
                 //3. write request, and read response,
                 //   while holding the lock on the IO object
@@ -83,12 +91,18 @@ public class ModbusUDPTransaction extends AbstractModbusTransaction {
             }
             catch (IOException ex) {
                 retryCount++;
-                if (retryCount > getRetries()) {
-                    log.error("Cannot send UDP message", ex);
-                }
-                else {
-                    J2ModUtils.sleep(getRandomSleepTime(retryCount));
+                final long delay = retryCount >= retryLimit
+                                   ? -1
+                                   : getRetryDelay(retryCount, started);
+                if (delay < 0) {
+                    log.debug("Cannot send UDP message (tried {} times)", retryCount, ex);
+                    throw new ModbusException("Executing transaction failed (tried " + retryCount + " times)",
+                                              ex);
                 }
+                J2ModUtils.sleep(delay);
+            }
+            finally {
+                releaseTransactionId(transactionId);
             }
         }
 
@@ -97,8 +111,6 @@ public class ModbusUDPTransaction extends AbstractModbusTransaction {
             throw new ModbusSlaveException(((ExceptionResponse)getResponse()).getExceptionCode());
         }
 
-        //toggle the id
-        incrementTransactionID();
     }
 
     /**
@@ -113,23 +125,4 @@ public class ModbusUDPTransaction extends AbstractModbusTransaction {
             throw new ModbusException("Assertion failed, transaction not executable");
         }
     }
-
-    /**
-     * Toggles the transaction identifier, to ensure
-     * that each transaction has a distinctive
-     * identifier.<br>
-     * When the maximum value of 65535 has been reached,
-     * the identifiers will start from zero again.
-     */
-    private void incrementTransactionID() {
-        if (isCheckingValidity()) {
-            if (transactionID >= Modbus.MAX_TRANSACTION_ID) {
-                transactionID = Modbus.DEFAULT_TRANSACTION_ID;
-            }
-            else {
-                transactionID++;
-            }
-        }
-        getRequest().setTransactionID(getTransactionID());
-    }
 }
\ No newline at end of file
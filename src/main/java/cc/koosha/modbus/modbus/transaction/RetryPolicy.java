@@ -0,0 +1,23 @@
+package cc.koosha.modbus.modbus.transaction;
+
+/**
+ * Decides whether, and after how long, a failed transaction is tried again.
+ * <p>
+ * Implementations must be thread safe, a single policy is usually shared by
+ * all transactions.
+ *
+ * @author Koosha Hosseiny
+ * @see ExponentialBackoff
+ */
+public interface RetryPolicy {
+
+    /**
+     * Delay before the next try of a transaction.
+     *
+     * @param failures number of tries failed so far, at least 1.
+     * @param elapsed  time since the first try started, in milliseconds.
+     * @return delay in milliseconds, or a negative value to give up.
+     */
+    long getDelay(int failures, long elapsed);
+
+}
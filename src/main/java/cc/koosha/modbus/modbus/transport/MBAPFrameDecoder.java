@@ -0,0 +1,252 @@
+package cc.koosha.modbus.modbus.transport;
+
+import cc.koosha.modbus.Modbus;
+import cc.koosha.modbus.xinternal.J2ModPrecondition;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+
+/**
+ * Splits a Modbus/TCP byte stream into frames (ADUs, MBAP header included),
+ * whatever the way the stream is cut into reads: half frames, several frames
+ * in one read, or a header alone.
+ * <p>
+ * The decoder owns its buffer and the bytes are read straight into it, from
+ * a stream ({@link #read(InputStream)}), a channel ({@link
+ * #read(ReadableByteChannel)}) or copied from chunks received otherwise
+ * ({@link #feed(byte[], int, int)}). Complete frames are then taken with
+ * {@link #next()} and read in place, at {@link #getFrameOffset()} in {@link
+ * #getBuffer()}, without being copied. Only the tail of an incomplete frame
+ * is ever moved, to the start of the buffer, when more room is needed.
+ * <p>
+ * The header is checked as soon as its 6 bytes are in: a protocol id other
+ * than Modbus, or a length no Modbus PDU can have, fails at once with an
+ * {@link IOException}, before the rest of the garbage is waited for. The
+ * stream can not be resynchronized after that; the connection should be
+ * dropped, or the decoder {@link #clear() cleared} at least.
+ * <p>
+ * Usage:
+ * <pre>
+ * decoder.read(channel);
+ * while (decoder.next())
+ *     handle(decoder.getBuffer(), decoder.getFrameOffset(), decoder.getFrameLength());
+ * </pre>
+ *
+ * @author Koosha Hosseiny
+ */
+@NotThreadSafe
+public final class MBAPFrameDecoder {
+
+    /**
+     * Length of the MBAP header up to, excluding, the unit id.
+     */
+    public static final int HEADER_LENGTH = 6;
+
+    /**
+     * The largest frame: MBAP header plus unit id and the largest PDU.
+     */
+    public static final int MAX_FRAME_LENGTH = Modbus.MAX_MESSAGE_LENGTH + HEADER_LENGTH;
+
+    private final byte[] buffer;
+
+    /**
+     * Start of the bytes not consumed yet.
+     */
+    private int start;
+
+    /**
+     * End of the bytes received.
+     */
+    private int end;
+
+    /**
+     * Length of the frame returned by the last {@link #next()}, consumed on
+     * the next call, or 0.
+     */
+    private int frameLength;
+
+    /**
+     * Creates a decoder with room for 4 frames received in one read.
+     */
+    public MBAPFrameDecoder() {
+        this(MAX_FRAME_LENGTH * 4);
+    }
+
+    /**
+     * @param capacity size of the buffer, at least {@link #MAX_FRAME_LENGTH}.
+     */
+    public MBAPFrameDecoder(int capacity) {
+        J2ModPrecondition.ensureIsInRange(capacity, MAX_FRAME_LENGTH, Integer.MAX_VALUE, "capacity");
+        this.buffer = new byte[capacity];
+    }
+
+    /**
+     * Reads whatever the stream has, at most as many bytes as fit in the
+     * buffer. Blocks as the stream does.
+     *
+     * @param in stream to read from.
+     * @return number of bytes read.
+     * @throws EOFException if the stream is closed.
+     * @throws IOException  on read errors.
+     */
+    public int read(InputStream in) throws IOException {
+        prepare(1);
+        final int n = in.read(buffer, end, buffer.length - end);
+        if (n < 0)
+            throw new EOFException(start == end
+                                   ? "end of stream"
+                                   : "end of stream inside a frame");
+        end += n;
+        return n;
+    }
+
+    /**
+     * Reads whatever the channel has, at most as many bytes as fit in the
+     * buffer.
+     *
+     * @param channel channel to read from, usually non-blocking.
+     * @return number of bytes read, 0 if none were available.
+     * @throws EOFException if the channel is closed.
+     * @throws IOException  on read errors.
+     */
+    public int read(ReadableByteChannel channel) throws IOException {
+        prepare(1);
+        final int n = channel.read(ByteBuffer.wrap(buffer, end, buffer.length - end));
+        if (n < 0)
+            throw new EOFException(start == end
+                                   ? "end of stream"
+                                   : "end of stream inside a frame");
+        end += n;
+        return n;
+    }
+
+    /**
+     * Appends a chunk of the stream received by other means, for instance
+     * decrypted bytes.
+     *
+     * @param data   the chunk.
+     * @param offset start of the chunk.
+     * @param length length of the chunk, must fit in {@link #remaining()}.
+     */
+    public void feed(byte[] data, int offset, int length) {
+        prepare(length);
+        if (length > buffer.length - end)
+            throw new IllegalArgumentException("chunk too large: " + length);
+        System.arraycopy(data, offset, buffer, end, length);
+        end += length;
+    }
+
+    /**
+     * @return number of bytes which can be received before the pending
+     * frames are taken.
+     */
+    public int remaining() {
+        return buffer.length - (end - start - frameLength);
+    }
+
+    /**
+     * Consumes the frame returned by the previous call, and moves to the
+     * next complete frame, if any. The frame stays valid until the next call
+     * to any other method.
+     *
+     * @return true if a complete frame is available.
+     * @throws IOException if the header of the next frame is invalid.
+     */
+    public boolean next() throws IOException {
+        start += frameLength;
+        frameLength = 0;
+        if (start == end) {
+            start = end = 0;
+            return false;
+        }
+        if (end - start < HEADER_LENGTH)
+            return false;
+        final int length = validate(buffer, start);
+        if (end - start < length)
+            return false;
+        frameLength = length;
+        return true;
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return offset of the current frame in {@link #getBuffer()}.
+     */
+    public int getFrameOffset() {
+        return start;
+    }
+
+    /**
+     * @return length of the current frame, header included, or 0 if there is
+     * none.
+     */
+    public int getFrameLength() {
+        return frameLength;
+    }
+
+    /**
+     * @return transaction id of the current frame.
+     */
+    public int getTransactionId() {
+        return ((buffer[start] & 0xFF) << 8) | (buffer[start + 1] & 0xFF);
+    }
+
+    /**
+     * @return true if bytes are received past the current frame, a complete
+     * frame or not.
+     */
+    public boolean hasPending() {
+        return end - start - frameLength > 0;
+    }
+
+    /**
+     * Drops everything received, for instance once the connection is lost.
+     */
+    public void clear() {
+        start = end = frameLength = 0;
+    }
+
+    /**
+     * Checks the MBAP header at the given offset.
+     *
+     * @param frame  buffer holding at least the 6 header bytes.
+     * @param offset start of the header.
+     * @return length of the whole frame.
+     * @throws IOException if the header is invalid.
+     */
+    static int validate(byte[] frame, int offset) throws IOException {
+        final int protocol = ((frame[offset + 2] & 0xFF) << 8) | (frame[offset + 3] & 0xFF);
+        if (protocol != Modbus.DEFAULT_PROTOCOL_ID)
+            throw new IOException("invalid protocol id in MBAP header: " + protocol);
+        final int length = ((frame[offset + 4] & 0xFF) << 8) | (frame[offset + 5] & 0xFF);
+        if (length < 2 || length + HEADER_LENGTH > MAX_FRAME_LENGTH)
+            throw new IOException("invalid length in MBAP header: " + length);
+        return length + HEADER_LENGTH;
+    }
+
+    /**
+     * Drops the consumed frame and moves the pending bytes to the start of
+     * the buffer if there is no room for the given number of bytes, or for
+     * the largest frame they may be the start of.
+     */
+    private void prepare(int needed) {
+        start += frameLength;
+        frameLength = 0;
+        if (start == end)
+            start = end = 0;
+        else if (buffer.length - end < needed || buffer.length - start < MAX_FRAME_LENGTH) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+    }
+
+}
@@ -0,0 +1,393 @@
+package cc.koosha.modbus.modbus.transport;
+
+import cc.koosha.modbus.Modbus;
+import cc.koosha.modbus.io.net.NioReactor;
+import cc.koosha.modbus.io.net.NioTCPMasterConnection;
+import cc.koosha.modbus.msg.ModbusMessage;
+import cc.koosha.modbus.msg.ModbusRequest;
+import cc.koosha.modbus.msg.ModbusResponse;
+import cc.koosha.modbus.msg.ModbusResponseFactory;
+import cc.koosha.modbus.msg.response.DefaultModbusResponseFactory;
+import cc.koosha.modbus.util.AdaptiveTimeout;
+import cc.koosha.modbus.util.ModbusFuture;
+import cc.koosha.modbus.util.TransactionIdAllocator;
+import cc.koosha.modbus.xinternal.J2ModCollections;
+import cc.koosha.modbus.xinternal.J2ModDebugUtils;
+import cc.koosha.modbus.xinternal.J2ModFastInputStream;
+import cc.koosha.modbus.xinternal.J2ModFastOutputStream;
+import cc.koosha.modbus.xinternal.J2ModPrecondition;
+import cc.koosha.modbus.xinternal.J2ModUtils;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static cc.koosha.modbus.xinternal.J2ModDataUtil.registerValueToUnsignedShort;
+
+
+/**
+ * Modbus/TCP transport on top of a {@link NioTCPMasterConnection}.
+ * <p>
+ * Requests are sent with {@link #send(ModbusRequest)} which returns
+ * immediately, the returned future is completed on the reactor thread once
+ * the response arrives, the request times out or the connection is lost. The
+ * connection is opened on demand.
+ * <p>
+ * Up to {@link #getMaxInFlight()} requests are kept outstanding on the
+ * connection (pipelining), further requests wait in order until a slot frees
+ * up. Each request is sent with a transaction id unique on this connection,
+ * and responses are matched to requests by that id, so they may arrive in any
+ * order. A response whose transaction id matches no outstanding request (a
+ * late answer to a timed out request) is discarded.
+ * <p>
+ * The default window is 1, that is one request at a time, as many devices do
+ * not handle pipelined requests. Gateways usually accept 4 to 16.
+ * <p>
+ * {@link #writeMessage(ModbusMessage)} and {@link #readResponse()} are kept
+ * for callers expecting a blocking transport, the calling thread blocks until
+ * the response to the message it wrote arrives.
+ *
+ * @author Koosha Hosseiny
+ */
+@Slf4j
+public final class ModbusNioTCPTransport implements ModbusTransport, NioTCPMasterConnection.Listener {
+
+    private static final int MBAP_LENGTH = 6;
+
+    /**
+     * A request waiting to be sent, or waiting for its response.
+     */
+    private static final class Exchange {
+
+        private final ModbusRequest request;
+        private final ModbusFuture<ModbusResponse> future = new ModbusFuture<ModbusResponse>();
+        private NioReactor.Scheduled timeout;
+        private int transactionId;
+        private long sent;
+
+        private Exchange(ModbusRequest request) {
+            this.request = request;
+        }
+
+    }
+
+    @Getter
+    private final NioTCPMasterConnection connection;
+
+    private final NioReactor reactor;
+
+    private final ModbusResponseFactory responseFactory =
+            DefaultModbusResponseFactory.getInstance();
+
+    /**
+     * Response timeout in milliseconds.
+     */
+    private volatile int timeout = Modbus.DEFAULT_TIMEOUT;
+
+    /**
+     * Per unit response timeouts, overriding {@link #timeout} if set.
+     */
+    private volatile AdaptiveTimeout adaptiveTimeout;
+
+    /**
+     * Maximum number of requests outstanding on the connection.
+     */
+    private volatile int maxInFlight = 1;
+
+    /**
+     * Future of the last message written by each thread, for the blocking
+     * API.
+     */
+    private final ThreadLocal<ModbusFuture<ModbusResponse>> written =
+            new ThreadLocal<ModbusFuture<ModbusResponse>>();
+
+    // ------------------- reactor thread only
+
+    private final Queue<Exchange> waiting = new ArrayDeque<Exchange>();
+    private final Map<Integer, Exchange> inFlight = J2ModCollections.newModifiableMap();
+    private final TransactionIdAllocator transactionIds = new TransactionIdAllocator();
+
+    private final J2ModFastInputStream byteInputStream = J2ModUtils.dataInput(0);
+    private final J2ModFastOutputStream byteOutputStream =
+            J2ModUtils.dataOutput(Modbus.MAX_MESSAGE_LENGTH + MBAP_LENGTH);
+
+
+    public ModbusNioTCPTransport(@NonNull NioTCPMasterConnection connection) {
+        this.connection = connection;
+        this.reactor = connection.getReactor();
+        this.connection.setListener(this);
+    }
+
+    public ModbusNioTCPTransport(NioTCPMasterConnection connection, int maxInFlight) {
+        this(connection);
+        setMaxInFlight(maxInFlight);
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets the response timeout.
+     *
+     * @param timeout response timeout in milliseconds.
+     */
+    public void setTimeout(int timeout) {
+        J2ModPrecondition.ensurePositive(timeout, "timeout");
+        this.timeout = timeout;
+    }
+
+    public AdaptiveTimeout getAdaptiveTimeout() {
+        return adaptiveTimeout;
+    }
+
+    /**
+     * Sets the estimator deriving the response timeout of each unit from its
+     * measured round trip time, instead of using {@link #getTimeout()}.
+     *
+     * @param adaptiveTimeout the estimator, used by this transport only, or
+     *                        null to use the fixed timeout.
+     */
+    public void setAdaptiveTimeout(AdaptiveTimeout adaptiveTimeout) {
+        this.adaptiveTimeout = adaptiveTimeout;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Sets how many requests may be outstanding on the connection at once.
+     * Lowering the window does not affect requests already sent.
+     *
+     * @param maxInFlight the window size, 1 disables pipelining.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        J2ModPrecondition.ensureIsInRange(maxInFlight, 1, TransactionIdAllocator.SIZE, "maxInFlight");
+        this.maxInFlight = maxInFlight;
+        reactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        });
+    }
+
+    /**
+     * Sends the request without blocking.
+     * <p>
+     * The transaction id of the request is ignored, the transport assigns its
+     * own. The request object is not modified.
+     *
+     * @param request the request to send.
+     * @return future of the response. It fails with an {@link IOException}
+     * on timeout or connection failure.
+     */
+    public ModbusFuture<ModbusResponse> send(@NonNull ModbusRequest request) {
+        final Exchange exchange = new Exchange(request);
+        reactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                enqueue(exchange);
+            }
+        });
+        return exchange.future;
+    }
+
+    public void close() {
+        connection.close();
+    }
+
+    // ------------------- ModbusTransport
+
+    /**
+     * Sends the request, the response must be read with {@link
+     * #readResponse()} by the same thread.
+     */
+    @Override
+    public void writeMessage(ModbusMessage msg) throws IOException {
+        if (!(msg instanceof ModbusRequest))
+            throw new IOException("master transport can only send requests");
+        written.set(send((ModbusRequest) msg));
+    }
+
+    @Override
+    public ModbusResponse readResponse() throws IOException {
+        final ModbusFuture<ModbusResponse> future = written.get();
+        J2ModPrecondition.ensureNotNullState(future, "no message written");
+        written.remove();
+        try {
+            // The future times out on its own, this is only a safety net.
+            final AdaptiveTimeout adaptive = adaptiveTimeout;
+            final long max = adaptive == null ? timeout : Math.max(timeout, adaptive.getCeiling());
+            return future.get(max * 2L, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for response");
+        }
+        catch (TimeoutException e) {
+            future.cancel(false);
+            throw new IOException("timeout waiting for response", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("failed to read response", e.getCause());
+        }
+    }
+
+    /**
+     * Not supported, this is a master transport.
+     *
+     * @throws IOException always.
+     */
+    @Override
+    public ModbusRequest readRequest() throws IOException {
+        throw new IOException("master transport can not read requests");
+    }
+
+    // ------------------- NioTCPMasterConnection.Listener
+
+    @Override
+    public void connected(NioTCPMasterConnection connection) {
+        dispatch();
+    }
+
+    @Override
+    public void frameReceived(NioTCPMasterConnection connection, byte[] buffer, int offset, int length) {
+        final int transactionId = registerValueToUnsignedShort(buffer, offset);
+        final Exchange exchange = inFlight.remove(transactionId);
+        if (exchange == null) {
+            log.debug("discarding response with unexpected transaction id: {}", transactionId);
+            return;
+        }
+        transactionIds.release(transactionId);
+        exchange.timeout.cancel();
+        final AdaptiveTimeout adaptive = adaptiveTimeout;
+        if (adaptive != null)
+            adaptive.sample(exchange.request.getUnitID(), (System.nanoTime() - exchange.sent) / 1e6);
+
+        try {
+            final ModbusResponse response = responseFactory.create(buffer[offset + MBAP_LENGTH + 1] & 0xFF);
+            byteInputStream.reset(buffer, offset, length);
+            response.readFrom(byteInputStream);
+            exchange.future.set(response);
+        }
+        catch (IOException e) {
+            exchange.future.setException(e);
+        }
+        catch (RuntimeException e) {
+            exchange.future.setException(new IOException("malformed response", e));
+        }
+        dispatch();
+    }
+
+    /**
+     * Futures complete inline, and their callbacks may send again, reaching
+     * {@link #dispatch()} or a nested call to this method. So both queues are
+     * emptied before any future is failed.
+     */
+    @Override
+    public void closed(NioTCPMasterConnection connection, IOException cause) {
+        final List<Exchange> failed = new ArrayList<Exchange>(inFlight.values());
+        inFlight.clear();
+        for (Exchange exchange : failed) {
+            exchange.timeout.cancel();
+            transactionIds.release(exchange.transactionId);
+        }
+        failed.addAll(waiting);
+        waiting.clear();
+        for (Exchange exchange : failed)
+            exchange.future.setException(cause);
+    }
+
+    // ------------------- reactor thread
+
+    private void enqueue(Exchange exchange) {
+        waiting.add(exchange);
+        if (connection.isConnected())
+            dispatch();
+        else
+            connection.connect();
+    }
+
+    private void dispatch() {
+        while (inFlight.size() < maxInFlight && connection.isConnected()) {
+            final Exchange exchange = waiting.poll();
+            if (exchange == null)
+                return;
+            if (exchange.future.isDone())
+                continue;
+
+            exchange.transactionId = transactionIds.acquire();
+            final ByteBuffer frame;
+            try {
+                frame = encode(exchange.request, exchange.transactionId);
+            }
+            catch (IOException e) {
+                transactionIds.release(exchange.transactionId);
+                exchange.future.setException(e);
+                continue;
+            }
+            catch (RuntimeException e) {
+                transactionIds.release(exchange.transactionId);
+                exchange.future.setException(new IOException("malformed request", e));
+                continue;
+            }
+            if (log.isDebugEnabled())
+                log.debug("sending: {}", J2ModDebugUtils.toHex(frame.array(), 0, frame.limit()));
+            final AdaptiveTimeout adaptive = adaptiveTimeout;
+            final long delay = adaptive == null
+                               ? timeout
+                               : adaptive.getTimeout(exchange.request.getUnitID());
+            exchange.sent = System.nanoTime();
+            exchange.timeout = reactor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    timedOut(exchange);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+            inFlight.put(exchange.transactionId, exchange);
+            connection.write(frame);
+        }
+    }
+
+    private void timedOut(Exchange exchange) {
+        if (inFlight.get(exchange.transactionId) != exchange)
+            return;
+        inFlight.remove(exchange.transactionId);
+        transactionIds.release(exchange.transactionId);
+        final AdaptiveTimeout adaptive = adaptiveTimeout;
+        if (adaptive != null)
+            adaptive.timedOut(exchange.request.getUnitID());
+        exchange.future.setException(new IOException(
+                "timeout waiting for response from " + connection));
+        dispatch();
+    }
+
+    /**
+     * Encodes into the reusable buffer, then copies to a buffer of the exact
+     * size which stays queued on the connection until written.
+     */
+    private ByteBuffer encode(ModbusRequest request, int transactionId) throws IOException {
+        ModbusTCPTransport.encode(byteOutputStream, request, transactionId, false, false);
+        final ByteBuffer frame = ByteBuffer.allocate(byteOutputStream.size());
+        frame.put(byteOutputStream.getBuffer(), 0, byteOutputStream.size());
+        frame.flip();
+        return frame;
+    }
+
+}
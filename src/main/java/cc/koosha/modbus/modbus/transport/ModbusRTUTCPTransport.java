@@ -16,8 +16,7 @@
 package cc.koosha.modbus.modbus.transport;
 
 import java.io.IOException;
-import cc.koosha.modbus.msg.ModbusRequest;
-import cc.koosha.modbus.msg.ModbusResponse;
+import cc.koosha.modbus.msg.ModbusMessage;
 
 import java.net.Socket;
 
@@ -52,12 +51,7 @@ public class ModbusRTUTCPTransport extends ModbusTCPTransport {
     }
 
     @Override
-    public void writeResponse(ModbusResponse msg) throws IOException {
-        writeMessage(msg, true);
-    }
-
-    @Override
-    public void writeRequest(ModbusRequest msg) throws IOException {
+    public void writeMessage(ModbusMessage msg) throws IOException {
         writeMessage(msg, true);
     }
 }
@@ -26,6 +26,7 @@ import cc.koosha.modbus.msg.ModbusResponse;
 import cc.koosha.modbus.msg.ModbusResponseFactory;
 import cc.koosha.modbus.msg.request.DefaultModbusRequestFactory;
 import cc.koosha.modbus.msg.response.DefaultModbusResponseFactory;
+import cc.koosha.modbus.msg.response.ModbusResponseHolder;
 import cc.koosha.modbus.util.Checksum;
 import cc.koosha.modbus.xinternal.*;
 import lombok.NonNull;
@@ -36,8 +37,6 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 
-import static cc.koosha.modbus.xinternal.J2ModDataUtil.registerValueToShort;
-
 
 /**
  * Class that implements the Modbus transport flavor.
@@ -50,12 +49,16 @@ import static cc.koosha.modbus.xinternal.J2ModDataUtil.registerValueToShort;
 public class ModbusTCPTransport implements ModbusTransport {
 
     // instance attributes
-    private DataInputStream dataInputStream; // input stream
-    private DataOutputStream dataOutputStream; // output stream
+    private InputStream inputStream; // raw socket input, read by the decoder
+    private DataInputStream dataInputStream; // headless input only
+    private final byte[] headlessFrame =
+            new byte[Modbus.MAX_MESSAGE_LENGTH]; // headless holder reads, reused
+    private final MBAPFrameDecoder decoder = new MBAPFrameDecoder();
+    private OutputStream outputStream; // raw socket output, one write per frame
     private final J2ModFastInputStream byteInputStream =
-            J2ModUtils.dataInput(Modbus.MAX_MESSAGE_LENGTH + 6);
+            J2ModUtils.dataInput(0); // reads frames in place in the decoder
     private final J2ModFastOutputStream byteOutputStream =
-            J2ModUtils.dataOutput(Modbus.MAX_MESSAGE_LENGTH + 6); // write frames
+            J2ModUtils.dataOutput(Modbus.MAX_MESSAGE_LENGTH + 8); // write frames, reused
     protected Socket socket = null;
     protected TCPMasterConnection master = null;
     private boolean headless = false; // Some TCP implementations are.
@@ -131,11 +134,23 @@ public class ModbusTCPTransport implements ModbusTransport {
         this.master = master;
     }
 
+    /**
+     * Sets the time to wait for a response before giving up.
+     *
+     * @param timeout read timeout in milliseconds.
+     * @throws IOException if the timeout can not be set on the socket.
+     */
+    public void setTimeout(int timeout) throws IOException {
+        this.timeout = timeout;
+        if (socket != null)
+            socket.setSoTimeout(timeout);
+    }
+
 
     @Override
     public void close() throws IOException {
         dataInputStream.close();
-        dataOutputStream.close();
+        outputStream.close();
         socket.close();
     }
 
@@ -143,43 +158,26 @@ public class ModbusTCPTransport implements ModbusTransport {
     public ModbusRequest readRequest() throws IOException {
         ModbusRequest req;
         try {
-            byteInputStream.reset();
-
-            synchronized (byteInputStream) {
-                byte[] buffer = byteInputStream.getBuffer();
-
+            synchronized (decoder) {
                 if (!headless) {
-                    dataInputStream.readFully(buffer, 0, 6);
-
-                    // The transaction ID must be treated as an unsigned short in
-                    // order for validation to work correctly.
-
-                    int transaction = registerValueToShort(buffer, 0) & 0x0000FFFF;
-                    int protocol = registerValueToShort(buffer, 2);
-                    int count = registerValueToShort(buffer, 4);
-
-                    dataInputStream.readFully(buffer, 6, count);
-
+                    readFrame();
+                    final byte[] buffer = decoder.getBuffer();
+                    final int offset = decoder.getFrameOffset();
+                    final int length = decoder.getFrameLength();
                     if (log.isDebugEnabled()) {
-                        log.debug("Read: {}", J2ModDebugUtils.toHex(buffer, 0, count + 6));
+                        log.debug("Read: {}", J2ModDebugUtils.toHex(buffer, offset, offset + length));
                     }
 
-                    byteInputStream.reset(buffer, (6 + count));
-                    byteInputStream.skip(6);
-
-                    int unit = byteInputStream.readByte();
-                    int functionCode = byteInputStream.readUnsignedByte();
+                    int unit = buffer[offset + 6];
+                    int functionCode = buffer[offset + 7] & 0xFF;
 
-                    byteInputStream.reset();
                     req = DefaultModbusRequestFactory.getInstance()
                                                      .create(functionCode);
                     req.setUnitID(unit);
                     req.setHeadless(false);
 
-                    req.setTransactionID(transaction);
-                    req.setProtocolID(protocol);
-                    req.setDataLength(count);
-
+                    // Reads the transaction id, protocol id and length too.
+                    byteInputStream.reset(buffer, offset, length);
                     req.readFrom(byteInputStream);
                 }
                 else {
@@ -225,44 +223,21 @@ public class ModbusTCPTransport implements ModbusTransport {
         try {
             ModbusResponse response;
 
-            synchronized (byteInputStream) {
-                // use same buffer
-                byte[] buffer = byteInputStream.getBuffer();
+            synchronized (decoder) {
                 log.debug("Reading response...");
                 if (!headless) {
-                    // All Modbus TCP transactions start with 6 bytes. Get them.
-                    dataInputStream.readFully(buffer, 0, 6);
-
-                    /*
-                     * The transaction ID is the first word (offset 0) in the
-                     * data that was just read. It will be echoed back to the
-                     * requester.
-                     *
-                     * The protocol ID is the second word (offset 2) in the
-                     * data. It should always be 0, but I don't check.
-                     *
-                     * The length of the payload is the third word (offset 4) in
-                     * the data that was just read. That's what I need in order
-                     * to read the rest of the response.
-                     */
-                    int transaction = registerValueToShort(buffer, 0) & 0x0000FFFF;
-                    int protocol = registerValueToShort(buffer, 2);
-                    int count = registerValueToShort(buffer, 4);
-
-                    dataInputStream.readFully(buffer, 6, count);
-                    byteInputStream.reset(buffer, (6 + count));
-                    byteInputStream.reset();
-                    byteInputStream.skip(7);
-                    int function = byteInputStream.readUnsignedByte();
+                    readFrame();
+                    final byte[] buffer = decoder.getBuffer();
+                    final int offset = decoder.getFrameOffset();
+
+                    // The function code follows the unit id, after the 6
+                    // bytes of the MBAP header.
+                    int function = buffer[offset + 7] & 0xFF;
                     response = responseFactory.create(function);
 
-                    // Rewind the input buffer, then read the data into the
-                    // response.
-                    byteInputStream.reset();
+                    // Reads the transaction id, protocol id and length too.
+                    byteInputStream.reset(buffer, offset, decoder.getFrameLength());
                     response.readFrom(byteInputStream);
-
-                    response.setTransactionID(transaction);
-                    response.setProtocolID(protocol);
                 }
                 else {
                     // This is a headless response. It has the same format as a
@@ -296,6 +271,94 @@ public class ModbusTCPTransport implements ModbusTransport {
         }
     }
 
+    /**
+     * Reads a response into a reusable holder, without allocating anything.
+     * <p>
+     * This is the allocation free counterpart of {@link #readResponse()},
+     * meant for polling loops. On a headless transport only the function
+     * codes a holder can read are supported, as the length of the response
+     * is not known otherwise.
+     *
+     * @param holder the holder to fill, owned by the caller.
+     * @throws IOException if the response can not be read or is malformed.
+     */
+    public void readResponse(@NonNull ModbusResponseHolder holder) throws IOException {
+        try {
+            synchronized (decoder) {
+                if (headless) {
+                    final int length = readHeadlessFrame();
+                    if (log.isDebugEnabled())
+                        log.debug("Read: {}", J2ModDebugUtils.toHex(headlessFrame, 0, length));
+                    holder.decodeHeadless(headlessFrame, 0, length);
+                    return;
+                }
+                readFrame();
+                final byte[] buffer = decoder.getBuffer();
+                final int offset = decoder.getFrameOffset();
+                final int length = decoder.getFrameLength();
+                if (log.isDebugEnabled())
+                    log.debug("Read: {}", J2ModDebugUtils.toHex(buffer, offset, offset + length));
+                holder.decode(buffer, offset, length);
+            }
+        }
+        catch (EOFException ex1) {
+            throw new IOException("Premature end of stream (Message truncated)", ex1);
+        }
+        catch (SocketTimeoutException ex2) {
+            throw new IOException("Socket timeout reading response", ex2);
+        }
+    }
+
+    /**
+     * Blocks until the decoder holds a complete frame. Bytes of the following
+     * frames read meanwhile are kept for the next call, and so are those of
+     * a frame cut short by a timeout.
+     */
+    private void readFrame() throws IOException {
+        while (!decoder.next())
+            decoder.read(inputStream);
+    }
+
+    /**
+     * Reads a headless response into {@link #headlessFrame}, the unit id and
+     * the PDU, and discards the CRC as the other headless reads do.
+     *
+     * @return length of the unit id and PDU.
+     */
+    private int readHeadlessFrame() throws IOException {
+        dataInputStream.readFully(headlessFrame, 0, 2);
+        final int function = headlessFrame[1] & 0xFF;
+        int read = 2;
+        final int length;
+        if (function >= Modbus.EXCEPTION_OFFSET) {
+            length = 3;
+        }
+        else {
+            switch (function) {
+                case Modbus.READ_COILS:
+                case Modbus.READ_INPUT_DISCRETES:
+                case Modbus.READ_MULTIPLE_REGISTERS:
+                case Modbus.READ_INPUT_REGISTERS:
+                case Modbus.READ_WRITE_MULTIPLE:
+                    // The byte count, then as many bytes.
+                    dataInputStream.readFully(headlessFrame, read++, 1);
+                    length = 3 + (headlessFrame[2] & 0xFF);
+                    break;
+                case Modbus.WRITE_COIL:
+                case Modbus.WRITE_SINGLE_REGISTER:
+                case Modbus.WRITE_MULTIPLE_COILS:
+                case Modbus.WRITE_MULTIPLE_REGISTERS:
+                    length = 6;
+                    break;
+                default:
+                    throw new IOException("unsupported function code for a headless holder read: " + function);
+            }
+        }
+        dataInputStream.readFully(headlessFrame, read, length - read);
+        dataInputStream.readShort();
+        return length;
+    }
+
     /**
      * Prepares the input and output streams of this <tt>ModbusTCPTransport</tt>
      * instance based on the given socket.
@@ -311,22 +374,73 @@ public class ModbusTCPTransport implements ModbusTransport {
             if (dataInputStream != null) {
                 dataInputStream.close();
             }
-            if (dataOutputStream != null) {
-                dataOutputStream.close();
+            if (outputStream != null) {
+                outputStream.close();
             }
         }
         catch (IOException x) {
             // Do nothing.
         }
 
-        dataInputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-        dataOutputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        synchronized (decoder) {
+            decoder.clear();
+        }
+        inputStream = socket.getInputStream();
+        dataInputStream = new DataInputStream(new BufferedInputStream(inputStream));
+        outputStream = socket.getOutputStream();
+    }
+
+    @Override
+    public void writeMessage(ModbusMessage msg) throws IOException {
+        writeMessage(msg, false);
+    }
+
+    /**
+     * Encodes a message into the given stream, which is reset first. Nothing
+     * is allocated: the data is written straight after the header, and the
+     * length and CRC are computed on the stream's own buffer.
+     *
+     * @param out           stream to encode into.
+     * @param msg           the message.
+     * @param transactionId transaction id to put in the header, which may
+     *                      differ from the message's.
+     * @param headless      true to omit the MBAP header.
+     * @param useRtuOverTcp true to append a CRC.
+     * @throws IOException if the message could not be encoded.
+     */
+    public static void encode(J2ModFastOutputStream out,
+                              ModbusMessage msg,
+                              int transactionId,
+                              boolean headless,
+                              boolean useRtuOverTcp) throws IOException {
+        out.reset();
+        if (!headless) {
+            out.writeShort(transactionId);
+            out.writeShort(msg.getProtocolID());
+            out.writeShort(0); // length, set below.
+        }
+        out.writeByte(msg.getUnitID());
+        out.writeByte(msg.getFunctionCode());
+        msg.writeData(out);
+
+        final byte[] buf = out.getBuffer();
+        if (!headless) {
+            final int length = out.size() - 6;
+            buf[4] = (byte) (length >> 8);
+            buf[5] = (byte) length;
+        }
+
+        // Add CRC for RTU over TCP
+        if (useRtuOverTcp)
+            out.writeShort(Checksum.crc16(buf, 0, out.size()));
     }
 
     /**
      * Writes a <tt>ModbusMessage</tt> to the output stream of this
      * <tt>ModbusTransport</tt>.
      * <p>
+     * The frame is encoded into a buffer owned by this transport and sent to
+     * the socket with a single write, nothing is allocated per message.
      *
      * @param msg           a <tt>ModbusMessage</tt>.
      * @param useRtuOverTcp True if the RTU protocol should be used over TCP
@@ -336,50 +450,19 @@ public class ModbusTCPTransport implements ModbusTransport {
     void writeMessage(ModbusMessage msg, boolean useRtuOverTcp) throws
                                                                 IOException {
         try {
-            if (log.isDebugEnabled()) {
-                log.debug("Sending: {}", J2ModDebugUtils.toHex(msg));
-            }
-            byte message[] = msg.getMessage();
-
-            byteOutputStream.reset();
-            if (!headless) {
-                byteOutputStream.writeShort(msg.getTransactionID());
-                byteOutputStream.writeShort(msg.getProtocolID());
-                byteOutputStream.writeShort((message != null
-                                             ? message.length
-                                             : 0) + 2);
-            }
-            byteOutputStream.writeByte(msg.getUnitID());
-            byteOutputStream.writeByte(msg.getFunctionCode());
-            if (message != null && message.length > 0) {
-                byteOutputStream.write(message);
-            }
-
-            // Add CRC for RTU over TCP
-            if (useRtuOverTcp) {
-                int len = byteOutputStream.size();
-                int[] crc = Checksum.crc(byteOutputStream.getBufferCopy(), 0, len);
-                byteOutputStream.writeByte(crc[0]);
-                byteOutputStream.writeByte(crc[1]);
-            }
-
-            dataOutputStream.write(byteOutputStream.toByteArray());
-            dataOutputStream.flush();
-            if (log.isDebugEnabled()) {
-                log.debug("Successfully sent: {}", J2ModDebugUtils.toHex(byteOutputStream
-                                                                                 .toByteArray()));
+            synchronized (byteOutputStream) {
+                encode(byteOutputStream, msg, msg.getTransactionID(), headless, useRtuOverTcp);
+                outputStream.write(byteOutputStream.getBuffer(), 0, byteOutputStream.size());
+                outputStream.flush();
+                if (log.isDebugEnabled()) {
+                    log.debug("Successfully sent: {}", J2ModDebugUtils.toHex(
+                            byteOutputStream.getBuffer(), 0, byteOutputStream.size()));
+                }
             }
             // write more sophisticated exception handling
         }
         catch (SocketException ex1) {
-            if (master != null && !master.isConnected()) {
-                try {
-                    master.connect(useRtuOverTcp);
-                }
-                catch (Exception e) {
-                    // Do nothing.
-                }
-            }
+            // Reconnecting is up to the caller, see ConnectionSupervisor.
             throw new IOException("I/O socket exception - failed to write", ex1);
         }
         catch (Exception ex2) {
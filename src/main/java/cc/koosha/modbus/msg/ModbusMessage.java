@@ -151,6 +151,15 @@ public interface ModbusMessage {
      */
     void writeTo(DataOutput dout) throws IOException;
 
+    /**
+     * Writes the message specific data, that is the PDU without the function
+     * code, to the given <tt>DataOutput</tt>.
+     *
+     * @param dout the <tt>DataOutput</tt> to write to.
+     * @throws java.io.IOException if an I/O error occurs.
+     */
+    void writeData(DataOutput dout) throws IOException;
+
     /**
      * Reads this <tt>Transportable</tt> from the given
      * <tt>DataInput</tt>.
@@ -16,7 +16,6 @@
 package cc.koosha.modbus.msg;
 
 import java.io.DataInput;
-import java.io.DataOutput;
 import java.io.IOException;
 
 
@@ -26,14 +25,6 @@ public interface ModbusResponse extends ModbusMessage {
 
     void setDataLength(int length);
 
-    /**
-     * Writes the subclass specific data to the given DataOutput.
-     *
-     * @param dout the DataOutput to be written to.
-     * @throws IOException if an I/O related error occurs.
-     */
-    void writeData(DataOutput dout) throws IOException;
-
     /**
      * Reads the subclass specific data from the given DataInput instance.
      *
@@ -228,7 +228,7 @@ public final class WriteMultipleRegistersRequest extends AbstractModbusRequest {
         registers = J2ModCollections.newModifiableList();
 
         for (int register = 0; register < registerCount; register++) {
-            registers.set(register, new SimpleRegister(buffer[offset], buffer[offset + 1]));
+            registers.add(new SimpleRegister(buffer[offset], buffer[offset + 1]));
             offset += 2;
         }
     }
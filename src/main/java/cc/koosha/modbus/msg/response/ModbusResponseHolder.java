@@ -0,0 +1,276 @@
+package cc.koosha.modbus.msg.response;
+
+import cc.koosha.modbus.Modbus;
+import lombok.Getter;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.IOException;
+
+
+/**
+ * A reusable, mutable response, decoded without allocating anything.
+ * <p>
+ * Where {@link cc.koosha.modbus.msg.ModbusResponse}s are created for each
+ * response, with a {@link cc.koosha.modbus.procimg.Register} object per word,
+ * a holder is created once by the caller and filled again and again by
+ * {@link cc.koosha.modbus.modbus.transport.ModbusTCPTransport#readResponse(ModbusResponseHolder)}.
+ * The PDU is kept as raw bytes and registers and bits are read straight from
+ * it, as primitives.
+ * <p>
+ * Values read from a holder are only valid until it is filled again.
+ *
+ * @author Koosha Hosseiny
+ */
+@NotThreadSafe
+public final class ModbusResponseHolder {
+
+    private static final int MBAP_LENGTH = 6;
+
+    private static final long READ_REGISTERS = mask(Modbus.READ_MULTIPLE_REGISTERS,
+                                                    Modbus.READ_INPUT_REGISTERS,
+                                                    Modbus.READ_WRITE_MULTIPLE);
+
+    private static final long READ_BITS = mask(Modbus.READ_COILS,
+                                               Modbus.READ_INPUT_DISCRETES);
+
+    private static final long WRITES = mask(Modbus.WRITE_COIL,
+                                            Modbus.WRITE_SINGLE_REGISTER,
+                                            Modbus.WRITE_MULTIPLE_COILS,
+                                            Modbus.WRITE_MULTIPLE_REGISTERS);
+
+    /**
+     * PDU without the function code.
+     */
+    private final byte[] data = new byte[Modbus.MAX_MESSAGE_LENGTH];
+
+    @Getter
+    private int dataLength;
+
+    @Getter
+    private int transactionID;
+
+    @Getter
+    private int protocolID;
+
+    @Getter
+    private int unitID;
+
+    @Getter
+    private int functionCode;
+
+
+    /**
+     * Fills this holder from a Modbus/TCP frame, MBAP header included.
+     *
+     * @param frame  buffer holding the frame.
+     * @param offset offset of the frame in the buffer.
+     * @param length length of the frame.
+     * @throws IOException if the frame is malformed.
+     */
+    public void decode(byte[] frame, int offset, int length) throws IOException {
+        if (length < MBAP_LENGTH + 2)
+            throw new IOException("frame too short: " + length);
+        final int pduLength = ((frame[offset + 4] & 0xFF) << 8 | (frame[offset + 5] & 0xFF)) - 2;
+        if (pduLength < 0 || pduLength > length - MBAP_LENGTH - 2 || pduLength > data.length)
+            throw new IOException("invalid length in MBAP header: " + (pduLength + 2));
+
+        this.transactionID = (frame[offset] & 0xFF) << 8 | (frame[offset + 1] & 0xFF);
+        this.protocolID = (frame[offset + 2] & 0xFF) << 8 | (frame[offset + 3] & 0xFF);
+        decodePdu(frame, offset + MBAP_LENGTH, pduLength + 2);
+    }
+
+    /**
+     * Fills this holder from a unit id followed by a PDU, as found after the
+     * MBAP header, or in an RTU frame without its CRC. Transaction and
+     * protocol id are reset to zero.
+     *
+     * @param frame  buffer holding the unit id and PDU.
+     * @param offset offset of the unit id in the buffer.
+     * @param length length of the unit id and PDU.
+     * @throws IOException if the PDU is malformed.
+     */
+    public void decodeHeadless(byte[] frame, int offset, int length) throws IOException {
+        this.transactionID = 0;
+        this.protocolID = 0;
+        decodePdu(frame, offset, length);
+    }
+
+    public boolean isException() {
+        return functionCode >= Modbus.EXCEPTION_OFFSET;
+    }
+
+    /**
+     * Exception code of an exception response.
+     *
+     * @return the exception code.
+     */
+    public int getExceptionCode() {
+        ensureException(true);
+        return data[0] & 0xFF;
+    }
+
+    /**
+     * Number of registers in a read registers response (function codes 3, 4
+     * and 23).
+     *
+     * @return the number of registers.
+     */
+    public int getRegisterCount() {
+        ensureFunction(READ_REGISTERS);
+        return (data[0] & 0xFF) / 2;
+    }
+
+    /**
+     * Value of a register of a read registers response, as an unsigned
+     * short.
+     *
+     * @param index index of the register in the response.
+     * @return value of the register.
+     */
+    public int getRegister(int index) {
+        if (index < 0 || index >= getRegisterCount())
+            throw new IndexOutOfBoundsException("register: " + index);
+        return wordAt(1 + index * 2);
+    }
+
+    /**
+     * Value of a register of a read registers response, as a signed short.
+     *
+     * @param index index of the register in the response.
+     * @return value of the register.
+     */
+    public short getSignedRegister(int index) {
+        return (short) getRegister(index);
+    }
+
+    /**
+     * Number of bits in a read coils or read discrete inputs response
+     * (function codes 1 and 2). The response is padded to whole bytes, so
+     * this may exceed the count requested.
+     *
+     * @return number of bits.
+     */
+    public int getBitCount() {
+        ensureFunction(READ_BITS);
+        return (data[0] & 0xFF) * 8;
+    }
+
+    /**
+     * A bit of a read coils or read discrete inputs response.
+     *
+     * @param index index of the bit in the response.
+     * @return the bit.
+     */
+    public boolean getBit(int index) {
+        if (index < 0 || index >= getBitCount())
+            throw new IndexOutOfBoundsException("bit: " + index);
+        return (data[1 + index / 8] & (1 << (index % 8))) != 0;
+    }
+
+    /**
+     * Reference echoed by a write response (function codes 5, 6, 15 and 16).
+     *
+     * @return the reference.
+     */
+    public int getReference() {
+        ensureWrite();
+        return wordAt(0);
+    }
+
+    /**
+     * Value echoed by a single write response (function codes 5 and 6), or
+     * the number of coils or registers written (function codes 15 and 16).
+     *
+     * @return the value or count.
+     */
+    public int getValue() {
+        ensureWrite();
+        return wordAt(2);
+    }
+
+    /**
+     * Copies the PDU without the function code.
+     *
+     * @param dest   buffer to copy into.
+     * @param offset offset in the buffer.
+     * @return number of bytes copied, same as {@link #getDataLength()}.
+     */
+    public int copyData(byte[] dest, int offset) {
+        System.arraycopy(data, 0, dest, offset, dataLength);
+        return dataLength;
+    }
+
+
+    private void decodePdu(byte[] frame, int offset, int length) throws IOException {
+        if (length < 2 || length - 2 > data.length)
+            throw new IOException("invalid PDU length: " + length);
+        this.unitID = frame[offset] & 0xFF;
+        this.functionCode = frame[offset + 1] & 0xFF;
+        this.dataLength = length - 2;
+        System.arraycopy(frame, offset + 2, data, 0, dataLength);
+        validate();
+    }
+
+    private void validate() throws IOException {
+        final int expected;
+        if (isException()) {
+            expected = 1;
+        }
+        else {
+            switch (functionCode) {
+                case Modbus.READ_COILS:
+                case Modbus.READ_INPUT_DISCRETES:
+                case Modbus.READ_MULTIPLE_REGISTERS:
+                case Modbus.READ_INPUT_REGISTERS:
+                case Modbus.READ_WRITE_MULTIPLE:
+                    expected = dataLength < 1 ? 1 : 1 + (data[0] & 0xFF);
+                    break;
+                case Modbus.WRITE_COIL:
+                case Modbus.WRITE_SINGLE_REGISTER:
+                case Modbus.WRITE_MULTIPLE_COILS:
+                case Modbus.WRITE_MULTIPLE_REGISTERS:
+                    expected = 4;
+                    break;
+                default:
+                    return;
+            }
+        }
+        if (dataLength != expected)
+            throw new IOException("invalid length for function code " + functionCode
+                                          + ": " + dataLength + ", expected: " + expected);
+    }
+
+    private int wordAt(int offset) {
+        return (data[offset] & 0xFF) << 8 | (data[offset + 1] & 0xFF);
+    }
+
+    private void ensureException(boolean exception) {
+        if (isException() != exception)
+            throw new IllegalStateException(exception
+                                            ? "not an exception response"
+                                            : "exception response: " + (data[0] & 0xFF));
+    }
+
+    /**
+     * @param functions mask of the supported function codes, see {@link
+     *                  #mask(int...)}.
+     */
+    private void ensureFunction(long functions) {
+        ensureException(false);
+        if (functionCode < 64 && (functions & 1L << functionCode) != 0)
+            return;
+        throw new IllegalStateException("not supported for function code: " + functionCode);
+    }
+
+    private void ensureWrite() {
+        ensureFunction(WRITES);
+    }
+
+    private static long mask(int... functionCodes) {
+        long mask = 0;
+        for (int fc : functionCodes)
+            mask |= 1L << fc;
+        return mask;
+    }
+
+}
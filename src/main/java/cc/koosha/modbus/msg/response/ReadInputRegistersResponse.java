@@ -158,7 +158,7 @@ public final class ReadInputRegistersResponse extends AbstractModbusResponse {
 
         List<InputRegister> registers = J2ModCollections.newModifiableList();
         for (int k = 0; k < getWordCount(); k++) {
-            registers.set(k, new SimpleInputRegister(din.readByte(), din.readByte()));
+            registers.add(new SimpleInputRegister(din.readByte(), din.readByte()));
         }
         this.registers = registers;
 
@@ -154,7 +154,7 @@ public final class ReadMultipleRegistersResponse extends AbstractModbusResponse
         registers = J2ModCollections.newModifiableList();
 
         for (int k = 0; k < getWordCount(); k++) {
-            registers.set(k, new SimpleRegister(din.readByte(), din.readByte()));
+            registers.add(new SimpleRegister(din.readByte(), din.readByte()));
         }
 
         setDataLength(byteCount + 1);
@@ -0,0 +1,173 @@
+package cc.koosha.modbus.util;
+
+import cc.koosha.modbus.xinternal.J2ModCollections;
+import lombok.Getter;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Map;
+
+
+/**
+ * Response timeouts derived from the measured round trip time of each unit,
+ * the way TCP derives its retransmission timeout (RFC 6298).
+ * <p>
+ * An instance belongs to a single connection, and keeps a smoothed round trip
+ * time and its variance per unit id. The timeout of a unit is <tt>srtt + 4 *
+ * rttvar</tt>, kept between {@link #getFloor()} and {@link #getCeiling()}.
+ * Until a unit has been measured its timeout is {@link #getInitial()}. Each
+ * timeout doubles the timeout of the unit, up to the ceiling, until it
+ * answers again.
+ * <p>
+ * Only round trips of requests sent once must be measured: the response to a
+ * retried request might be the late response to the first try (Karn's
+ * algorithm).
+ *
+ * @author Koosha Hosseiny
+ */
+@ThreadSafe
+public final class AdaptiveTimeout {
+
+    private static final class Estimate {
+
+        private boolean measured;
+        private double srtt;
+        private double rttvar;
+        private long timeout;
+
+    }
+
+    private final Object LOCK = new Object();
+
+    /**
+     * Guarded by LOCK.
+     */
+    private final Map<Integer, Estimate> estimates = J2ModCollections.newModifiableMap();
+
+    /**
+     * Minimum timeout, in milliseconds.
+     */
+    @Getter
+    private final long floor;
+
+    /**
+     * Maximum timeout, in milliseconds.
+     */
+    @Getter
+    private final long ceiling;
+
+    /**
+     * Timeout of units not measured yet, in milliseconds.
+     */
+    @Getter
+    private final long initial;
+
+    /**
+     * @param floor   minimum timeout, in milliseconds.
+     * @param ceiling maximum timeout, in milliseconds.
+     * @param initial timeout of units not measured yet, in milliseconds,
+     *                between floor and ceiling.
+     */
+    public AdaptiveTimeout(long floor, long ceiling, long initial) {
+        if (floor <= 0)
+            throw new IllegalArgumentException("floor: " + floor);
+        if (ceiling < floor)
+            throw new IllegalArgumentException("ceiling less than floor: " + ceiling);
+        if (initial < floor || initial > ceiling)
+            throw new IllegalArgumentException("initial not between floor and ceiling: " + initial);
+        this.floor = floor;
+        this.ceiling = ceiling;
+        this.initial = initial;
+    }
+
+    /**
+     * Current timeout of a unit.
+     *
+     * @param unitId the unit.
+     * @return timeout in milliseconds.
+     */
+    public long getTimeout(int unitId) {
+        synchronized (LOCK) {
+            final Estimate estimate = estimates.get(unitId);
+            return estimate == null ? initial : estimate.timeout;
+        }
+    }
+
+    /**
+     * Smoothed round trip time of a unit.
+     *
+     * @param unitId the unit.
+     * @return round trip time in milliseconds, or -1 if not measured yet.
+     */
+    public double getRoundTripTime(int unitId) {
+        synchronized (LOCK) {
+            final Estimate estimate = estimates.get(unitId);
+            return estimate == null || !estimate.measured ? -1 : estimate.srtt;
+        }
+    }
+
+    /**
+     * Records the round trip time of a request answered on its first try.
+     *
+     * @param unitId the unit which answered.
+     * @param millis round trip time, in milliseconds.
+     */
+    public void sample(int unitId, double millis) {
+        if (millis < 0)
+            return;
+        synchronized (LOCK) {
+            final Estimate estimate = get(unitId);
+            if (estimate.measured) {
+                estimate.rttvar = 0.75 * estimate.rttvar + 0.25 * Math.abs(estimate.srtt - millis);
+                estimate.srtt = 0.875 * estimate.srtt + 0.125 * millis;
+            }
+            else {
+                estimate.measured = true;
+                estimate.srtt = millis;
+                estimate.rttvar = millis / 2;
+            }
+            estimate.timeout = clamp((long) Math.ceil(estimate.srtt + 4 * estimate.rttvar));
+        }
+    }
+
+    /**
+     * Records a request which timed out, doubling the timeout of the unit.
+     *
+     * @param unitId the unit which did not answer.
+     */
+    public void timedOut(int unitId) {
+        synchronized (LOCK) {
+            final Estimate estimate = get(unitId);
+            estimate.timeout = clamp(estimate.timeout * 2);
+        }
+    }
+
+    /**
+     * Forgets what was measured of a unit.
+     *
+     * @param unitId the unit.
+     */
+    public void reset(int unitId) {
+        synchronized (LOCK) {
+            estimates.remove(unitId);
+        }
+    }
+
+
+    /**
+     * Guarded by LOCK.
+     */
+    private Estimate get(int unitId) {
+        Estimate estimate = estimates.get(unitId);
+        if (estimate == null) {
+            estimate = new Estimate();
+            estimate.timeout = initial;
+            estimates.put(unitId, estimate);
+        }
+        return estimate;
+    }
+
+    private long clamp(long timeout) {
+        return timeout < floor ? floor : (timeout > ceiling ? ceiling : timeout);
+    }
+
+}
@@ -42,6 +42,25 @@ public final class Checksum {
     }
 
 
+    /**
+     * Same as {@link #crc(byte[], int, int)} without allocating the result.
+     *
+     * @param data   the data.
+     * @param offset index of the first byte.
+     * @param end    index after the last byte.
+     * @return the CRC, first byte to send in the high byte.
+     */
+    public static int crc16(byte[] data, int offset, int end) {
+        int hi = 0xFF;
+        int lo = 0xFF;
+        for (int i = offset; i < end; i++) {
+            final int index = hi ^ (data[i] & 0xFF);
+            hi = lo ^ auchCRCHi[index];
+            lo = auchCRCLo[index];
+        }
+        return (hi << 8) | lo;
+    }
+
     public static int[] crc(byte[] data, int offset, int len) {
         int[] crc = {0xFF, 0xFF};
         int nextByte;
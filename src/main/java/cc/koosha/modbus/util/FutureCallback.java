@@ -0,0 +1,28 @@
+package cc.koosha.modbus.util;
+
+
+/**
+ * Receives the outcome of an asynchronous operation.
+ * <p>
+ * Same as guava's FutureCallback.
+ *
+ * @param <T> type of the result.
+ * @see ModbusFuture
+ */
+public interface FutureCallback<T> {
+
+    /**
+     * Called when the operation completes successfully.
+     *
+     * @param result result of the operation.
+     */
+    void onSuccess(T result);
+
+    /**
+     * Called when the operation fails or is cancelled.
+     *
+     * @param error cause of the failure.
+     */
+    void onFailure(Throwable error);
+
+}
@@ -0,0 +1,215 @@
+package cc.koosha.modbus.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+
+/**
+ * A {@link Future} which is completed by whoever produces the value, usually
+ * an I/O thread, and which notifies {@link FutureCallback}s on completion.
+ * <p>
+ * Callbacks are called on the thread completing the future, or on the thread
+ * adding the callback if the future is already done. They must not block.
+ *
+ * @param <T> type of the result.
+ * @author Koosha Hosseiny
+ */
+@Slf4j
+@ThreadSafe
+public final class ModbusFuture<T> implements Future<T> {
+
+    private final Object LOCK = new Object();
+    private final CountDownLatch latch = new CountDownLatch(1);
+
+    private List<FutureCallback<? super T>> callbacks =
+            new ArrayList<FutureCallback<? super T>>(1);
+
+    private boolean done;
+    private boolean cancelled;
+    private T value;
+    private Throwable error;
+
+    /**
+     * Completes the future with the given value.
+     *
+     * @param value result of the operation.
+     * @return false if the future was already completed, true otherwise.
+     */
+    public boolean set(T value) {
+        final List<FutureCallback<? super T>> toCall;
+        synchronized (LOCK) {
+            if (done)
+                return false;
+            this.value = value;
+            toCall = complete();
+        }
+        for (FutureCallback<? super T> callback : toCall)
+            notifySuccess(callback, value);
+        return true;
+    }
+
+    /**
+     * Completes the future with the given error.
+     *
+     * @param error cause of the failure.
+     * @return false if the future was already completed, true otherwise.
+     */
+    public boolean setException(Throwable error) {
+        final List<FutureCallback<? super T>> toCall;
+        synchronized (LOCK) {
+            if (done)
+                return false;
+            this.error = error;
+            toCall = complete();
+        }
+        for (FutureCallback<? super T> callback : toCall)
+            notifyFailure(callback, error);
+        return true;
+    }
+
+    /**
+     * Adds a callback to be notified once the future is done. If the future is
+     * already done, the callback is called immediately on the calling thread.
+     *
+     * @param callback the callback to notify.
+     */
+    public void addCallback(FutureCallback<? super T> callback) {
+        synchronized (LOCK) {
+            if (!done) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        if (error == null)
+            notifySuccess(callback, value);
+        else
+            notifyFailure(callback, error);
+    }
+
+    /**
+     * Returns a future completed with the result of applying the function to
+     * the result of this future, or failed with the error of this future or
+     * any exception thrown by the function.
+     * <p>
+     * The function is called on the thread completing this future.
+     *
+     * @param function maps the result of this future.
+     * @param <R>      type of the mapped result.
+     * @return future of the mapped result.
+     */
+    public <R> ModbusFuture<R> transform(final Function<? super T, ? extends R> function) {
+        final ModbusFuture<R> mapped = new ModbusFuture<R>();
+        this.addCallback(new FutureCallback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                final R r;
+                try {
+                    r = function.apply(result);
+                }
+                catch (RuntimeException e) {
+                    mapped.setException(e);
+                    return;
+                }
+                mapped.set(r);
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                mapped.setException(error);
+            }
+        });
+        return mapped;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        final List<FutureCallback<? super T>> toCall;
+        final CancellationException ex = new CancellationException();
+        synchronized (LOCK) {
+            if (done)
+                return false;
+            this.cancelled = true;
+            this.error = ex;
+            toCall = complete();
+        }
+        for (FutureCallback<? super T> callback : toCall)
+            notifyFailure(callback, ex);
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        synchronized (LOCK) {
+            return cancelled;
+        }
+    }
+
+    @Override
+    public boolean isDone() {
+        synchronized (LOCK) {
+            return done;
+        }
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        latch.await();
+        return report();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException,
+                                                     ExecutionException,
+                                                     TimeoutException {
+        if (!latch.await(timeout, unit))
+            throw new TimeoutException();
+        return report();
+    }
+
+
+    private List<FutureCallback<? super T>> complete() {
+        final List<FutureCallback<? super T>> toCall = callbacks;
+        callbacks = null;
+        done = true;
+        latch.countDown();
+        return toCall;
+    }
+
+    private T report() throws ExecutionException {
+        synchronized (LOCK) {
+            if (cancelled)
+                throw (CancellationException) error;
+            if (error != null)
+                throw new ExecutionException(error);
+            return value;
+        }
+    }
+
+    private static <T> void notifySuccess(FutureCallback<? super T> callback, T value) {
+        try {
+            callback.onSuccess(value);
+        }
+        catch (RuntimeException e) {
+            log.error("future callback failed", e);
+        }
+    }
+
+    private static void notifyFailure(FutureCallback<?> callback, Throwable error) {
+        try {
+            callback.onFailure(error);
+        }
+        catch (RuntimeException e) {
+            log.error("future callback failed", e);
+        }
+    }
+
+}
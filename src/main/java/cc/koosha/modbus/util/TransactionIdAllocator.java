@@ -0,0 +1,123 @@
+package cc.koosha.modbus.util;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Hands out MBAP transaction ids for a single connection, without locking.
+ * <p>
+ * Ids cycle through the whole 16 bit space, 0 to 65535, or a smaller range
+ * for servers wrongly taking ids as signed, skipping ids still
+ * in flight: an id is in flight from {@link #acquire()} until {@link
+ * #release(int)}, and is never handed out twice meanwhile. A response whose
+ * id is not in flight is the late answer to a request given up on, and can
+ * be discarded.
+ * <p>
+ * Ids are unique per connection only, which is all the protocol asks for;
+ * connections do not contend with each other.
+ *
+ * @author Koosha Hosseiny
+ */
+@ThreadSafe
+public final class TransactionIdAllocator {
+
+    /**
+     * Number of distinct transaction ids.
+     */
+    public static final int SIZE = 1 << 16;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * One bit per id, set while in flight.
+     */
+    private final AtomicLongArray inFlight = new AtomicLongArray(SIZE / 64);
+
+    /**
+     * Number of ids handed out, from zero.
+     */
+    private final int size;
+
+    public TransactionIdAllocator() {
+        this(SIZE);
+    }
+
+    /**
+     * @param size number of ids handed out, from zero, at most {@link
+     *             #SIZE}. {@link cc.koosha.modbus.Modbus#MAX_TRANSACTION_ID}
+     *             + 1 keeps ids positive as signed shorts.
+     */
+    public TransactionIdAllocator(int size) {
+        if (size <= 0 || size > SIZE)
+            throw new IllegalArgumentException("size: " + size);
+        this.size = size;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Takes the next id not in flight.
+     *
+     * @return the id, in flight until released.
+     * @throws IllegalStateException if all ids are in flight.
+     */
+    public int acquire() {
+        for (int i = 0; i < size; i++) {
+            final int id = (next.getAndIncrement() & Integer.MAX_VALUE) % size;
+            if (set(id))
+                return id;
+        }
+        throw new IllegalStateException("all transaction ids in flight");
+    }
+
+    /**
+     * Returns an id, once its response arrived or it was given up on.
+     *
+     * @param id the id.
+     */
+    public void release(int id) {
+        final int index = index(id);
+        final long bit = bit(id);
+        while (true) {
+            final long current = inFlight.get(index);
+            if ((current & bit) == 0 || inFlight.compareAndSet(index, current, current & ~bit))
+                return;
+        }
+    }
+
+    /**
+     * @param id an id.
+     * @return true if the id is acquired and not released yet.
+     */
+    public boolean isInFlight(int id) {
+        return (inFlight.get(index(id)) & bit(id)) != 0;
+    }
+
+
+    private boolean set(int id) {
+        final int index = index(id);
+        final long bit = bit(id);
+        while (true) {
+            final long current = inFlight.get(index);
+            if ((current & bit) != 0)
+                return false;
+            if (inFlight.compareAndSet(index, current, current | bit))
+                return true;
+        }
+    }
+
+    private static int index(int id) {
+        if (id < 0 || id >= SIZE)
+            throw new IllegalArgumentException("transaction id: " + id);
+        return id >>> 6;
+    }
+
+    private static long bit(int id) {
+        return 1L << (id & 63);
+    }
+
+}
@@ -66,15 +66,14 @@ public final class J2ModFastInputStream extends AccessibleDataInput {
 
 
     /**
-     * Returns the reference to the input buffer.
+     * Returns the reference to the input buffer, not a copy, so that callers
+     * can read straight into it and {@link #reset(byte[], int)} on it.
      *
      * @return the reference to the <tt>byte[]</tt> input buffer.
      */
     @Override
     public byte[] getBuffer() {
-        byte[] dest = new byte[buf.length];
-        System.arraycopy(buf, 0, dest, 0, dest.length);
-        return dest;
+        return buf;
     }
 
     public void readFully(byte b[]) throws IOException {
@@ -149,38 +148,24 @@ public final class J2ModFastInputStream extends AccessibleDataInput {
     // --- ByteArrayInputStream compatible methods ---
 
     public int read() {
-        throw new UnsupportedOperationException();
-        // if (log.isTraceEnabled()) {
-        //     log.trace("read()");
-        //     log.trace("count={} pos={}", count, pos);
-        // }
-        // return (pos < count) ? (buf[pos++] & 0xff) : (-1);
+        return (pos < count) ? (buf[pos++] & 0xff) : (-1);
     }
 
     public int read(byte[] toBuf) {
-        throw new UnsupportedOperationException();
-        // if (log.isTraceEnabled()) {
-        //     log.trace("read(byte[])");
-        // }
-        // return read(toBuf, 0, toBuf.length);
+        return read(toBuf, 0, toBuf.length);
     }
 
     public int read(byte[] toBuf, int offset, int length) {
-        throw new UnsupportedOperationException();
-        // if (log.isTraceEnabled()) {
-        //     log.trace("read(byte[],int,int)");
-        // }
-        // int avail = count - pos;
-        // if (avail <= 0) {
-        //     return -1;
-        // }
-        // if (length > avail) {
-        //     length = avail;
-        // }
-        // for (int i = 0; i < length; i++) {
-        //     toBuf[offset++] = buf[pos++];
-        // }
-        // return length;
+        final int avail = count - pos;
+        if (avail <= 0) {
+            return -1;
+        }
+        if (length > avail) {
+            length = avail;
+        }
+        System.arraycopy(buf, pos, toBuf, offset, length);
+        pos += length;
+        return length;
     }
 
     public long skip(long count) {
@@ -237,6 +222,21 @@ public final class J2ModFastInputStream extends AccessibleDataInput {
         buf = data;
     }
 
+    /**
+     * Resets this <tt>BytesInputStream</tt> to read a slice of the given
+     * buffer, which is not copied.
+     *
+     * @param data   a byte array with data to be read.
+     * @param offset start of the data.
+     * @param length length of the data.
+     */
+    public void reset(byte[] data, int offset, int length) {
+        pos = offset;
+        mark = offset;
+        count = offset + length;
+        buf = data;
+    }
+
     /**
      * Resets this <tt>BytesInputStream</tt>  assigning the input buffer a new
      * length.
@@ -82,6 +82,16 @@ public final class J2ModFastOutputStream extends AccessibleDataOutput {
         return dest;
     }
 
+    /**
+     * Returns the reference to the output buffer, valid until the next write
+     * which may grow the buffer.
+     *
+     * @return the <tt>byte[]</tt> output buffer, not a copy.
+     */
+    public byte[] getBuffer() {
+        return buf;
+    }
+
     public void writeBoolean(boolean v) throws IOException {
         throw new UnsupportedOperationException();
         // dataOutputStream.writeBoolean(v);
@@ -34,7 +34,8 @@ import java.util.concurrent.TimeUnit;
  * this delay is simply skipped and {@link Thread#sleep(long)} is <b>NOT</b>
  * called.
  *
- * @deprecated make internal
+ * @deprecated make internal, use {@link
+ * cc.koosha.modbus.modbus.master.PollScheduler} for polling.
  */
 @Slf4j
 @RequiredArgsConstructor
@@ -0,0 +1,469 @@
+package cc.koosha.modbus.app;
+
+import cc.koosha.modbus.Modbus;
+import cc.koosha.modbus.msg.ModbusRequest;
+import cc.koosha.modbus.msg.ModbusResponse;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class ModbusNioTCPSlaveTest {
+
+    /**
+     * Requests to this unit fail in the processor.
+     */
+    private static final int FAILING_UNIT = 9;
+
+    /**
+     * Requests to this unit wait for {@link #release}.
+     */
+    private static final int BLOCKING_UNIT = 2;
+
+    /**
+     * A client other than the loopback address, on the loopback interface.
+     */
+    private static final InetAddress OTHER_PEER = address(127, 0, 0, 2);
+
+    private volatile CountDownLatch release;
+
+    private final ModbusRequestProcessor processor = new ModbusRequestProcessor() {
+        @Override
+        public ModbusResponse apply(ModbusRequest request) {
+            if (request.getUnitID() == FAILING_UNIT)
+                throw new IllegalStateException("processor failed");
+            if (request.getUnitID() == BLOCKING_UNIT)
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            return request.createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+        }
+    };
+
+    private final List<Socket> sockets = new ArrayList<Socket>();
+
+    private ModbusNioTCPSlave slave;
+    private ExecutorService executor;
+
+    @BeforeMethod
+    public void setUp() {
+        release = new CountDownLatch(1);
+        sockets.clear();
+        slave = null;
+        executor = null;
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        release.countDown();
+        for (Socket socket : sockets)
+            socket.close();
+        if (slave != null)
+            slave.close();
+        if (executor != null)
+            executor.shutdownNow();
+    }
+
+    @Test
+    public void testServesManyConnections() throws Exception {
+        start(2);
+        final int clients = 50;
+        for (int i = 0; i < clients; i++)
+            connect();
+        for (int i = 0; i < clients; i++)
+            write(sockets.get(i), request(i, 1));
+        for (int i = 0; i < clients; i++)
+            assertAnswered(read(sockets.get(i)), i, Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+
+        assertEquals(slave.getConnectionCount(), clients);
+        assertEquals(slave.getRequestCount(), clients);
+    }
+
+    @Test
+    public void testFraming() throws Exception {
+        start(1);
+        final Socket socket = connect();
+
+        // One byte at a time.
+        final byte[] split = request(1, 1);
+        for (byte b : split) {
+            socket.getOutputStream().write(b);
+            socket.getOutputStream().flush();
+            Thread.sleep(2);
+        }
+        assertAnswered(read(socket), 1, Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+
+        // Several frames in one segment.
+        write(socket, concat(request(2, 1), request(3, 1), request(4, 1)));
+        for (int tid = 2; tid <= 4; tid++)
+            assertAnswered(read(socket), tid, Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+    }
+
+    @Test
+    public void testMalformedRequest() throws Exception {
+        start(1);
+        final Socket socket = connect();
+
+        // Read holding registers without the count.
+        write(socket, new byte[]{0, 5, 0, 0, 0, 4, 1, 3, 0, 0});
+        assertAnswered(read(socket), 5, Modbus.ILLEGAL_VALUE_EXCEPTION);
+
+        // The connection is still usable.
+        write(socket, request(6, 1));
+        assertAnswered(read(socket), 6, Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+    }
+
+    @Test
+    public void testProcessorFailure() throws Exception {
+        start(1);
+        final Socket socket = connect();
+
+        write(socket, request(7, FAILING_UNIT));
+        assertAnswered(read(socket), 7, Modbus.SLAVE_DEVICE_FAILURE);
+    }
+
+    @Test
+    public void testUnorderedPipelining() throws Exception {
+        start(1);
+        slave.setExecutor(executor(4));
+        final Socket socket = connect();
+
+        write(socket, concat(request(1, BLOCKING_UNIT), request(2, 1), request(3, 1)));
+        final int first = tid(read(socket));
+        final int second = tid(read(socket));
+        assertEquals(first + second, 5);
+
+        release.countDown();
+        assertAnswered(read(socket), 1, Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+    }
+
+    @Test
+    public void testOrderedPipelining() throws Exception {
+        start(1);
+        slave.setExecutor(executor(4));
+        slave.setOrdered(true);
+        final Socket socket = connect();
+
+        write(socket, concat(request(1, BLOCKING_UNIT), request(2, 1), request(3, 1)));
+        assertSilent(socket);
+
+        release.countDown();
+        for (int tid = 1; tid <= 3; tid++)
+            assertAnswered(read(socket), tid, Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+    }
+
+    @Test
+    public void testOrderedPerConnection() throws Exception {
+        start(1);
+        slave.setExecutor(executor(4));
+        slave.setOrdered(true);
+        final Socket slow = connect();
+        final Socket fast = connect();
+
+        write(slow, request(1, BLOCKING_UNIT));
+        write(fast, request(2, 1));
+        assertAnswered(read(fast), 2, Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+        assertSilent(slow);
+
+        release.countDown();
+        assertAnswered(read(slow), 1, Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+    }
+
+    @Test
+    public void testClientGoneBeforeResponse() throws Exception {
+        start(1);
+        slave.setExecutor(executor(4));
+        final Socket gone = connect();
+        write(gone, request(1, BLOCKING_UNIT));
+        waitForQueueDepth(1);
+        gone.close();
+
+        release.countDown();
+        waitForQueueDepth(0);
+        final Socket socket = connect();
+        write(socket, request(2, 1));
+        assertAnswered(read(socket), 2, Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyActive() throws Exception {
+        start(1);
+        slave.setMaxConnections(2);
+        final Socket a = connect();
+        final Socket b = connect();
+        Thread.sleep(50);
+        write(b, request(1, 1));
+        read(b);
+
+        final Socket c = connect();
+        Thread.sleep(100);
+
+        assertEquals(a.getInputStream().read(), -1);
+        write(b, request(2, 1));
+        assertAnswered(read(b), 2, Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+        write(c, request(3, 1));
+        assertAnswered(read(c), 3, Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+        assertEquals(slave.getEvictionCount(), 1);
+        assertEquals(slave.getConnectionCount(), 2);
+    }
+
+    @Test
+    public void testKeepsMarkedPeers() throws Exception {
+        start(1);
+        slave.setMaxConnections(2);
+        slave.addMarked(InetAddress.getLoopbackAddress());
+        final Socket marked = connect();
+        Thread.sleep(50);
+        final Socket unmarked = connect(OTHER_PEER);
+        write(unmarked, request(1, 1));
+        read(unmarked);
+
+        // The marked connection is the least recently active, but stays.
+        final Socket c = connect(OTHER_PEER);
+        Thread.sleep(100);
+
+        assertEquals(unmarked.getInputStream().read(), -1);
+        write(marked, request(2, 1));
+        assertAnswered(read(marked), 2, Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+        write(c, request(3, 1));
+        assertAnswered(read(c), 3, Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+        assertEquals(slave.getEvictionCount(), 1);
+    }
+
+    @Test
+    public void testTurnsAwayWhenAllMarked() throws Exception {
+        start(1);
+        slave.setMaxConnections(1);
+        slave.addMarked(InetAddress.getLoopbackAddress());
+        final Socket marked = connect();
+        Thread.sleep(50);
+
+        final Socket unmarked = connect(OTHER_PEER);
+        assertEquals(unmarked.getInputStream().read(), -1);
+        assertEquals(slave.getRejectionCount(), 1);
+
+        // Marked peers are accepted past the limit.
+        final Socket another = connect();
+        write(another, request(1, 1));
+        assertAnswered(read(another), 1, Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+        write(marked, request(2, 1));
+        assertAnswered(read(marked), 2, Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+        assertEquals(slave.getConnectionCount(), 2);
+        assertEquals(slave.getEvictionCount(), 0);
+    }
+
+    @Test
+    public void testBusyPastQueueLimit() throws Exception {
+        start(1);
+        slave.setExecutor(executor(2));
+        slave.setQueueLimits(2, 10);
+        final Socket socket = connect();
+
+        write(socket, concat(request(1, BLOCKING_UNIT), request(2, BLOCKING_UNIT),
+                             request(3, BLOCKING_UNIT), request(4, BLOCKING_UNIT)));
+        final byte[] busy3 = read(socket);
+        final byte[] busy4 = read(socket);
+        assertEquals(tid(busy3) + tid(busy4), 7);
+        assertEquals(busy3[8], Modbus.SLAVE_BUSY_EXCEPTION);
+        assertEquals(busy4[8], Modbus.SLAVE_BUSY_EXCEPTION);
+        assertEquals(slave.getQueueDepth(), 2);
+
+        release.countDown();
+        assertEquals(tid(read(socket)) + tid(read(socket)), 3);
+        assertEquals(slave.getBusyCount(), 2);
+        assertEquals(slave.getPeakQueueDepth(), 2);
+    }
+
+    @Test
+    public void testBusyPastTotalQueueLimit() throws Exception {
+        start(1);
+        slave.setExecutor(executor(4));
+        slave.setQueueLimits(0, 2);
+        final Socket first = connect();
+        final Socket second = connect();
+
+        write(first, concat(request(1, BLOCKING_UNIT), request(2, BLOCKING_UNIT)));
+        waitForQueueDepth(2);
+        write(second, request(3, 1));
+        final byte[] busy = read(second);
+        assertEquals(tid(busy), 3);
+        assertEquals(busy[8], Modbus.SLAVE_BUSY_EXCEPTION);
+
+        release.countDown();
+        assertEquals(tid(read(first)) + tid(read(first)), 3);
+        waitForQueueDepth(0);
+        write(second, request(4, 1));
+        assertAnswered(read(second), 4, Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+        assertEquals(slave.getBusyCount(), 1);
+        assertEquals(slave.getPeakQueueDepth(), 2);
+    }
+
+    @Test
+    public void testBusyWhenExecutorRejects() throws Exception {
+        start(1);
+        executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                                          new SynchronousQueue<Runnable>());
+        slave.setExecutor(executor);
+        final Socket socket = connect();
+
+        write(socket, request(1, BLOCKING_UNIT));
+        waitForQueueDepth(1);
+        write(socket, request(2, 1));
+        final byte[] busy = read(socket);
+        assertEquals(tid(busy), 2);
+        assertEquals(busy[8], Modbus.SLAVE_BUSY_EXCEPTION);
+        assertEquals(slave.getQueueDepth(), 1);
+
+        release.countDown();
+        assertAnswered(read(socket), 1, Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+        assertEquals(slave.getBusyCount(), 1);
+    }
+
+    @Test
+    public void testDropPastQueueLimit() throws Exception {
+        start(1);
+        slave.setExecutor(executor(2));
+        slave.setQueueLimits(2, 10);
+        slave.setOverload(ModbusNioTCPSlave.Overload.DROP);
+        final Socket socket = connect();
+
+        write(socket, concat(request(1, BLOCKING_UNIT), request(2, BLOCKING_UNIT),
+                             request(3, BLOCKING_UNIT), request(4, BLOCKING_UNIT)));
+        assertSilent(socket);
+
+        release.countDown();
+        assertEquals(tid(read(socket)) + tid(read(socket)), 3);
+        assertSilent(socket);
+        assertEquals(slave.getDroppedCount(), 2);
+    }
+
+
+    private void start(int reactors) throws IOException {
+        slave = new ModbusNioTCPSlave(processor, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                                      reactors, 64);
+        slave.start();
+    }
+
+    private ExecutorService executor(int threads) {
+        executor = Executors.newFixedThreadPool(threads);
+        return executor;
+    }
+
+    private Socket connect() throws IOException {
+        return connect(InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * @param local address the client connects from.
+     */
+    private Socket connect(InetAddress local) throws IOException {
+        final Socket socket = new Socket(InetAddress.getLoopbackAddress(), slave.getLocalPort(), local, 0);
+        socket.setSoTimeout(5000);
+        sockets.add(socket);
+        return socket;
+    }
+
+    private void waitForQueueDepth(int depth) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (slave.getQueueDepth() != depth) {
+            assertTrue(System.nanoTime() < deadline, "queue depth " + slave.getQueueDepth());
+            Thread.sleep(5);
+        }
+    }
+
+    private static void write(Socket socket, byte[] frames) throws IOException {
+        final OutputStream out = socket.getOutputStream();
+        out.write(frames);
+        out.flush();
+    }
+
+    /**
+     * Reads an exception response.
+     */
+    private static byte[] read(Socket socket) throws IOException {
+        final byte[] response = new byte[9];
+        new DataInputStream(socket.getInputStream()).readFully(response);
+        return response;
+    }
+
+    private static void assertSilent(Socket socket) throws IOException {
+        socket.setSoTimeout(200);
+        try {
+            final int read = socket.getInputStream().read();
+            fail("unexpected response: " + read);
+        }
+        catch (SocketTimeoutException e) {
+            // expected
+        }
+        finally {
+            socket.setSoTimeout(5000);
+        }
+    }
+
+    private static void assertAnswered(byte[] response, int transactionId, int exceptionCode) {
+        assertEquals(tid(response), transactionId);
+        assertEquals(response[5], 3, "length");
+        assertEquals(response[7] & 0xFF, 0x83, "function code");
+        assertEquals(response[8], exceptionCode, "exception code");
+    }
+
+    private static int tid(byte[] response) {
+        return (response[0] & 0xFF) << 8 | response[1] & 0xFF;
+    }
+
+    /**
+     * Read one holding register.
+     */
+    private static byte[] request(int transactionId, int unitId) {
+        return new byte[]{(byte) (transactionId >> 8), (byte) transactionId, 0, 0, 0, 6,
+                (byte) unitId, 3, 0, 0, 0, 1};
+    }
+
+    private static InetAddress address(int... bytes) {
+        final byte[] address = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++)
+            address[i] = (byte) bytes[i];
+        try {
+            return InetAddress.getByAddress(address);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] concat(byte[]... frames) {
+        int length = 0;
+        for (byte[] frame : frames)
+            length += frame.length;
+        final byte[] all = new byte[length];
+        int offset = 0;
+        for (byte[] frame : frames) {
+            System.arraycopy(frame, 0, all, offset, frame.length);
+            offset += frame.length;
+        }
+        return all;
+    }
+
+}
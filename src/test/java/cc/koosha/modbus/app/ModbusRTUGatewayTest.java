@@ -0,0 +1,158 @@
+package cc.koosha.modbus.app;
+
+import cc.koosha.modbus.Modbus;
+import cc.koosha.modbus.modbus.transport.ModbusTransport;
+import cc.koosha.modbus.msg.ModbusMessage;
+import cc.koosha.modbus.msg.ModbusRequest;
+import cc.koosha.modbus.msg.ModbusResponse;
+import cc.koosha.modbus.msg.request.ReadMultipleRegistersRequest;
+import cc.koosha.modbus.msg.response.ExceptionResponse;
+import cc.koosha.modbus.msg.response.ReadMultipleRegistersResponse;
+import cc.koosha.modbus.util.ModbusFuture;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class ModbusRTUGatewayTest {
+
+    /**
+     * Requests to this unit wait for {@link FakeBus#release}.
+     */
+    private static final int BLOCKING_UNIT = 2;
+
+    private ModbusRTUGateway gateway;
+    private FakeBus bus;
+
+    @AfterMethod
+    public void tearDown() {
+        if (bus != null)
+            bus.release.countDown();
+        if (gateway != null)
+            gateway.close();
+    }
+
+    @Test
+    public void testReply() throws Exception {
+        start(4, 1000);
+
+        final ModbusResponse response = gateway.apply(request(1, 77));
+        assertTrue(response instanceof ReadMultipleRegistersResponse, String.valueOf(response));
+        assertEquals(response.getUnitID(), 1);
+        assertEquals(response.getTransactionID(), 77);
+        assertFalse(response.isHeadless());
+        assertEquals(bus.written.size(), 1);
+    }
+
+    @Test
+    public void testNoPath() {
+        start(4, 1000);
+
+        assertException(gateway.apply(request(5, 3)), 5, 3, Modbus.GATEWAY_PATH_UNAVAILABLE);
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        start(4, 100);
+
+        final ModbusFuture<ModbusResponse> busy = gateway.submit(request(BLOCKING_UNIT, 1));
+        assertNotNull(bus.written.poll(5, TimeUnit.SECONDS));
+
+        // Answered from its own header while the bus still holds the first
+        // request, and never sent.
+        assertException(gateway.apply(request(1, 2)), 1, 2, Modbus.GATEWAY_TARGET_NO_RESPONSE);
+
+        bus.release.countDown();
+        assertEquals(busy.get(5, TimeUnit.SECONDS).getTransactionID(), 1);
+        assertNull(bus.written.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testQueueFull() throws Exception {
+        start(1, 1000);
+
+        final ModbusFuture<ModbusResponse> sent = gateway.submit(request(BLOCKING_UNIT, 1));
+        assertNotNull(bus.written.poll(5, TimeUnit.SECONDS));
+        final ModbusFuture<ModbusResponse> queued = gateway.submit(request(1, 2));
+
+        final ModbusFuture<ModbusResponse> rejected = gateway.submit(request(1, 3));
+        assertTrue(rejected.isDone());
+        assertException(rejected.get(), 1, 3, Modbus.GATEWAY_TARGET_NO_RESPONSE);
+
+        bus.release.countDown();
+        assertEquals(sent.get(5, TimeUnit.SECONDS).getTransactionID(), 1);
+        assertEquals(queued.get(5, TimeUnit.SECONDS).getTransactionID(), 2);
+    }
+
+
+    private void start(int maxQueued, long responseTimeout) {
+        gateway = new ModbusRTUGateway(maxQueued, responseTimeout, 0);
+        bus = new FakeBus();
+        gateway.addBus("test", bus, 0, 1, BLOCKING_UNIT);
+    }
+
+    private static ModbusRequest request(int unitId, int transactionId) {
+        final ModbusRequest request = new ReadMultipleRegistersRequest(unitId, 0, 1);
+        request.setTransactionID(transactionId);
+        return request;
+    }
+
+    private static void assertException(ModbusResponse response, int unitId, int transactionId, int exceptionCode) {
+        assertTrue(response instanceof ExceptionResponse, String.valueOf(response));
+        assertEquals(response.getUnitID(), unitId);
+        assertEquals(response.getTransactionID(), transactionId);
+        assertEquals(response.getFunctionCode(), Modbus.READ_MULTIPLE_REGISTERS | Modbus.EXCEPTION_OFFSET);
+        assertEquals(((ExceptionResponse) response).getExceptionCode(), exceptionCode);
+        assertFalse(response.isHeadless());
+    }
+
+    /**
+     * Answers each request with an empty read registers response, after
+     * turning it headless like a serial transport does.
+     */
+    private static final class FakeBus implements ModbusTransport {
+
+        private final BlockingQueue<ModbusRequest> written = new LinkedBlockingQueue<ModbusRequest>();
+        private final CountDownLatch release = new CountDownLatch(1);
+        private ModbusRequest last;
+
+        @Override
+        public void writeMessage(ModbusMessage msg) {
+            last = (ModbusRequest) msg;
+            last.setHeadless(true);
+            written.add(last);
+        }
+
+        @Override
+        public ModbusResponse readResponse() throws IOException {
+            if (last.getUnitID() == BLOCKING_UNIT)
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    throw new IOException("interrupted");
+                }
+            final ReadMultipleRegistersResponse response = new ReadMultipleRegistersResponse();
+            response.setUnitID(last.getUnitID());
+            response.setHeadless(true);
+            return response;
+        }
+
+        @Override
+        public ModbusRequest readRequest() throws IOException {
+            throw new IOException("master transport can not read requests");
+        }
+
+    }
+
+}
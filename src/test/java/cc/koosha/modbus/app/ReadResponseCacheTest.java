@@ -0,0 +1,78 @@
+package cc.koosha.modbus.app;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+
+public class ReadResponseCacheTest {
+
+    private static final byte[] FRAME = {0, 1, 0, 0, 0, 5, 1, 3, 2, 0, 7};
+
+    @Test
+    public void testPatchesTransactionId() {
+        final ReadResponseCache cache = new ReadResponseCache(1, TimeUnit.MINUTES);
+        cache.put(1, 3, 10, 1, cache.stamp(), FRAME, 0, FRAME.length);
+
+        final byte[] out = new byte[64];
+        assertEquals(cache.get(1, 3, 10, 1, 0x1234, out), FRAME.length);
+        assertEquals(out[0], (byte) 0x12);
+        assertEquals(out[1], (byte) 0x34);
+        for (int i = 2; i < FRAME.length; i++)
+            assertEquals(out[i], FRAME[i]);
+        assertEquals(cache.getHits(), 1);
+    }
+
+    @Test
+    public void testKeyedByUnitFunctionAndRange() {
+        final ReadResponseCache cache = new ReadResponseCache(1, TimeUnit.MINUTES);
+        cache.put(1, 3, 10, 1, cache.stamp(), FRAME, 0, FRAME.length);
+
+        final byte[] out = new byte[64];
+        assertEquals(cache.get(2, 3, 10, 1, 1, out), -1);
+        assertEquals(cache.get(1, 4, 10, 1, 1, out), -1);
+        assertEquals(cache.get(1, 3, 11, 1, 1, out), -1);
+        assertEquals(cache.get(1, 3, 10, 2, 1, out), -1);
+        assertEquals(cache.getMisses(), 4);
+    }
+
+    @Test
+    public void testInvalidatesOverlappingReads() {
+        final ReadResponseCache cache = new ReadResponseCache(1, TimeUnit.MINUTES);
+        cache.put(1, 3, 10, 5, cache.stamp(), FRAME, 0, FRAME.length);
+        cache.put(1, 3, 20, 5, cache.stamp(), FRAME, 0, FRAME.length);
+        cache.put(1, 1, 10, 5, cache.stamp(), FRAME, 0, FRAME.length);
+
+        cache.invalidate(1, 3, 14, 1);
+
+        final byte[] out = new byte[64];
+        assertEquals(cache.get(1, 3, 10, 5, 1, out), -1);
+        assertEquals(cache.get(1, 3, 20, 5, 1, out), FRAME.length);
+        assertEquals(cache.get(1, 1, 10, 5, 1, out), FRAME.length);
+
+        cache.invalidate(1, 3);
+        assertEquals(cache.get(1, 3, 20, 5, 1, out), -1);
+    }
+
+    @Test
+    public void testDropsResponsesComputedBeforeInvalidation() {
+        final ReadResponseCache cache = new ReadResponseCache(1, TimeUnit.MINUTES);
+        final long stamp = cache.stamp();
+        cache.invalidate(1, 3, 100, 1);
+        cache.put(1, 3, 10, 1, stamp, FRAME, 0, FRAME.length);
+
+        assertEquals(cache.get(1, 3, 10, 1, 1, new byte[64]), -1);
+    }
+
+    @Test
+    public void testExpires() throws InterruptedException {
+        final ReadResponseCache cache = new ReadResponseCache(5, TimeUnit.MILLISECONDS);
+        cache.put(1, 3, 10, 1, cache.stamp(), FRAME, 0, FRAME.length);
+        Thread.sleep(20);
+
+        assertEquals(cache.get(1, 3, 10, 1, 1, new byte[64]), -1);
+        assertEquals(cache.size(), 0);
+    }
+
+}
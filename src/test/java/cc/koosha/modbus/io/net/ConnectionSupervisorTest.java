@@ -0,0 +1,109 @@
+package cc.koosha.modbus.io.net;
+
+import cc.koosha.modbus.modbus.transaction.RetryPolicy;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class ConnectionSupervisorTest {
+
+    @Test
+    public void testCountsFailuresFromOne() throws Exception {
+        final RecordingPolicy policy = new RecordingPolicy(3);
+        final ConnectionSupervisor supervisor = new ConnectionSupervisor(connection(refusingPort()), policy);
+        final CountDownLatch closed = closedLatch(supervisor);
+
+        supervisor.start();
+        assertTrue(closed.await(5, TimeUnit.SECONDS), "supervisor gave up");
+        assertEquals(policy.failures, Arrays.asList(1, 2, 3));
+    }
+
+    @Test
+    public void testCountsFailuresFromOneAfterLoss() throws Exception {
+        final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final RecordingPolicy policy = new RecordingPolicy(2);
+        final ConnectionSupervisor supervisor = new ConnectionSupervisor(connection(server.getLocalPort()), policy);
+        final CountDownLatch connected = new CountDownLatch(1);
+        supervisor.addListener(new ConnectionSupervisor.Listener() {
+            @Override
+            public void stateChanged(ConnectionSupervisor supervisor, ConnectionSupervisor.State from,
+                                     ConnectionSupervisor.State to, IOException cause) {
+                if (to == ConnectionSupervisor.State.CONNECTED)
+                    connected.countDown();
+            }
+        });
+        final CountDownLatch closed = closedLatch(supervisor);
+
+        supervisor.start();
+        assertTrue(connected.await(5, TimeUnit.SECONDS), "connected");
+        assertTrue(policy.failures.isEmpty());
+
+        server.close();
+        supervisor.connectionLost(new IOException("test"));
+        assertTrue(closed.await(5, TimeUnit.SECONDS), "supervisor gave up");
+        assertEquals(policy.failures, Arrays.asList(1, 2));
+    }
+
+
+    private static TCPMasterConnection connection(int port) {
+        final TCPMasterConnection connection = new TCPMasterConnection();
+        connection.setAddress(InetAddress.getLoopbackAddress());
+        connection.setPort(port);
+        connection.setTimeout(1000);
+        return connection;
+    }
+
+    /**
+     * A port nothing listens on.
+     */
+    private static int refusingPort() throws IOException {
+        final ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        socket.close();
+        return socket.getLocalPort();
+    }
+
+    private static CountDownLatch closedLatch(ConnectionSupervisor supervisor) {
+        final CountDownLatch closed = new CountDownLatch(1);
+        supervisor.addListener(new ConnectionSupervisor.Listener() {
+            @Override
+            public void stateChanged(ConnectionSupervisor supervisor, ConnectionSupervisor.State from,
+                                     ConnectionSupervisor.State to, IOException cause) {
+                if (to == ConnectionSupervisor.State.CLOSED)
+                    closed.countDown();
+            }
+        });
+        return closed;
+    }
+
+    /**
+     * Records the failures it is asked about, giving up after a number of
+     * them.
+     */
+    private static final class RecordingPolicy implements RetryPolicy {
+
+        private final List<Integer> failures = new CopyOnWriteArrayList<Integer>();
+        private final int maxFailures;
+
+        private RecordingPolicy(int maxFailures) {
+            this.maxFailures = maxFailures;
+        }
+
+        @Override
+        public long getDelay(int failures, long elapsed) {
+            this.failures.add(failures);
+            return failures < maxFailures ? 1 : -1;
+        }
+
+    }
+
+}
@@ -0,0 +1,125 @@
+package cc.koosha.modbus.io.net;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class NioTCPMasterConnectionTest {
+
+    private static final int FRAME_LENGTH = 12;
+
+    private ServerSocket server;
+    private NioReactor reactor;
+    private NioTCPMasterConnection connection;
+    private Socket device;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        reactor = new NioReactor("connection-test-reactor");
+        connection = new NioTCPMasterConnection(reactor, InetAddress.getLoopbackAddress(),
+                                                server.getLocalPort(), 5000);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        connection.close();
+        reactor.close();
+        if (device != null)
+            device.close();
+        server.close();
+    }
+
+    @Test
+    public void testGathersFramesUntilLingerIsOver() throws Exception {
+        connection.setWriteCoalescing(1024, TimeUnit.MILLISECONDS.toMicros(200));
+        connect();
+
+        final long started = System.nanoTime();
+        for (int i = 0; i < 5; i++)
+            connection.write(ByteBuffer.wrap(frame(i)));
+
+        // All in one segment, once the linger is over.
+        final byte[] received = new byte[1024];
+        final int read = device.getInputStream().read(received);
+        assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(150), "written before linger");
+        assertEquals(read, 5 * FRAME_LENGTH);
+        for (int i = 0; i < 5; i++)
+            assertEquals(Arrays.copyOfRange(received, i * FRAME_LENGTH, (i + 1) * FRAME_LENGTH), frame(i));
+    }
+
+    @Test
+    public void testWritesOnceBudgetIsReached() throws Exception {
+        connection.setWriteCoalescing(2 * FRAME_LENGTH, TimeUnit.SECONDS.toMicros(30));
+        connect();
+
+        connection.write(ByteBuffer.wrap(frame(1)));
+        connection.write(ByteBuffer.wrap(frame(2)));
+
+        // Well before the linger.
+        final byte[] received = new byte[2 * FRAME_LENGTH];
+        readFully(device.getInputStream(), received);
+        assertEquals(Arrays.copyOfRange(received, 0, FRAME_LENGTH), frame(1));
+        assertEquals(Arrays.copyOfRange(received, FRAME_LENGTH, 2 * FRAME_LENGTH), frame(2));
+    }
+
+    @Test
+    public void testWritesAtOnceWithoutCoalescing() throws Exception {
+        connect();
+
+        connection.write(ByteBuffer.wrap(frame(3)));
+        final byte[] received = new byte[FRAME_LENGTH];
+        readFully(device.getInputStream(), received);
+        assertEquals(received, frame(3));
+    }
+
+
+    private void connect() throws Exception {
+        final CountDownLatch connected = new CountDownLatch(1);
+        connection.setListener(new NioTCPMasterConnection.Listener() {
+            @Override
+            public void connected(NioTCPMasterConnection connection) {
+                connected.countDown();
+            }
+
+            @Override
+            public void frameReceived(NioTCPMasterConnection connection, byte[] buffer, int offset, int length) {
+            }
+
+            @Override
+            public void closed(NioTCPMasterConnection connection, IOException cause) {
+            }
+        });
+        connection.connect();
+        device = server.accept();
+        device.setSoTimeout(5000);
+        assertTrue(connected.await(5, TimeUnit.SECONDS), "connected");
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            final int read = in.read(buffer, offset, buffer.length - offset);
+            assertTrue(read > 0, "closed");
+            offset += read;
+        }
+    }
+
+    private static byte[] frame(int i) {
+        return new byte[]{0, (byte) i, 0, 0, 0, 6, 1, 3, 0, (byte) i, 0, 1};
+    }
+
+}
@@ -0,0 +1,268 @@
+package cc.koosha.modbus.io.net;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TLSConfigTest {
+
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    private static final InetAddress LOCALHOST = address("localhost");
+
+    private SSLContext context;
+    private SSLServerSocket server;
+    private NioReactor reactor;
+
+    /**
+     * Server side ids of the sessions, in the order of connections.
+     */
+    private final BlockingQueue<String> sessions = new LinkedBlockingQueue<String>();
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        final KeyStore store = KeyStore.getInstance("PKCS12");
+        final InputStream in = TLSConfigTest.class.getResourceAsStream("tls.p12");
+        try {
+            store.load(in, PASSWORD);
+        }
+        finally {
+            in.close();
+        }
+        // The device and the master share the certificate, trusting itself.
+        context = TLSConfig.createContext(store, PASSWORD, store, 0, 0);
+        final SSLContext serverContext = TLSConfig.createContext(store, PASSWORD, store, 0, 0);
+        server = (SSLServerSocket) serverContext.getServerSocketFactory()
+                                                .createServerSocket(0, 50, LOCALHOST);
+        server.setNeedClientAuth(true);
+
+        final Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true)
+                        echo((SSLSocket) server.accept());
+                }
+                catch (IOException e) {
+                    // closed
+                }
+            }
+        }, "tls-test-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        reactor = new NioReactor("tls-test-reactor");
+    }
+
+    @AfterClass
+    public void tearDown() throws IOException {
+        reactor.close();
+        server.close();
+    }
+
+    @Test
+    public void testPipelinedRoundTrip() throws Exception {
+        final Client client = new Client(LOCALHOST, tls("TLSv1.2", "TLSv1.3"));
+        client.connect();
+
+        for (int i = 0; i < 50; i++)
+            client.connection.write(ByteBuffer.wrap(frame(i)));
+        for (int i = 0; i < 50; i++) {
+            final byte[] echoed = client.frames.poll(5, TimeUnit.SECONDS);
+            assertNotNull(echoed, "response " + i);
+            assertEquals(echoed, frame(i));
+        }
+        client.connection.close();
+    }
+
+    @Test
+    public void testResumesSessionOnReconnect() throws Exception {
+        final TLSConfig tls = tls("TLSv1.2");
+        sessions.clear();
+
+        final Client first = new Client(LOCALHOST, tls);
+        first.connect();
+        first.roundTrip();
+        first.connection.close();
+
+        final Client second = new Client(LOCALHOST, tls);
+        second.connect();
+        second.roundTrip();
+        second.connection.close();
+
+        final String id = sessions.poll(5, TimeUnit.SECONDS);
+        assertNotNull(id);
+        assertEquals(sessions.poll(5, TimeUnit.SECONDS), id);
+    }
+
+    @Test
+    public void testRejectsCertificateNotNamingHost() throws Exception {
+        final InetAddress other = InetAddress.getByAddress("plc.invalid", LOCALHOST.getAddress());
+        final Client client = new Client(other, tls("TLSv1.2", "TLSv1.3"));
+        client.connection.connect();
+
+        assertTrue(client.closed.await(5, TimeUnit.SECONDS));
+        assertFalse(client.connected.await(0, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testAcceptsUnnamedHostWithoutVerification() throws Exception {
+        final InetAddress other = InetAddress.getByAddress("plc.invalid", LOCALHOST.getAddress());
+        final TLSConfig tls = TLSConfig.builder()
+                                       .context(context)
+                                       .verifyHostName(false)
+                                       .build();
+        final Client client = new Client(other, tls);
+        client.connect();
+        client.roundTrip();
+        client.connection.close();
+    }
+
+    @Test
+    public void testBlockingConnection() throws Exception {
+        final TCPMasterConnection connection = new TCPMasterConnection();
+        connection.setAddress(LOCALHOST);
+        connection.setPort(server.getLocalPort());
+        connection.setTls(tls("TLSv1.2", "TLSv1.3"));
+        connection.connect();
+        try {
+            assertTrue(connection.isConnected());
+        }
+        finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testBlockingConnectionRejectsUnnamedHost() throws Exception {
+        final TCPMasterConnection connection = new TCPMasterConnection();
+        connection.setAddress(InetAddress.getByAddress("plc.invalid", LOCALHOST.getAddress()));
+        connection.setPort(server.getLocalPort());
+        connection.setTls(tls("TLSv1.2", "TLSv1.3"));
+        try {
+            connection.connect();
+            fail("handshake should fail");
+        }
+        catch (IOException e) {
+            assertFalse(connection.isConnected());
+        }
+    }
+
+
+    private TLSConfig tls(String... protocols) {
+        return TLSConfig.builder()
+                        .context(context)
+                        .protocols(protocols)
+                        .build();
+    }
+
+    private void echo(final SSLSocket socket) {
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    socket.startHandshake();
+                    sessions.add(Arrays.toString(socket.getSession().getId()));
+                    final DataInputStream in = new DataInputStream(socket.getInputStream());
+                    final OutputStream out = socket.getOutputStream();
+                    final byte[] frame = new byte[260];
+                    while (true) {
+                        in.readFully(frame, 0, 6);
+                        final int length = (frame[4] & 0xFF) << 8 | frame[5] & 0xFF;
+                        in.readFully(frame, 6, length);
+                        out.write(frame, 0, 6 + length);
+                        out.flush();
+                    }
+                }
+                catch (IOException e) {
+                    // client gone
+                }
+                finally {
+                    try {
+                        socket.close();
+                    }
+                    catch (IOException ignored) {
+                    }
+                }
+            }
+        }, "tls-test-echo");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static byte[] frame(int i) {
+        return new byte[]{0, (byte) i, 0, 0, 0, 6, 1, 3, 0, (byte) i, 0, 1};
+    }
+
+    private static InetAddress address(String host) {
+        try {
+            return InetAddress.getByName(host);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private final class Client implements NioTCPMasterConnection.Listener {
+
+        private final NioTCPMasterConnection connection;
+        private final CountDownLatch connected = new CountDownLatch(1);
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private final BlockingQueue<byte[]> frames = new LinkedBlockingQueue<byte[]>();
+
+        private Client(InetAddress address, TLSConfig tls) {
+            connection = new NioTCPMasterConnection(reactor, address, server.getLocalPort(), 5000);
+            connection.setTls(tls);
+            connection.setListener(this);
+        }
+
+        private void connect() throws InterruptedException {
+            connection.connect();
+            assertTrue(connected.await(5, TimeUnit.SECONDS), "handshake");
+        }
+
+        private void roundTrip() throws InterruptedException {
+            connection.write(ByteBuffer.wrap(frame(7)));
+            assertEquals(frames.poll(5, TimeUnit.SECONDS), frame(7));
+        }
+
+        @Override
+        public void connected(NioTCPMasterConnection connection) {
+            connected.countDown();
+        }
+
+        @Override
+        public void frameReceived(NioTCPMasterConnection connection, byte[] buffer, int offset, int length) {
+            frames.add(Arrays.copyOfRange(buffer, offset, offset + length));
+        }
+
+        @Override
+        public void closed(NioTCPMasterConnection connection, IOException cause) {
+            closed.countDown();
+        }
+
+    }
+
+}
@@ -0,0 +1,145 @@
+package cc.koosha.modbus.modbus.master;
+
+import cc.koosha.modbus.Modbus;
+import cc.koosha.modbus.ModbusSlaveException;
+import cc.koosha.modbus.modbus.transaction.AsyncModbusTransaction;
+import cc.koosha.modbus.msg.ModbusRequest;
+import cc.koosha.modbus.msg.ModbusResponse;
+import cc.koosha.modbus.msg.request.ReadCoilsRequest;
+import cc.koosha.modbus.msg.request.ReadMultipleRegistersRequest;
+import cc.koosha.modbus.msg.request.WriteSingleRegisterRequest;
+import cc.koosha.modbus.msg.response.ReadCoilsResponse;
+import cc.koosha.modbus.msg.response.ReadMultipleRegistersResponse;
+import cc.koosha.modbus.msg.response.WriteSingleRegisterResponse;
+import cc.koosha.modbus.procimg.Register;
+import cc.koosha.modbus.procimg.SimpleRegister;
+import cc.koosha.modbus.util.BitVector;
+import cc.koosha.modbus.util.ModbusFuture;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class DefaultAsyncModbusMasterTest {
+
+    private FakeTransaction transaction;
+    private DefaultAsyncModbusMaster master;
+
+    @BeforeMethod
+    public void setUp() {
+        transaction = new FakeTransaction();
+        master = new DefaultAsyncModbusMaster(transaction);
+    }
+
+    @Test
+    public void testReturnsBeforeResponse() throws Exception {
+        final ModbusFuture<List<Register>> future = master.readHoldingRegisters(3, 100, 2);
+        assertFalse(future.isDone());
+
+        final ReadMultipleRegistersRequest request = (ReadMultipleRegistersRequest) transaction.requests.get(0);
+        assertEquals(request.getUnitID(), 3);
+        assertEquals(request.getReference(), 100);
+        assertEquals(request.getWordCount(), 2);
+
+        transaction.futures.get(0).set(registers(7, 8));
+        final List<Register> registers = future.get(5, TimeUnit.SECONDS);
+        assertEquals(registers.size(), 2);
+        assertEquals(registers.get(0).getValue(), 7);
+        assertEquals(registers.get(1).getValue(), 8);
+    }
+
+    @Test
+    public void testCompletesOutOfOrder() throws Exception {
+        final List<ModbusFuture<List<Register>>> futures = new ArrayList<ModbusFuture<List<Register>>>();
+        for (int i = 0; i < 3; i++)
+            futures.add(master.readHoldingRegisters(1, i, 1));
+
+        for (int i = 2; i >= 0; i--) {
+            transaction.futures.get(i).set(registers(10 + i));
+            assertTrue(futures.get(i).isDone());
+            for (int j = 0; j < i; j++)
+                assertFalse(futures.get(j).isDone());
+        }
+        for (int i = 0; i < 3; i++)
+            assertEquals(futures.get(i).get().get(0).getValue(), 10 + i);
+    }
+
+    @Test
+    public void testReadCoilsTrimmedToCount() throws Exception {
+        final ModbusFuture<BitVector> future = master.readCoils(1, 0, 10);
+        assertTrue(transaction.requests.get(0) instanceof ReadCoilsRequest);
+
+        final ReadCoilsResponse response = new ReadCoilsResponse(16);
+        response.setCoilStatus(0, true);
+        response.setCoilStatus(9, true);
+        response.setCoilStatus(12, true);
+        transaction.futures.get(0).set(response);
+
+        final BitVector coils = future.get();
+        assertEquals(coils.size(), 10);
+        assertTrue(coils.getBit(0));
+        assertFalse(coils.getBit(1));
+        assertTrue(coils.getBit(9));
+    }
+
+    @Test
+    public void testWriteCompletesWithNull() throws Exception {
+        final ModbusFuture<Void> future = master.writeHoldingRegister(1, 5, new SimpleRegister(42));
+        final WriteSingleRegisterRequest request = (WriteSingleRegisterRequest) transaction.requests.get(0);
+        assertEquals(request.getReference(), 5);
+        assertEquals(request.getRegister().getValue(), 42);
+
+        transaction.futures.get(0).set(new WriteSingleRegisterResponse(5, 42));
+        assertNull(future.get());
+    }
+
+    @Test
+    public void testExceptionResponseFailsFuture() throws Exception {
+        final ModbusFuture<List<Register>> future = master.readHoldingRegisters(1, 0, 1);
+        transaction.futures.get(0).setException(new ModbusSlaveException(Modbus.ILLEGAL_ADDRESS_EXCEPTION));
+        try {
+            future.get();
+            fail("exception response expected");
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ModbusSlaveException, String.valueOf(e.getCause()));
+            assertEquals(((ModbusSlaveException) e.getCause()).getType(), Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+        }
+    }
+
+
+    private static ModbusResponse registers(int... values) {
+        final List<Register> registers = new ArrayList<Register>(values.length);
+        for (int value : values)
+            registers.add(new SimpleRegister(value));
+        return new ReadMultipleRegistersResponse(registers);
+    }
+
+    /**
+     * Records the requests, completed by the test.
+     */
+    private static final class FakeTransaction implements AsyncModbusTransaction {
+
+        private final List<ModbusRequest> requests = new ArrayList<ModbusRequest>();
+        private final List<ModbusFuture<ModbusResponse>> futures = new ArrayList<ModbusFuture<ModbusResponse>>();
+
+        @Override
+        public ModbusFuture<ModbusResponse> executeAsync(ModbusRequest request) {
+            final ModbusFuture<ModbusResponse> future = new ModbusFuture<ModbusResponse>();
+            requests.add(request);
+            futures.add(future);
+            return future;
+        }
+
+    }
+
+}
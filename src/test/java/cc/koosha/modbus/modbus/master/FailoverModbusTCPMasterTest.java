@@ -0,0 +1,258 @@
+package cc.koosha.modbus.modbus.master;
+
+import cc.koosha.modbus.Modbus;
+import cc.koosha.modbus.ModbusSlaveException;
+import cc.koosha.modbus.io.net.RedundantTCPMasterConnection;
+import cc.koosha.modbus.io.net.TCPMasterConnection;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class FailoverModbusTCPMasterTest {
+
+    /**
+     * Requests to this unit are answered with an illegal address exception.
+     */
+    private static final int REJECTED_UNIT = 9;
+
+    private Endpoint primary;
+    private Endpoint backup;
+    private RedundantTCPMasterConnection connection;
+    private FailoverModbusTCPMaster master;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        primary = new Endpoint(1);
+        backup = new Endpoint(2);
+        primary.up();
+        backup.up();
+
+        connection = new RedundantTCPMasterConnection(Arrays.asList(connection(primary), connection(backup)),
+                                                      20, 50);
+        // Whichever connects first, start on the primary.
+        connection.setFailback(true);
+        connection.start();
+        master = new FailoverModbusTCPMaster(ModbusMasterConfig.builder().build(), connection);
+        waitFor(new Condition() {
+            @Override
+            public boolean holds() {
+                return connection.getSupervisors().get(0).isConnected()
+                        && connection.getSupervisors().get(1).isConnected()
+                        && connection.getActiveIndex() == 0;
+            }
+        });
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        connection.close();
+        primary.down();
+        backup.down();
+    }
+
+    @Test
+    public void testFailsOverAndBack() throws Exception {
+        // The backup may have been active until the primary connected.
+        final long switches = connection.getSwitchCount();
+        assertEquals(read(), 1);
+        assertEquals(primary.requests.get(), 1);
+
+        // The request in flight when the primary dies goes to the backup.
+        primary.down();
+        assertEquals(read(), 2);
+        assertEquals(connection.getActiveIndex(), 1);
+        assertEquals(connection.getSwitchCount(), switches + 1);
+        assertEquals(read(), 2);
+
+        primary.up();
+        waitFor(new Condition() {
+            @Override
+            public boolean holds() {
+                return connection.getActiveIndex() == 0;
+            }
+        });
+        assertEquals(read(), 1);
+        assertEquals(connection.getSwitchCount(), switches + 2);
+        assertEquals(backup.requests.get(), 2);
+    }
+
+    @Test
+    public void testStaysOnBackupWithoutFailback() throws Exception {
+        connection.setFailback(false);
+        primary.down();
+        assertEquals(read(), 2);
+
+        primary.up();
+        waitFor(new Condition() {
+            @Override
+            public boolean holds() {
+                return connection.getSupervisors().get(0).isConnected();
+            }
+        });
+        assertEquals(read(), 2);
+        assertEquals(connection.getActiveIndex(), 1);
+    }
+
+    @Test
+    public void testExceptionResponseDoesNotFailOver() throws Exception {
+        final long switches = connection.getSwitchCount();
+        try {
+            master.readHoldingRegisters(REJECTED_UNIT, 0, 1);
+            fail("exception response expected");
+        }
+        catch (ModbusSlaveException e) {
+            assertEquals(e.getType(), Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+        }
+
+        assertEquals(connection.getActiveIndex(), 0);
+        assertEquals(connection.getSwitchCount(), switches);
+        assertTrue(connection.getSupervisors().get(0).isConnected());
+        assertEquals(backup.requests.get(), 0);
+        assertEquals(read(), 1);
+    }
+
+
+    /**
+     * @return id of the endpoint which answered.
+     */
+    private int read() {
+        return master.readHoldingRegisters(1, 0, 1).get(0).getValue();
+    }
+
+    private static TCPMasterConnection connection(Endpoint endpoint) {
+        final TCPMasterConnection connection = new TCPMasterConnection();
+        connection.setAddress(InetAddress.getLoopbackAddress());
+        connection.setPort(endpoint.port);
+        connection.setTimeout(1000);
+        return connection;
+    }
+
+    private interface Condition {
+
+        boolean holds();
+
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.holds()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * A device answering read holding registers with its id, which can be
+     * taken down and brought up again on the same port.
+     */
+    private static final class Endpoint {
+
+        private final int id;
+        private final AtomicInteger requests = new AtomicInteger();
+        private final List<Socket> sockets = new CopyOnWriteArrayList<Socket>();
+        private volatile ServerSocket server;
+        private int port;
+
+        private Endpoint(int id) {
+            this.id = id;
+        }
+
+        private void up() throws IOException {
+            final ServerSocket server = new ServerSocket();
+            server.setReuseAddress(true);
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            port = server.getLocalPort();
+            this.server = server;
+
+            final Thread acceptor = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true)
+                            serve(server.accept());
+                    }
+                    catch (IOException e) {
+                        // down
+                    }
+                }
+            }, "failover-test-endpoint-" + id);
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        /**
+         * Refuses new connections and drops the open ones.
+         */
+        private void down() throws IOException {
+            server.close();
+            for (Socket socket : sockets)
+                socket.close();
+            sockets.clear();
+        }
+
+        private void serve(final Socket socket) {
+            sockets.add(socket);
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final DataInputStream in = new DataInputStream(socket.getInputStream());
+                        final OutputStream out = socket.getOutputStream();
+                        final byte[] frame = new byte[260];
+                        while (true) {
+                            in.readFully(frame, 0, 6);
+                            final int length = (frame[4] & 0xFF) << 8 | frame[5] & 0xFF;
+                            in.readFully(frame, 6, length);
+                            requests.incrementAndGet();
+                            if (frame[6] == REJECTED_UNIT) {
+                                frame[5] = 3;
+                                frame[7] = (byte) 0x83;
+                                frame[8] = Modbus.ILLEGAL_ADDRESS_EXCEPTION;
+                                out.write(frame, 0, 9);
+                            }
+                            else {
+                                frame[5] = 5;
+                                frame[8] = 2;
+                                frame[9] = 0;
+                                frame[10] = (byte) id;
+                                out.write(frame, 0, 11);
+                            }
+                            out.flush();
+                        }
+                    }
+                    catch (IOException e) {
+                        // closed
+                    }
+                    finally {
+                        try {
+                            socket.close();
+                        }
+                        catch (IOException ignored) {
+                        }
+                    }
+                }
+            }, "failover-test-endpoint-" + id + "-connection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+    }
+
+}
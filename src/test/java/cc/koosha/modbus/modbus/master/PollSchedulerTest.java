@@ -0,0 +1,168 @@
+package cc.koosha.modbus.modbus.master;
+
+import cc.koosha.modbus.util.Callback;
+import cc.koosha.modbus.util.ErrorHandler;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class PollSchedulerTest {
+
+    private final List<Throwable> errors = new CopyOnWriteArrayList<Throwable>();
+    private final List<Long> overruns = new CopyOnWriteArrayList<Long>();
+    private final List<Long> skips = new CopyOnWriteArrayList<Long>();
+
+    private final PollScheduler.OverrunListener overrunListener = new PollScheduler.OverrunListener() {
+        @Override
+        public void overrun(PollGroup group, long lateMillis) {
+            overruns.add(lateMillis);
+        }
+
+        @Override
+        public void skipped(PollGroup group, long cycles) {
+            skips.add(cycles);
+        }
+    };
+
+    private PollScheduler scheduler;
+
+    @AfterMethod
+    public void tearDown() {
+        errors.clear();
+        overruns.clear();
+        skips.clear();
+        if (scheduler != null)
+            scheduler.close();
+    }
+
+    @Test
+    public void testFixedRateDoesNotDrift() throws Exception {
+        start(keepPolling());
+        final long period = 20;
+        final int cycles = 10;
+        final List<Long> starts = new CopyOnWriteArrayList<Long>();
+        final CountDownLatch done = new CountDownLatch(cycles);
+
+        scheduler.schedule(group("fixed", period, new Callback() {
+            @Override
+            public void invoke() {
+                starts.add(System.nanoTime());
+                sleep(5);
+                done.countDown();
+            }
+        }));
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        // Drifting by the 5 ms each poll takes would add 45 ms.
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(starts.get(cycles - 1) - starts.get(0));
+        assertTrue(Math.abs(elapsed - (cycles - 1) * period) < 25, "elapsed: " + elapsed);
+        assertTrue(overruns.isEmpty());
+        assertTrue(skips.isEmpty());
+    }
+
+    @Test
+    public void testSkipsCyclesAfterOverrun() throws Exception {
+        start(keepPolling());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(3);
+
+        final PollScheduler.Handle handle = scheduler.schedule(group("slow", 20, new Callback() {
+            private boolean first = true;
+
+            @Override
+            public void invoke() {
+                if (running.incrementAndGet() > 1)
+                    overlaps.incrementAndGet();
+                if (first) {
+                    first = false;
+                    sleep(50);
+                }
+                running.decrementAndGet();
+                done.countDown();
+            }
+        }));
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(overlaps.get(), 0);
+        // Ends 30 ms after its deadline, the next two starts are missed.
+        assertEquals(overruns.size(), 1);
+        assertTrue(overruns.get(0) >= 25, "late: " + overruns.get(0));
+        assertEquals(skips.get(0), Long.valueOf(2));
+        assertEquals(handle.getOverruns(), 1);
+        assertEquals(handle.getSkipped(), 2);
+    }
+
+    @Test
+    public void testReportsErrors() throws Exception {
+        // Keeps polling after the first error only.
+        final AtomicInteger handled = new AtomicInteger();
+        start(new ErrorHandler() {
+            @Override
+            public boolean handle(Throwable error) {
+                errors.add(error);
+                return handled.incrementAndGet() < 2;
+            }
+        });
+
+        final PollScheduler.Handle handle = scheduler.schedule(group("failing", 10, new Callback() {
+            @Override
+            public void invoke() {
+                throw new AssertionError("poll failed");
+            }
+        }));
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (scheduler.get("failing") != null && System.nanoTime() < deadline)
+            Thread.sleep(5);
+        assertNull(scheduler.get("failing"), "group stopped");
+        Thread.sleep(50);
+
+        assertEquals(errors.size(), 2);
+        assertTrue(errors.get(0) instanceof AssertionError, String.valueOf(errors.get(0)));
+        assertEquals(handle.getCycles(), 2);
+    }
+
+
+    private void start(ErrorHandler errorHandler) {
+        scheduler = new PollScheduler(2, errorHandler, overrunListener);
+    }
+
+    private ErrorHandler keepPolling() {
+        return new ErrorHandler() {
+            @Override
+            public boolean handle(Throwable error) {
+                errors.add(error);
+                return true;
+            }
+        };
+    }
+
+    private static PollGroup group(String name, long period, Callback poll) {
+        return PollGroup.builder()
+                        .name(name)
+                        .period(period)
+                        .phase(0)
+                        .poll(poll)
+                        .build();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
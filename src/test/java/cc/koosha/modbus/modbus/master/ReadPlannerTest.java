@@ -0,0 +1,163 @@
+package cc.koosha.modbus.modbus.master;
+
+import cc.koosha.modbus.Modbus;
+import cc.koosha.modbus.ModbusSlaveException;
+import cc.koosha.modbus.procimg.InputRegister;
+import cc.koosha.modbus.procimg.Register;
+import cc.koosha.modbus.util.BitVector;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static cc.koosha.modbus.modbus.master.ReadPoint.Table.COILS;
+import static cc.koosha.modbus.modbus.master.ReadPoint.Table.HOLDING_REGISTERS;
+import static cc.koosha.modbus.modbus.master.ReadPoint.Table.INPUT_REGISTERS;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class ReadPlannerTest {
+
+    @Test
+    public void testMergesWithinGap() {
+        final List<ReadPlanner.Block> blocks = new ReadPlanner(2).plan(Arrays.asList(
+                new ReadPoint(1, HOLDING_REGISTERS, 10, 2),
+                new ReadPoint(1, HOLDING_REGISTERS, 0, 4),
+                new ReadPoint(1, HOLDING_REGISTERS, 5, 3),
+                new ReadPoint(1, HOLDING_REGISTERS, 20, 1)));
+
+        assertEquals(blocks.size(), 2);
+        assertEquals(blocks.get(0).getRef(), 0);
+        assertEquals(blocks.get(0).getCount(), 12);
+        assertEquals(blocks.get(0).getPoints().size(), 3);
+        assertEquals(blocks.get(1).getRef(), 20);
+        assertEquals(blocks.get(1).getCount(), 1);
+    }
+
+    @Test
+    public void testSplitsByUnitAndTable() {
+        final List<ReadPlanner.Block> blocks = new ReadPlanner(100).plan(Arrays.asList(
+                new ReadPoint(1, HOLDING_REGISTERS, 0, 1),
+                new ReadPoint(2, HOLDING_REGISTERS, 1, 1),
+                new ReadPoint(1, INPUT_REGISTERS, 2, 1)));
+
+        assertEquals(blocks.size(), 3);
+    }
+
+    @Test
+    public void testRespectsProtocolLimit() {
+        final List<ReadPlanner.Block> registers = new ReadPlanner(0).plan(Arrays.asList(
+                new ReadPoint(1, HOLDING_REGISTERS, 0, 100),
+                new ReadPoint(1, HOLDING_REGISTERS, 100, 25),
+                new ReadPoint(1, HOLDING_REGISTERS, 125, 1)));
+        assertEquals(registers.size(), 2);
+        assertEquals(registers.get(0).getCount(), 125);
+
+        final List<ReadPlanner.Block> coils = new ReadPlanner(0).plan(Arrays.asList(
+                new ReadPoint(1, COILS, 0, 1000),
+                new ReadPoint(1, COILS, 1000, 1000)));
+        assertEquals(coils.size(), 1);
+        assertEquals(coils.get(0).getCount(), 2000);
+    }
+
+    @Test
+    public void testOverlappingPoints() {
+        final ReadPoint a = new ReadPoint(1, HOLDING_REGISTERS, 0, 10);
+        final ReadPoint b = new ReadPoint(1, HOLDING_REGISTERS, 2, 3);
+        final List<ReadPlanner.Block> blocks = new ReadPlanner(0).plan(Arrays.asList(a, b));
+
+        assertEquals(blocks.size(), 1);
+        assertEquals(blocks.get(0).getCount(), 10);
+
+        final int[] values = new int[10];
+        for (int i = 0; i < values.length; i++)
+            values[i] = i;
+        assertEquals(blocks.get(0).slice(b, values), new int[]{2, 3, 4});
+    }
+
+    @Test
+    public void testFallbackSkipsInvalidPoint() {
+        final ReadPoint a = new ReadPoint(1, COILS, 0, 2);
+        final ReadPoint bad = new ReadPoint(1, COILS, 5, 1);
+        final ReadPoint b = new ReadPoint(1, COILS, 7, 2);
+        final ModbusMaster master = new CoilsMaster(5);
+
+        final Map<ReadPoint, ModbusSlaveException> failures = new HashMap<ReadPoint, ModbusSlaveException>();
+        final Map<ReadPoint, int[]> values = new ReadPlanner(10).execute(master, Arrays.asList(a, bad, b), failures);
+
+        assertEquals(values.get(a), new int[]{0, 1});
+        assertEquals(values.get(b), new int[]{1, 0});
+        assertFalse(values.containsKey(bad));
+        assertEquals(failures.size(), 1);
+        assertTrue(failures.get(bad).isType(Modbus.ILLEGAL_ADDRESS_EXCEPTION));
+    }
+
+    @Test(expectedExceptions = ModbusSlaveException.class)
+    public void testFallbackThrowsWithoutFailures() {
+        new ReadPlanner(10).execute(new CoilsMaster(5), Arrays.asList(
+                new ReadPoint(1, COILS, 0, 2),
+                new ReadPoint(1, COILS, 5, 1)));
+    }
+
+    /**
+     * Odd coils are on, reading the invalid address fails.
+     */
+    private static final class CoilsMaster implements ModbusMaster {
+
+        private final int invalid;
+
+        private CoilsMaster(int invalid) {
+            this.invalid = invalid;
+        }
+
+        @Override
+        public BitVector readCoils(int unitId, int ref, int count) {
+            if (ref <= invalid && invalid < ref + count)
+                throw new ModbusSlaveException(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+            final BitVector bv = BitVector.valueOf(count);
+            for (int i = 0; i < count; i++)
+                bv.setBit(i, (ref + i) % 2 == 1);
+            return bv;
+        }
+
+        @Override
+        public BitVector readDiscreteInput(int unitId, int ref, int count) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean writeCoil(int unitId, int ref, boolean state) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void writeCoils(int unitId, int ref, BitVector coils) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<InputRegister> readInputRegisters(int unitId, int ref, int count) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<Register> readHoldingRegisters(int unitId, int ref, int count) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void writeHoldingRegister(int unitId, int ref, Register register) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void writeHoldingRegisters(int unitId, int ref, List<Register> registers) {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+}
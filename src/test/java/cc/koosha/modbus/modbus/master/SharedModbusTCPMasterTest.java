@@ -0,0 +1,250 @@
+package cc.koosha.modbus.modbus.master;
+
+import cc.koosha.modbus.ModbusException;
+import cc.koosha.modbus.io.net.TCPMasterConnection;
+import cc.koosha.modbus.modbus.master.SharedModbusTCPMaster.Priority;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class SharedModbusTCPMasterTest {
+
+    /**
+     * The device holds its answer to a request of this reference until
+     * {@link #release}.
+     */
+    private static final int BLOCKING_REF = 0;
+
+    private ServerSocket server;
+    private CountDownLatch release;
+    private ExecutorService callers;
+    private SharedModbusTCPMaster master;
+
+    /**
+     * References read by the device, in order.
+     */
+    private final BlockingQueue<Integer> served = new LinkedBlockingQueue<Integer>();
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        served.clear();
+        release = new CountDownLatch(1);
+        callers = Executors.newCachedThreadPool();
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    serve(server.accept());
+                }
+                catch (IOException e) {
+                    // closed
+                }
+            }
+        }, "shared-master-test-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        release.countDown();
+        if (master != null)
+            master.close();
+        callers.shutdownNow();
+        server.close();
+    }
+
+    @Test
+    public void testPriorityOrder() throws Exception {
+        start(Integer.MAX_VALUE, 100);
+        final Future<?> blocking = holdWorker();
+
+        final List<Future<?>> calls = new ArrayList<Future<?>>();
+        calls.add(queue(Priority.LOW, 300));
+        calls.add(queue(Priority.NORMAL, 200));
+        calls.add(queue(Priority.HIGH, 100));
+        release.countDown();
+
+        assertServed(100, 200, 300);
+        blocking.get(5, TimeUnit.SECONDS);
+        for (Future<?> call : calls)
+            call.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testLowNotStarvedUnderHighAndNormal() throws Exception {
+        start(Integer.MAX_VALUE, 2);
+        holdWorker();
+
+        queue(Priority.LOW, 300);
+        for (int i = 0; i < 5; i++)
+            queue(Priority.NORMAL, 200 + i);
+        for (int i = 0; i < 5; i++)
+            queue(Priority.HIGH, 100 + i);
+        release.countDown();
+
+        // Every queue waiting behind two served requests goes next.
+        assertServed(100, 101, 200, 300, 102, 103, 201, 104, 202, 203, 204);
+    }
+
+    @Test
+    public void testQueueFull() throws Exception {
+        start(1, 100);
+        holdWorker();
+        final Future<?> queued = queue(Priority.NORMAL, 1);
+
+        try {
+            master.readHoldingRegisters(1, 2, 1);
+            fail("queue should be full");
+        }
+        catch (ModbusException e) {
+            assertTrue(e.getMessage().contains("queue full"), e.getMessage());
+        }
+        release.countDown();
+        queued.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testCloseFailsWaiters() throws Exception {
+        start(Integer.MAX_VALUE, 100);
+        final Future<?> blocking = holdWorker();
+        final Future<?> queued = queue(Priority.NORMAL, 1);
+
+        final Future<?> closing = callers.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                master.close();
+                return null;
+            }
+        });
+        try {
+            queued.get(5, TimeUnit.SECONDS);
+            fail("waiting request should fail");
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ModbusException, String.valueOf(e.getCause()));
+        }
+
+        // The request being executed completes first.
+        release.countDown();
+        blocking.get(5, TimeUnit.SECONDS);
+        closing.get(5, TimeUnit.SECONDS);
+        try {
+            master.readHoldingRegisters(1, 2, 1);
+            fail("master is closed");
+        }
+        catch (ModbusException e) {
+            assertEquals(e.getMessage(), "master closed");
+        }
+        master = null;
+    }
+
+
+    private void start(int maxQueued, int starvationLimit) throws Exception {
+        final TCPMasterConnection connection = new TCPMasterConnection();
+        connection.setAddress(InetAddress.getLoopbackAddress());
+        connection.setPort(server.getLocalPort());
+        connection.connect();
+        final ModbusMasterConfig config = ModbusMasterConfig.builder()
+                                                            .retries(1)
+                                                            .validityCheck(true)
+                                                            .build();
+        master = new SharedModbusTCPMaster(config, connection, maxQueued, starvationLimit);
+    }
+
+    /**
+     * Keeps the worker busy with a request the device does not answer until
+     * {@link #release}.
+     */
+    private Future<?> holdWorker() throws InterruptedException {
+        final Future<?> call = queue(Priority.NORMAL, BLOCKING_REF);
+        assertEquals(served.poll(5, TimeUnit.SECONDS), Integer.valueOf(BLOCKING_REF));
+        return call;
+    }
+
+    /**
+     * Reads a register from another thread, once the request is queued.
+     */
+    private Future<?> queue(final Priority priority, final int ref) throws InterruptedException {
+        final int queued = master.getQueued();
+        final Future<?> call = callers.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                master.withPriority(priority).readHoldingRegisters(1, ref, 1);
+                return null;
+            }
+        });
+        if (ref == BLOCKING_REF)
+            return call;
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (master.getQueued() == queued) {
+            assertTrue(System.nanoTime() < deadline, "request not queued");
+            Thread.sleep(1);
+        }
+        return call;
+    }
+
+    private void assertServed(Integer... refs) throws InterruptedException {
+        final List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < refs.length; i++) {
+            final Integer ref = served.poll(5, TimeUnit.SECONDS);
+            assertNotNull(ref, "served so far: " + order);
+            order.add(ref);
+        }
+        assertEquals(order, Arrays.asList(refs));
+    }
+
+    /**
+     * Answers read holding registers requests, each register holding its
+     * own address.
+     */
+    private void serve(Socket socket) throws IOException {
+        final DataInputStream in = new DataInputStream(socket.getInputStream());
+        final OutputStream out = socket.getOutputStream();
+        final byte[] request = new byte[12];
+        try {
+            while (true) {
+                in.readFully(request);
+                final int ref = (request[8] & 0xFF) << 8 | request[9] & 0xFF;
+                served.add(ref);
+                if (ref == BLOCKING_REF)
+                    release.await();
+                out.write(new byte[]{request[0], request[1], 0, 0, 0, 5, request[6], 3, 2,
+                        (byte) (ref >> 8), (byte) ref});
+                out.flush();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+package cc.koosha.modbus.modbus.transaction;
+
+import cc.koosha.modbus.CircuitOpenException;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void testOpensAfterThreshold() {
+        final CircuitBreaker breaker = new CircuitBreaker(3, 60000);
+        for (int i = 0; i < 2; i++) {
+            assertEquals(breaker.acquire(1), CircuitBreaker.State.CLOSED);
+            breaker.failure(1);
+        }
+        assertEquals(breaker.getState(1), CircuitBreaker.State.CLOSED);
+        breaker.acquire(1);
+        breaker.failure(1);
+        assertEquals(breaker.getState(1), CircuitBreaker.State.OPEN);
+        try {
+            breaker.acquire(1);
+            fail("circuit should be open");
+        }
+        catch (CircuitOpenException e) {
+            assertEquals(e.getUnitId(), 1);
+        }
+        // Other units are not affected.
+        assertEquals(breaker.acquire(2), CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void testSuccessResetsFailures() {
+        final CircuitBreaker breaker = new CircuitBreaker(2, 60000);
+        breaker.failure(1);
+        breaker.success(1);
+        breaker.failure(1);
+        assertEquals(breaker.getState(1), CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void testSingleProbeAfterOpenTime() throws InterruptedException {
+        final CircuitBreaker breaker = new CircuitBreaker(1, 20);
+        breaker.failure(1);
+        Thread.sleep(40);
+        assertEquals(breaker.acquire(1), CircuitBreaker.State.HALF_OPEN);
+        try {
+            breaker.acquire(1);
+            fail("only one probe at a time");
+        }
+        catch (CircuitOpenException expected) {
+        }
+        breaker.success(1);
+        assertEquals(breaker.getState(1), CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void testFailedProbeReopens() throws InterruptedException {
+        final CircuitBreaker breaker = new CircuitBreaker(5, 20);
+        for (int i = 0; i < 5; i++)
+            breaker.failure(1);
+        Thread.sleep(40);
+        assertEquals(breaker.acquire(1), CircuitBreaker.State.HALF_OPEN);
+        breaker.failure(1);
+        assertEquals(breaker.getState(1), CircuitBreaker.State.OPEN);
+        try {
+            breaker.acquire(1);
+            fail("circuit should be open again");
+        }
+        catch (CircuitOpenException expected) {
+        }
+    }
+
+}
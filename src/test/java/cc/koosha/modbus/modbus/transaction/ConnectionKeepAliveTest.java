@@ -0,0 +1,146 @@
+package cc.koosha.modbus.modbus.transaction;
+
+import cc.koosha.modbus.io.net.TCPMasterConnection;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class ConnectionKeepAliveTest {
+
+    private ServerSocket server;
+    private TCPMasterConnection connection;
+    private ConnectionKeepAlive keepAlive;
+
+    /**
+     * Requests received by the device.
+     */
+    private final AtomicInteger received = new AtomicInteger();
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        received.set(0);
+        if (keepAlive != null)
+            keepAlive.close();
+        if (connection != null)
+            connection.close();
+        if (server != null)
+            server.close();
+    }
+
+    @Test
+    public void testProbesOnlyWhenIdle() throws Exception {
+        start(true);
+        keepAlive = new ConnectionKeepAlive(connection, null, 1, 100);
+
+        // In use, never idle for the interval.
+        final long busyUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300);
+        while (System.nanoTime() < busyUntil) {
+            connection.touch();
+            Thread.sleep(10);
+        }
+        assertEquals(keepAlive.getProbes(), 0);
+        assertEquals(received.get(), 0);
+
+        waitFor(new Condition() {
+            @Override
+            public boolean holds() {
+                return received.get() > 0;
+            }
+        });
+        assertTrue(keepAlive.getProbes() > 0);
+        assertEquals(keepAlive.getFailures(), 0);
+        assertTrue(connection.isConnected());
+    }
+
+    @Test
+    public void testClosesAfterFailedProbe() throws Exception {
+        start(false);
+        keepAlive = new ConnectionKeepAlive(connection, null, 1, 50);
+
+        waitFor(new Condition() {
+            @Override
+            public boolean holds() {
+                return keepAlive.getFailures() > 0;
+            }
+        });
+        assertFalse(connection.isConnected());
+        assertEquals(keepAlive.getProbes(), 1);
+    }
+
+
+    /**
+     * @param answer whether the device echoes requests, or hangs up on
+     *               them.
+     */
+    private void start(final boolean answer) throws Exception {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    serve(server.accept(), answer);
+                }
+                catch (IOException e) {
+                    // closed
+                }
+            }
+        }, "keepalive-test-server");
+        thread.setDaemon(true);
+        thread.start();
+
+        connection = new TCPMasterConnection();
+        connection.setAddress(InetAddress.getLoopbackAddress());
+        connection.setPort(server.getLocalPort());
+        connection.setTimeout(500);
+        connection.connect();
+    }
+
+    private void serve(Socket socket, boolean answer) throws IOException {
+        final DataInputStream in = new DataInputStream(socket.getInputStream());
+        final OutputStream out = socket.getOutputStream();
+        final byte[] frame = new byte[260];
+        try {
+            while (true) {
+                in.readFully(frame, 0, 6);
+                final int length = (frame[4] & 0xFF) << 8 | frame[5] & 0xFF;
+                in.readFully(frame, 6, length);
+                received.incrementAndGet();
+                if (!answer)
+                    return;
+                // Return query data answers with the request itself.
+                out.write(frame, 0, 6 + length);
+                out.flush();
+            }
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+    private interface Condition {
+
+        boolean holds();
+
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.holds()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.sleep(5);
+        }
+    }
+
+}
@@ -0,0 +1,55 @@
+package cc.koosha.modbus.modbus.transaction;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class ExponentialBackoffTest {
+
+    @Test
+    public void testDelayDoublesWithinJitter() {
+        final ExponentialBackoff backoff = ExponentialBackoff.builder()
+                                                             .baseDelay(100)
+                                                             .maxDelay(10000)
+                                                             .build();
+        for (int failures = 1; failures <= 5; failures++) {
+            final long step = 100L << (failures - 1);
+            for (int i = 0; i < 100; i++) {
+                final long delay = backoff.getDelay(failures, 0);
+                assertTrue(delay >= step / 2 && delay <= step, "delay: " + delay);
+            }
+        }
+    }
+
+    @Test
+    public void testCappedAtMaxDelay() {
+        final ExponentialBackoff backoff = ExponentialBackoff.builder()
+                                                             .baseDelay(100)
+                                                             .maxDelay(400)
+                                                             .build();
+        assertTrue(backoff.getDelay(10, 0) <= 400);
+        assertTrue(backoff.getDelay(100, 0) <= 400);
+        assertTrue(backoff.getDelay(100, 0) >= 200);
+    }
+
+    @Test
+    public void testGivesUpAfterMaxAttempts() {
+        final ExponentialBackoff backoff = ExponentialBackoff.builder()
+                                                             .maxAttempts(3)
+                                                             .build();
+        assertTrue(backoff.getDelay(2, 0) >= 0);
+        assertEquals(backoff.getDelay(3, 0), -1);
+    }
+
+    @Test
+    public void testGivesUpPastDeadline() {
+        final ExponentialBackoff backoff = ExponentialBackoff.builder()
+                                                             .baseDelay(100)
+                                                             .deadline(1000)
+                                                             .build();
+        assertTrue(backoff.getDelay(1, 0) >= 0);
+        assertEquals(backoff.getDelay(1, 950), -1);
+    }
+
+}
@@ -0,0 +1,129 @@
+package cc.koosha.modbus.modbus.transaction;
+
+import cc.koosha.modbus.CircuitOpenException;
+import cc.koosha.modbus.ModbusException;
+import cc.koosha.modbus.ModbusSlaveException;
+import cc.koosha.modbus.io.net.NioReactor;
+import cc.koosha.modbus.io.net.NioTCPMasterConnection;
+import cc.koosha.modbus.modbus.transport.ModbusNioTCPTransport;
+import cc.koosha.modbus.msg.request.ReadMultipleRegistersRequest;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class ModbusNioTCPTransactionTest {
+
+    private NioReactor reactor;
+
+    @BeforeClass
+    public void setUp() throws IOException {
+        reactor = new NioReactor("transaction-test-reactor");
+    }
+
+    @AfterClass
+    public void tearDown() {
+        reactor.close();
+    }
+
+    @Test
+    public void testAsyncFailuresOpenCircuit() throws Exception {
+        // Nothing listens on the port.
+        final ServerSocket closed = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        final int port = closed.getLocalPort();
+        closed.close();
+
+        final ModbusNioTCPTransaction transaction = transaction(port);
+        final CircuitBreaker breaker = new CircuitBreaker(2, 60000);
+        transaction.setCircuitBreaker(breaker);
+
+        for (int i = 0; i < 2; i++)
+            assertFails(transaction, ModbusException.class);
+        assertEquals(breaker.getState(1), CircuitBreaker.State.OPEN);
+        assertFails(transaction, CircuitOpenException.class);
+        // Other units are not affected.
+        assertEquals(breaker.acquire(2), CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void testAsyncExceptionResponseKeepsCircuitClosed() throws Exception {
+        final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    answerWithException(server.accept());
+                }
+                catch (IOException e) {
+                    // closed
+                }
+            }
+        }, "transaction-test-server");
+        thread.setDaemon(true);
+        thread.start();
+
+        final ModbusNioTCPTransaction transaction = transaction(server.getLocalPort());
+        final CircuitBreaker breaker = new CircuitBreaker(1, 60000);
+        transaction.setCircuitBreaker(breaker);
+        try {
+            for (int i = 0; i < 3; i++)
+                assertFails(transaction, ModbusSlaveException.class);
+            assertEquals(breaker.getState(1), CircuitBreaker.State.CLOSED);
+        }
+        finally {
+            server.close();
+        }
+    }
+
+
+    private ModbusNioTCPTransaction transaction(int port) {
+        final NioTCPMasterConnection connection = new NioTCPMasterConnection(
+                reactor, InetAddress.getLoopbackAddress(), port, 1000);
+        final ModbusNioTCPTransaction transaction = new ModbusNioTCPTransaction(new ModbusNioTCPTransport(connection));
+        transaction.setRetries(1);
+        return transaction;
+    }
+
+    private static void assertFails(ModbusNioTCPTransaction transaction,
+                                    Class<? extends Throwable> expected) throws Exception {
+        try {
+            transaction.executeAsync(new ReadMultipleRegistersRequest(1, 0, 1)).get(5, TimeUnit.SECONDS);
+            fail("expected " + expected.getSimpleName());
+        }
+        catch (ExecutionException e) {
+            assertTrue(expected.isInstance(e.getCause()), String.valueOf(e.getCause()));
+        }
+    }
+
+    /**
+     * Answers every request with an illegal address exception.
+     */
+    private static void answerWithException(Socket socket) throws IOException {
+        final DataInputStream in = new DataInputStream(socket.getInputStream());
+        final OutputStream out = socket.getOutputStream();
+        final byte[] request = new byte[12];
+        try {
+            while (true) {
+                in.readFully(request);
+                out.write(new byte[]{request[0], request[1], 0, 0, 0, 3, request[6], (byte) 0x83, 2});
+                out.flush();
+            }
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+}
@@ -0,0 +1,106 @@
+package cc.koosha.modbus.modbus.transport;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class MBAPFrameDecoderTest {
+
+    private static byte[] frame(int transactionId, int pduLength) {
+        final byte[] frame = new byte[7 + pduLength];
+        frame[0] = (byte) (transactionId >> 8);
+        frame[1] = (byte) transactionId;
+        frame[4] = (byte) ((pduLength + 1) >> 8);
+        frame[5] = (byte) (pduLength + 1);
+        frame[6] = 1;
+        for (int i = 7; i < frame.length; i++)
+            frame[i] = (byte) (transactionId + i);
+        return frame;
+    }
+
+    private static byte[] current(MBAPFrameDecoder decoder) {
+        return Arrays.copyOfRange(decoder.getBuffer(),
+                                  decoder.getFrameOffset(),
+                                  decoder.getFrameOffset() + decoder.getFrameLength());
+    }
+
+    @Test
+    public void testSplitFrame() throws IOException {
+        final MBAPFrameDecoder decoder = new MBAPFrameDecoder();
+        final byte[] frame = frame(7, 5);
+
+        decoder.feed(frame, 0, 3);
+        assertFalse(decoder.next());
+        decoder.feed(frame, 3, 5);
+        assertFalse(decoder.next());
+        decoder.feed(frame, 8, frame.length - 8);
+        assertTrue(decoder.next());
+        assertEquals(decoder.getTransactionId(), 7);
+        assertEquals(current(decoder), frame);
+        assertFalse(decoder.next());
+        assertFalse(decoder.hasPending());
+    }
+
+    @Test
+    public void testCoalescedFrames() throws IOException {
+        final MBAPFrameDecoder decoder = new MBAPFrameDecoder();
+        final byte[] a = frame(1, 5);
+        final byte[] b = frame(2, 12);
+        final byte[] chunk = new byte[a.length + b.length + 4];
+        System.arraycopy(a, 0, chunk, 0, a.length);
+        System.arraycopy(b, 0, chunk, a.length, b.length);
+        System.arraycopy(a, 0, chunk, a.length + b.length, 4);
+
+        decoder.read(new ByteArrayInputStream(chunk));
+        assertTrue(decoder.next());
+        assertEquals(current(decoder), a);
+        assertTrue(decoder.next());
+        assertEquals(current(decoder), b);
+        assertFalse(decoder.next());
+        assertTrue(decoder.hasPending());
+    }
+
+    @Test
+    public void testCompactsPartialFrame() throws IOException {
+        final MBAPFrameDecoder decoder = new MBAPFrameDecoder(MBAPFrameDecoder.MAX_FRAME_LENGTH);
+        for (int i = 0; i < 100; i++) {
+            final byte[] frame = frame(i, 1 + i % 250);
+            final int cut = i % frame.length;
+            decoder.feed(frame, 0, cut);
+            if (cut > 0 && cut < 6)
+                assertFalse(decoder.next());
+            decoder.feed(frame, cut, frame.length - cut);
+            assertTrue(decoder.next());
+            assertEquals(current(decoder), frame);
+        }
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testInvalidProtocolFailsOnHeader() throws IOException {
+        final MBAPFrameDecoder decoder = new MBAPFrameDecoder();
+        final byte[] frame = frame(1, 5);
+        frame[3] = 1;
+        decoder.feed(frame, 0, 6);
+        decoder.next();
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testInvalidLength() throws IOException {
+        final MBAPFrameDecoder decoder = new MBAPFrameDecoder();
+        decoder.feed(new byte[]{0, 1, 0, 0, 0x10, 0}, 0, 6);
+        decoder.next();
+    }
+
+    @Test(expectedExceptions = EOFException.class)
+    public void testEndOfStream() throws IOException {
+        new MBAPFrameDecoder().read(new ByteArrayInputStream(new byte[0]));
+    }
+
+}
@@ -0,0 +1,335 @@
+package cc.koosha.modbus.modbus.transport;
+
+import cc.koosha.modbus.io.net.NioReactor;
+import cc.koosha.modbus.io.net.NioTCPMasterConnection;
+import cc.koosha.modbus.msg.ModbusResponse;
+import cc.koosha.modbus.msg.request.ReadMultipleRegistersRequest;
+import cc.koosha.modbus.msg.response.ReadMultipleRegistersResponse;
+import cc.koosha.modbus.util.FutureCallback;
+import cc.koosha.modbus.util.ModbusFuture;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class ModbusNioTCPTransportTest {
+
+    private ServerSocket server;
+    private NioReactor reactor;
+
+    @BeforeClass
+    public void setUp() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    serve(server.accept());
+                }
+                catch (IOException e) {
+                    // closed
+                }
+            }
+        }, "transport-test-server");
+        thread.setDaemon(true);
+        thread.start();
+        reactor = new NioReactor("transport-test-reactor");
+    }
+
+    @AfterClass
+    public void tearDown() throws IOException {
+        reactor.close();
+        server.close();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final NioTCPMasterConnection connection = new NioTCPMasterConnection(
+                reactor, InetAddress.getLoopbackAddress(), server.getLocalPort(), 5000);
+        final ModbusNioTCPTransport transport = new ModbusNioTCPTransport(connection);
+
+        final List<ModbusFuture<ModbusResponse>> futures = new ArrayList<ModbusFuture<ModbusResponse>>();
+        for (int i = 0; i < 3; i++)
+            futures.add(transport.send(new ReadMultipleRegistersRequest(1, 100 * i, 2 + i)));
+
+        for (int i = 0; i < 3; i++) {
+            final ModbusResponse response = futures.get(i).get(5, TimeUnit.SECONDS);
+            assertTrue(response instanceof ReadMultipleRegistersResponse, String.valueOf(response));
+            final ReadMultipleRegistersResponse registers = (ReadMultipleRegistersResponse) response;
+            assertEquals(registers.getUnitID(), 1);
+            assertEquals(registers.getWordCount(), 2 + i);
+            for (int r = 0; r < 2 + i; r++)
+                assertEquals(registers.getRegisterValue(r), 100 * i + r);
+        }
+        transport.close();
+    }
+
+    @Test
+    public void testResendFromFailureCallback() throws Exception {
+        // Drops the first connection once both requests arrive, serves the
+        // next one.
+        final ServerSocket dropping = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final Socket first = dropping.accept();
+                    new DataInputStream(first.getInputStream()).readFully(new byte[24]);
+                    first.close();
+                    serve(dropping.accept());
+                }
+                catch (IOException e) {
+                    // closed
+                }
+            }
+        }, "transport-test-dropping-server");
+        thread.setDaemon(true);
+        thread.start();
+
+        final NioTCPMasterConnection connection = new NioTCPMasterConnection(
+                reactor, InetAddress.getLoopbackAddress(), dropping.getLocalPort(), 5000);
+        final ModbusNioTCPTransport transport = new ModbusNioTCPTransport(connection, 2);
+        final List<ModbusFuture<ModbusResponse>> resent = new CopyOnWriteArrayList<ModbusFuture<ModbusResponse>>();
+        final CountDownLatch failed = new CountDownLatch(2);
+        for (int i = 0; i < 2; i++) {
+            final ReadMultipleRegistersRequest request = new ReadMultipleRegistersRequest(1, 10 * i, 1);
+            transport.send(request).addCallback(new FutureCallback<ModbusResponse>() {
+                @Override
+                public void onSuccess(ModbusResponse result) {
+                }
+
+                @Override
+                public void onFailure(Throwable error) {
+                    resent.add(transport.send(request));
+                    failed.countDown();
+                }
+            });
+        }
+
+        try {
+            assertTrue(failed.await(5, TimeUnit.SECONDS), "both requests failed");
+            assertEquals(resent.size(), 2);
+            for (ModbusFuture<ModbusResponse> future : resent) {
+                final ReadMultipleRegistersResponse response =
+                        (ReadMultipleRegistersResponse) future.get(5, TimeUnit.SECONDS);
+                assertEquals(response.getWordCount(), 1);
+            }
+        }
+        finally {
+            transport.close();
+            dropping.close();
+        }
+    }
+
+    @Test
+    public void testMatchesResponsesOutOfOrder() throws Exception {
+        final HoldingDevice device = new HoldingDevice();
+        final ModbusNioTCPTransport transport = new ModbusNioTCPTransport(new NioTCPMasterConnection(
+                reactor, InetAddress.getLoopbackAddress(), device.server.getLocalPort(), 5000), 4);
+        try {
+            final List<ModbusFuture<ModbusResponse>> futures = new ArrayList<ModbusFuture<ModbusResponse>>();
+            for (int i = 0; i < 4; i++)
+                futures.add(transport.send(new ReadMultipleRegistersRequest(1, 10 * i, 1)));
+
+            final List<byte[]> requests = new ArrayList<byte[]>();
+            for (int i = 0; i < 4; i++) {
+                final byte[] request = device.nextRequest();
+                assertNotNull(request, "request " + i);
+                requests.add(request);
+            }
+            for (int i = 3; i >= 0; i--) {
+                device.write(respond(requests.get(i)));
+                assertEquals(reference(futures.get(i).get(5, TimeUnit.SECONDS)), 10 * i);
+            }
+        }
+        finally {
+            transport.close();
+            device.close();
+        }
+    }
+
+    @Test
+    public void testLimitsRequestsInFlight() throws Exception {
+        final HoldingDevice device = new HoldingDevice();
+        final ModbusNioTCPTransport transport = new ModbusNioTCPTransport(new NioTCPMasterConnection(
+                reactor, InetAddress.getLoopbackAddress(), device.server.getLocalPort(), 5000), 2);
+        try {
+            final List<ModbusFuture<ModbusResponse>> futures = new ArrayList<ModbusFuture<ModbusResponse>>();
+            for (int i = 0; i < 5; i++)
+                futures.add(transport.send(new ReadMultipleRegistersRequest(1, 10 * i, 1)));
+
+            final byte[] first = device.nextRequest();
+            byte[] second = device.nextRequest();
+            assertNotNull(first);
+            assertNotNull(second);
+            assertNull(device.nextRequest(), "third request sent before a response");
+
+            // Each response lets the next request out.
+            device.write(respond(first));
+            assertEquals(reference(futures.get(0).get(5, TimeUnit.SECONDS)), 0);
+            for (int i = 2; i < 5; i++) {
+                final byte[] next = device.nextRequest();
+                assertNotNull(next, "request " + i);
+                assertNull(device.nextRequest(), "window exceeded after request " + i);
+                device.write(respond(second));
+                assertEquals(reference(futures.get(i - 1).get(5, TimeUnit.SECONDS)), 10 * (i - 1));
+                second = next;
+            }
+            device.write(respond(second));
+            assertEquals(reference(futures.get(4).get(5, TimeUnit.SECONDS)), 40);
+        }
+        finally {
+            transport.close();
+            device.close();
+        }
+    }
+
+    @Test
+    public void testDiscardsUnexpectedTransactionId() throws Exception {
+        final HoldingDevice device = new HoldingDevice();
+        final ModbusNioTCPTransport transport = new ModbusNioTCPTransport(new NioTCPMasterConnection(
+                reactor, InetAddress.getLoopbackAddress(), device.server.getLocalPort(), 5000), 2);
+        try {
+            final ModbusFuture<ModbusResponse> future = transport.send(new ReadMultipleRegistersRequest(1, 7, 1));
+            final byte[] request = device.nextRequest();
+            assertNotNull(request);
+
+            final byte[] stray = respond(request);
+            stray[0] ^= 0x55;
+            device.write(stray);
+            device.write(respond(request));
+            assertEquals(reference(future.get(5, TimeUnit.SECONDS)), 7);
+        }
+        finally {
+            transport.close();
+            device.close();
+        }
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testReadRequestNotSupported() throws Exception {
+        final NioTCPMasterConnection connection = new NioTCPMasterConnection(
+                reactor, InetAddress.getLoopbackAddress(), server.getLocalPort(), 5000);
+        new ModbusNioTCPTransport(connection).readRequest();
+    }
+
+    /**
+     * Answers read holding registers requests, each register holding its
+     * own address.
+     */
+    private static void serve(Socket socket) throws IOException {
+        final DataInputStream in = new DataInputStream(socket.getInputStream());
+        final OutputStream out = socket.getOutputStream();
+        final byte[] request = new byte[12];
+        try {
+            while (true) {
+                in.readFully(request);
+                out.write(respond(request));
+                out.flush();
+            }
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Response to a read holding registers request, each register holding
+     * its own address.
+     */
+    private static byte[] respond(byte[] request) {
+        assertEquals(request[5], 6);
+        assertEquals(request[7], 3);
+        final int ref = (request[8] & 0xFF) << 8 | request[9] & 0xFF;
+        final int count = (request[10] & 0xFF) << 8 | request[11] & 0xFF;
+
+        final byte[] response = new byte[9 + count * 2];
+        System.arraycopy(request, 0, response, 0, 4);
+        response[5] = (byte) (3 + count * 2);
+        response[6] = request[6];
+        response[7] = 3;
+        response[8] = (byte) (count * 2);
+        for (int i = 0; i < count; i++) {
+            response[9 + i * 2] = (byte) ((ref + i) >> 8);
+            response[10 + i * 2] = (byte) (ref + i);
+        }
+        return response;
+    }
+
+    private static int reference(ModbusResponse response) {
+        return ((ReadMultipleRegistersResponse) response).getRegisterValue(0);
+    }
+
+    /**
+     * A device holding the requests it receives until told to answer them.
+     */
+    private static final class HoldingDevice {
+
+        private final ServerSocket server;
+        private final BlockingQueue<byte[]> requests = new LinkedBlockingQueue<byte[]>();
+        private volatile Socket socket;
+
+        private HoldingDevice() throws IOException {
+            server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        socket = server.accept();
+                        final DataInputStream in = new DataInputStream(socket.getInputStream());
+                        while (true) {
+                            final byte[] request = new byte[12];
+                            in.readFully(request);
+                            requests.add(request);
+                        }
+                    }
+                    catch (IOException e) {
+                        // closed
+                    }
+                }
+            }, "transport-test-holding-device");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * @return the next request received, or null if none within 200
+         * milliseconds.
+         */
+        private byte[] nextRequest() throws InterruptedException {
+            return requests.poll(200, TimeUnit.MILLISECONDS);
+        }
+
+        private void write(byte[] frame) throws IOException {
+            final OutputStream out = socket.getOutputStream();
+            out.write(frame);
+            out.flush();
+        }
+
+        private void close() throws IOException {
+            server.close();
+            if (socket != null)
+                socket.close();
+        }
+
+    }
+
+}
@@ -0,0 +1,90 @@
+package cc.koosha.modbus.modbus.transport;
+
+import cc.koosha.modbus.msg.response.ModbusResponseHolder;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class ModbusTCPTransportTest {
+
+    private ServerSocket server;
+    private Socket client;
+    private Socket device;
+    private ModbusTCPTransport transport;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        device = server.accept();
+        transport = new ModbusTCPTransport(client);
+        transport.setHeadless();
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        transport.close();
+        device.close();
+        server.close();
+    }
+
+    @Test
+    public void testHeadlessHolderRead() throws IOException {
+        // Read registers, write register and exception response, each with
+        // a CRC which is not checked.
+        write(1, 3, 4, 0x00, 0x0A, 0xFF, 0xFE, 0xAA, 0xBB,
+              1, 6, 0, 100, 0, 42, 0xAA, 0xBB,
+              2, 0x83, 2, 0xAA, 0xBB);
+        final ModbusResponseHolder holder = new ModbusResponseHolder();
+
+        transport.readResponse(holder);
+        assertEquals(holder.getTransactionID(), 0);
+        assertEquals(holder.getUnitID(), 1);
+        assertEquals(holder.getFunctionCode(), 3);
+        assertEquals(holder.getRegisterCount(), 2);
+        assertEquals(holder.getRegister(0), 10);
+        assertEquals(holder.getRegister(1), 0xFFFE);
+
+        transport.readResponse(holder);
+        assertEquals(holder.getReference(), 100);
+        assertEquals(holder.getValue(), 42);
+
+        transport.readResponse(holder);
+        assertEquals(holder.getUnitID(), 2);
+        assertTrue(holder.isException());
+        assertEquals(holder.getExceptionCode(), 2);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testHeadlessHolderReadUnsupportedFunction() throws IOException {
+        write(1, 8, 0, 0, 0xA5, 0x5A, 0xAA, 0xBB);
+        transport.readResponse(new ModbusResponseHolder());
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testHeadlessHolderReadTruncated() throws IOException {
+        write(1, 3, 4, 0x00, 0x0A);
+        device.shutdownOutput();
+        transport.readResponse(new ModbusResponseHolder());
+    }
+
+
+    private void write(int... values) throws IOException {
+        final byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++)
+            bytes[i] = (byte) values[i];
+        final OutputStream out = device.getOutputStream();
+        out.write(bytes);
+        out.flush();
+    }
+
+}
@@ -0,0 +1,85 @@
+package cc.koosha.modbus.msg.response;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class ModbusResponseHolderTest {
+
+    private static byte[] bytes(int... values) {
+        final byte[] b = new byte[values.length];
+        for (int i = 0; i < values.length; i++)
+            b[i] = (byte) values[i];
+        return b;
+    }
+
+    @Test
+    public void testDecodeReadRegisters() throws IOException {
+        final byte[] frame = bytes(0x12, 0x34, 0, 0, 0, 7, 1, 3, 4, 0x00, 0x0A, 0xFF, 0xFE);
+        final ModbusResponseHolder holder = new ModbusResponseHolder();
+        holder.decode(frame, 0, frame.length);
+
+        assertEquals(holder.getTransactionID(), 0x1234);
+        assertEquals(holder.getUnitID(), 1);
+        assertEquals(holder.getFunctionCode(), 3);
+        assertFalse(holder.isException());
+        assertEquals(holder.getRegisterCount(), 2);
+        assertEquals(holder.getRegister(0), 10);
+        assertEquals(holder.getRegister(1), 0xFFFE);
+        assertEquals(holder.getSignedRegister(1), (short) -2);
+    }
+
+    @Test
+    public void testDecodeReadCoils() throws IOException {
+        final byte[] frame = bytes(0, 1, 0, 0, 0, 4, 1, 1, 1, 0x05);
+        final ModbusResponseHolder holder = new ModbusResponseHolder();
+        holder.decode(frame, 0, frame.length);
+
+        assertEquals(holder.getBitCount(), 8);
+        assertTrue(holder.getBit(0));
+        assertFalse(holder.getBit(1));
+        assertTrue(holder.getBit(2));
+    }
+
+    @Test
+    public void testDecodeException() throws IOException {
+        final byte[] frame = bytes(0, 1, 0, 0, 0, 3, 1, 0x83, 2);
+        final ModbusResponseHolder holder = new ModbusResponseHolder();
+        holder.decode(frame, 0, frame.length);
+
+        assertTrue(holder.isException());
+        assertEquals(holder.getExceptionCode(), 2);
+    }
+
+    @Test
+    public void testReuse() throws IOException {
+        final ModbusResponseHolder holder = new ModbusResponseHolder();
+        final byte[] read = bytes(0, 1, 0, 0, 0, 5, 1, 3, 2, 0, 7);
+        final byte[] write = bytes(0, 2, 0, 0, 0, 6, 1, 6, 0, 100, 0, 42);
+        holder.decode(read, 0, read.length);
+        holder.decode(write, 0, write.length);
+
+        assertEquals(holder.getTransactionID(), 2);
+        assertEquals(holder.getReference(), 100);
+        assertEquals(holder.getValue(), 42);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testByteCountMismatch() throws IOException {
+        final byte[] frame = bytes(0, 1, 0, 0, 0, 5, 1, 3, 4, 0, 7);
+        new ModbusResponseHolder().decode(frame, 0, frame.length);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testWrongAccessor() throws IOException {
+        final byte[] frame = bytes(0, 1, 0, 0, 0, 5, 1, 3, 2, 0, 7);
+        final ModbusResponseHolder holder = new ModbusResponseHolder();
+        holder.decode(frame, 0, frame.length);
+        holder.getBitCount();
+    }
+
+}
@@ -0,0 +1,63 @@
+package cc.koosha.modbus.util;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class AdaptiveTimeoutTest {
+
+    @Test
+    public void testInitialUntilMeasured() {
+        final AdaptiveTimeout timeout = new AdaptiveTimeout(10, 3000, 1000);
+        assertEquals(timeout.getTimeout(1), 1000);
+        assertEquals(timeout.getRoundTripTime(1), -1.0);
+    }
+
+    @Test
+    public void testConvergesOnSteadyRoundTrip() {
+        final AdaptiveTimeout timeout = new AdaptiveTimeout(10, 3000, 1000);
+        for (int i = 0; i < 100; i++)
+            timeout.sample(1, 40);
+        assertEquals(timeout.getRoundTripTime(1), 40.0, 0.001);
+        assertTrue(timeout.getTimeout(1) >= 40 && timeout.getTimeout(1) < 50, "timeout: " + timeout.getTimeout(1));
+        // Other units are not affected.
+        assertEquals(timeout.getTimeout(2), 1000);
+    }
+
+    @Test
+    public void testFirstSample() {
+        final AdaptiveTimeout timeout = new AdaptiveTimeout(10, 3000, 1000);
+        timeout.sample(1, 100);
+        // srtt + 4 * (rtt / 2)
+        assertEquals(timeout.getTimeout(1), 300);
+    }
+
+    @Test
+    public void testClampedToFloorAndCeiling() {
+        final AdaptiveTimeout timeout = new AdaptiveTimeout(50, 500, 100);
+        timeout.sample(1, 1);
+        assertEquals(timeout.getTimeout(1), 50);
+        timeout.sample(2, 2000);
+        assertEquals(timeout.getTimeout(2), 500);
+    }
+
+    @Test
+    public void testBackoffOnTimeout() {
+        final AdaptiveTimeout timeout = new AdaptiveTimeout(10, 1000, 100);
+        timeout.timedOut(1);
+        assertEquals(timeout.getTimeout(1), 200);
+        timeout.timedOut(1);
+        timeout.timedOut(1);
+        timeout.timedOut(1);
+        assertEquals(timeout.getTimeout(1), 1000);
+        timeout.reset(1);
+        assertEquals(timeout.getTimeout(1), 100);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInitialOutOfRange() {
+        new AdaptiveTimeout(10, 100, 1000);
+    }
+
+}
@@ -0,0 +1,29 @@
+package cc.koosha.modbus.util;
+
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+
+public class ChecksumTest {
+
+    @Test
+    public void testCrc16MatchesCrc() {
+        final Random random = new Random(42);
+        for (int length = 0; length < 260; length++) {
+            final byte[] data = new byte[length];
+            random.nextBytes(data);
+            final int[] expected = Checksum.crc(data, 0, length);
+            assertEquals(Checksum.crc16(data, 0, length), (expected[0] << 8) | expected[1]);
+        }
+    }
+
+    @Test
+    public void testCrc16OfKnownFrame() {
+        // Read holding registers, unit 1, ref 0, count 10: 01 03 00 00 00 0A C5 CD
+        final byte[] frame = {0x01, 0x03, 0x00, 0x00, 0x00, 0x0A};
+        assertEquals(Checksum.crc16(frame, 0, frame.length), 0xC5CD);
+    }
+
+}
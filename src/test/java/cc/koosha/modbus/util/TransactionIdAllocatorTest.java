@@ -0,0 +1,73 @@
+package cc.koosha.modbus.util;
+
+import org.testng.annotations.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TransactionIdAllocatorTest {
+
+    @Test
+    public void testUsesFullRange() {
+        final TransactionIdAllocator ids = new TransactionIdAllocator();
+        final Set<Integer> seen = new HashSet<Integer>();
+        for (int i = 0; i < TransactionIdAllocator.SIZE; i++) {
+            final int id = ids.acquire();
+            assertTrue(id >= 0 && id <= 0xFFFF, "id: " + id);
+            seen.add(id);
+            ids.release(id);
+        }
+        assertEquals(seen.size(), TransactionIdAllocator.SIZE);
+    }
+
+    @Test
+    public void testSkipsIdsInFlight() {
+        final TransactionIdAllocator ids = new TransactionIdAllocator(4);
+        final int held = ids.acquire();
+        assertTrue(ids.isInFlight(held));
+        for (int i = 0; i < 10; i++) {
+            final int id = ids.acquire();
+            assertTrue(id != held, "id in flight handed out again");
+            ids.release(id);
+            assertFalse(ids.isInFlight(id));
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testExhausted() {
+        final TransactionIdAllocator ids = new TransactionIdAllocator(3);
+        ids.acquire();
+        ids.acquire();
+        ids.acquire();
+        ids.acquire();
+    }
+
+    @Test
+    public void testConcurrentIdsUnique() throws InterruptedException {
+        final TransactionIdAllocator ids = new TransactionIdAllocator();
+        final Set<Integer> seen = new HashSet<Integer>();
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        final int id = ids.acquire();
+                        synchronized (seen) {
+                            seen.add(id);
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(seen.size(), 40000);
+    }
+
+}